@@ -0,0 +1,79 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms.benchmark;
+
+import com.google.crypto.tink.config.TinkConfig;
+import com.google.samples.kms.CryptoHelper;
+import com.google.samples.kms.FakeKmsClient;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cold start of a short-lived run such as the command line tool: every measurement is the first use of the
+ * helper in a fresh JVM, including class loading, registration of the Tink primitives and the settings lookup.
+ * {@code registration=tink} registers all primitive families as the helper used to, {@code preferences=false}
+ * skips the Java preferences. Nothing may touch {@code CryptoHelper} before the measured call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+public class ColdStartBenchmark {
+  @Param({ "aead", "tink" })
+  String registration;
+
+  @Param({ "true", "false" })
+  String preferences;
+
+  @Setup
+  public void setup() {
+    System.setProperty("cryptoHelper.preferences", preferences);
+  }
+
+  private CryptoHelper newHelper() throws GeneralSecurityException {
+    if (registration.equals("tink")) {
+      TinkConfig.register();
+    }
+    return new CryptoHelper().loadKeyset(false).withKmsClient(new FakeKmsClient());
+  }
+
+  @Benchmark
+  public CryptoHelper startup() throws GeneralSecurityException {
+    return newHelper();
+  }
+
+  @Benchmark
+  public String firstEncrypt() throws GeneralSecurityException, IOException {
+    return newHelper().encrypt("first record");
+  }
+}
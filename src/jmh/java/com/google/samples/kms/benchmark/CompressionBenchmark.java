@@ -0,0 +1,81 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms.benchmark;
+
+import com.google.samples.kms.CryptoHelper;
+import com.google.samples.kms.FakeKmsClient;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares encryption and decryption of JSON values with and without compression. The ciphertext size of each
+ * configuration is printed at setup, so the bytes saved can be weighed against the time per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+  @Param({ "256", "1024", "4096", "16384" })
+  int payloadSize;
+
+  @Param({ "-1", "1", "6" })
+  int compressionLevel;
+
+  CryptoHelper ctx;
+  byte[] payload;
+  byte[] ciphertext;
+
+  @Setup
+  public void setup() throws GeneralSecurityException, IOException {
+    ctx = new CryptoHelper().loadKeyset(false).withKmsClient(new FakeKmsClient());
+    if (compressionLevel > 0) {
+      ctx.compressAbove(128).compressionLevel(compressionLevel);
+    }
+    payload = Payloads.json(payloadSize).getBytes(StandardCharsets.UTF_8);
+    ciphertext = ctx.encryptToBytes(payload);
+    System.out.println(String.format("%d bytes of JSON at level %d: %d bytes of ciphertext", payload.length,
+        compressionLevel, ciphertext.length));
+  }
+
+  @Benchmark
+  public byte[] encrypt() throws GeneralSecurityException, IOException {
+    return ctx.encryptToBytes(payload);
+  }
+
+  @Benchmark
+  public byte[] decrypt() throws GeneralSecurityException, IOException {
+    return ctx.decryptToBytes(ciphertext);
+  }
+}
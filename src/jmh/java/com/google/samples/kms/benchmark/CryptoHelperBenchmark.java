@@ -0,0 +1,102 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms.benchmark;
+
+import com.google.samples.kms.CryptoHelper;
+import com.google.samples.kms.FakeKmsClient;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptoHelperBenchmark {
+  @Param({ "16", "256", "4096", "65536", "1048576" })
+  int payloadSize;
+
+  CryptoHelper cryptoHelper;
+  String plaintext;
+  String ciphertext;
+  byte[] ciphertextBytes;
+  byte[] plaintextBytes;
+  ByteBuffer destination;
+
+  @Setup
+  public void setup() throws GeneralSecurityException, IOException {
+    cryptoHelper = new CryptoHelper().loadKeyset(false).withKmsClient(new FakeKmsClient());
+    plaintext = Payloads.text(payloadSize);
+    ciphertext = cryptoHelper.encrypt(plaintext);
+    ciphertextBytes = cryptoHelper.encryptToBytes(plaintext);
+    plaintextBytes = plaintext.getBytes(StandardCharsets.UTF_8);
+    destination = ByteBuffer.allocateDirect(cryptoHelper.ciphertextSize(plaintextBytes.length));
+  }
+
+  @Benchmark
+  public String encrypt() throws GeneralSecurityException, IOException {
+    return cryptoHelper.encrypt(plaintext);
+  }
+
+  @Benchmark
+  public byte[] encryptToBytes() throws GeneralSecurityException, IOException {
+    return cryptoHelper.encryptToBytes(plaintext);
+  }
+
+  @Benchmark
+  public byte[] encryptBytes() throws GeneralSecurityException, IOException {
+    return cryptoHelper.encryptToBytes(plaintextBytes);
+  }
+
+  @Benchmark
+  public int encryptIntoBuffer() throws GeneralSecurityException, IOException {
+    destination.clear();
+    return cryptoHelper.encrypt(ByteBuffer.wrap(plaintextBytes), destination);
+  }
+
+  @Benchmark
+  public byte[] decryptToBytes() throws GeneralSecurityException, IOException {
+    return cryptoHelper.decryptToBytes(ciphertextBytes);
+  }
+
+  @Benchmark
+  public String decrypt() throws GeneralSecurityException, IOException {
+    return cryptoHelper.decrypt(ciphertext);
+  }
+
+  @Benchmark
+  public String decryptBytes() throws GeneralSecurityException, IOException {
+    return cryptoHelper.decrypt(ciphertextBytes);
+  }
+}
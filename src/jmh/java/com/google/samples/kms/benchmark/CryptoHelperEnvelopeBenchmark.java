@@ -0,0 +1,73 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms.benchmark;
+
+import com.google.samples.kms.CryptoHelper;
+import com.google.samples.kms.CryptoHelperEnvelope;
+import com.google.samples.kms.FakeKmsClient;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptoHelperEnvelopeBenchmark {
+  @Param({ "16", "4096", "1048576" })
+  int payloadSize;
+
+  @Param({ "0" })
+  long kmsLatencyMicros;
+
+  CryptoHelper cryptoHelper;
+  String plaintext;
+  String ciphertext;
+
+  @Setup
+  public void setup() throws GeneralSecurityException, IOException {
+    FakeKmsClient kms = new FakeKmsClient(kmsLatencyMicros, TimeUnit.MICROSECONDS);
+    cryptoHelper = new CryptoHelperEnvelope().loadKeyset(false).withKmsClient(kms);
+    plaintext = Payloads.text(payloadSize);
+    ciphertext = cryptoHelper.encrypt(plaintext);
+  }
+
+  @Benchmark
+  public String encrypt() throws GeneralSecurityException, IOException {
+    return cryptoHelper.encrypt(plaintext);
+  }
+
+  @Benchmark
+  public String decrypt() throws GeneralSecurityException, IOException {
+    return cryptoHelper.decrypt(ciphertext);
+  }
+}
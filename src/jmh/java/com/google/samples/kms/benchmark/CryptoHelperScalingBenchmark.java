@@ -0,0 +1,98 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms.benchmark;
+
+import com.google.samples.kms.CryptoHelper;
+import com.google.samples.kms.FakeKmsClient;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One {@link CryptoHelper} shared by all benchmark threads, to see how encryption scales across cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptoHelperScalingBenchmark {
+  @Param({ "16", "4096" })
+  int payloadSize;
+
+  CryptoHelper cryptoHelper;
+  String plaintext;
+  String ciphertext;
+
+  @Setup
+  public void setup() throws GeneralSecurityException, IOException {
+    cryptoHelper = new CryptoHelper().loadKeyset(false).withKmsClient(new FakeKmsClient());
+    plaintext = Payloads.text(payloadSize);
+    ciphertext = cryptoHelper.encrypt(plaintext);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public String encrypt01Thread() throws GeneralSecurityException, IOException {
+    return cryptoHelper.encrypt(plaintext);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public String encrypt04Threads() throws GeneralSecurityException, IOException {
+    return cryptoHelper.encrypt(plaintext);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public String encryptAllCores() throws GeneralSecurityException, IOException {
+    return cryptoHelper.encrypt(plaintext);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public String decrypt01Thread() throws GeneralSecurityException, IOException {
+    return cryptoHelper.decrypt(ciphertext);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public String decrypt04Threads() throws GeneralSecurityException, IOException {
+    return cryptoHelper.decrypt(ciphertext);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public String decryptAllCores() throws GeneralSecurityException, IOException {
+    return cryptoHelper.decrypt(ciphertext);
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms.benchmark;
+
+import com.google.samples.kms.CachingKmsClient;
+import com.google.samples.kms.CryptoHelper;
+import com.google.samples.kms.FakeKmsClient;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time from a new helper to its first ciphertext, when the keyset is loaded from its encrypted form as
+ * {@code RedisHelper} does. Each remote call to the fake KMS takes {@code kmsLatencyMillis}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 50)
+@Fork(1)
+public class CryptoHelperStartupBenchmark {
+  @Param({ "0", "20" })
+  long kmsLatencyMillis;
+
+  FakeKmsClient kms;
+  CachingKmsClient shared;
+  String encodedKeyset;
+
+  @Setup
+  public void setup() throws GeneralSecurityException, IOException {
+    kms = new FakeKmsClient(kmsLatencyMillis, TimeUnit.MILLISECONDS);
+    shared = new CachingKmsClient(kms);
+    encodedKeyset = new CryptoHelper().loadKeyset(false).withKmsClient(shared).getEncodedKeysetHandle();
+  }
+
+  private String start(CryptoHelper ctx) throws GeneralSecurityException, IOException {
+    ctx.setEncodedKeysetHandle(encodedKeyset);
+    ctx.getEncodedKeysetHandle();
+    return ctx.encrypt("first record");
+  }
+
+  @Benchmark
+  public String newKmsClient() throws GeneralSecurityException, IOException {
+    return start(new CryptoHelper().loadKeyset(false).withKmsClient(kms));
+  }
+
+  @Benchmark
+  public String sharedKmsClient() throws GeneralSecurityException, IOException {
+    return start(new CryptoHelper().loadKeyset(false).withKmsClient(shared));
+  }
+}
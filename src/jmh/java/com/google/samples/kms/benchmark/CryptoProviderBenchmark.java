@@ -0,0 +1,97 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms.benchmark;
+
+import com.google.samples.kms.CryptoHelper;
+import com.google.samples.kms.CryptoProviders;
+import com.google.samples.kms.FakeKmsClient;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * AES-GCM of the JDK against Conscrypt, by payload size and number of threads sharing one helper. Every
+ * combination runs in its own fork, since the provider is installed for the whole JVM. Run with {@code -prof gc}
+ * to compare the allocation rates as well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptoProviderBenchmark {
+  @Param({ "jdk", "conscrypt" })
+  String provider;
+
+  @Param({ "64", "1024", "16384" })
+  int payloadSize;
+
+  CryptoHelper cryptoHelper;
+  byte[] plaintext;
+  byte[] ciphertext;
+
+  @Setup
+  public void setup() throws GeneralSecurityException, IOException {
+    String active = CryptoProviders.prefer(provider);
+    if (!provider.equals("jdk") && active.startsWith("Sun")) {
+      throw new IllegalStateException(provider + " could not be installed");
+    }
+    cryptoHelper = new CryptoHelper().loadKeyset(false).withKmsClient(new FakeKmsClient());
+    plaintext = Payloads.text(payloadSize).getBytes(StandardCharsets.UTF_8);
+    ciphertext = cryptoHelper.encryptToBytes(plaintext);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public byte[] encrypt01Thread() throws GeneralSecurityException, IOException {
+    return cryptoHelper.encryptToBytes(plaintext);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public byte[] encrypt04Threads() throws GeneralSecurityException, IOException {
+    return cryptoHelper.encryptToBytes(plaintext);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public byte[] decrypt01Thread() throws GeneralSecurityException, IOException {
+    return cryptoHelper.decryptToBytes(ciphertext);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public byte[] decrypt04Threads() throws GeneralSecurityException, IOException {
+    return cryptoHelper.decryptToBytes(ciphertext);
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms.benchmark;
+
+import com.google.samples.kms.CryptoHelper;
+import com.google.samples.kms.FakeKmsClient;
+import com.google.samples.kms.ale.CsvHelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encrypts a generated CSV file of about {@link #FILE_SIZE} bytes, split into rows of {@code payloadSize} bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CsvHelperBenchmark {
+  static final int FILE_SIZE = 4 << 20;
+
+  @Param({ "16", "256", "4096", "65536", "1048576" })
+  int payloadSize;
+
+  CryptoHelper cryptoHelper;
+  File input;
+  File output;
+
+  @Setup
+  public void setup() throws GeneralSecurityException, IOException {
+    cryptoHelper = new CryptoHelper().loadKeyset(false).withKmsClient(new FakeKmsClient());
+    input = File.createTempFile("csv-benchmark-", ".csv");
+    output = File.createTempFile("csv-benchmark-", ".encrypted.csv");
+    String member = Payloads.text(payloadSize);
+    try (Writer w = Files.newBufferedWriter(input.toPath(), StandardCharsets.UTF_8)) {
+      w.write("Key,Member\r\n");
+      for (int i = 0; i < Math.max(1, FILE_SIZE / payloadSize); i++) {
+        w.write(String.format("%d,%s\r\n", i, member));
+      }
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    input.delete();
+    output.delete();
+  }
+
+  @Benchmark
+  public long encrypt() throws GeneralSecurityException, IOException {
+    CsvHelper.encrypt(cryptoHelper, input.getPath(), output.getPath());
+    return output.length();
+  }
+
+  @Benchmark
+  public long encryptSingleWorker() throws GeneralSecurityException, IOException {
+    return new CsvHelper(cryptoHelper).workers(1).encrypt(input.getPath(), output.getPath()).getBytes();
+  }
+}
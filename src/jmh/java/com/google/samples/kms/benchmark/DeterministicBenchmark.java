@@ -0,0 +1,99 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms.benchmark;
+
+import com.google.samples.kms.CryptoHelper;
+import com.google.samples.kms.FakeKmsClient;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares randomized AES-GCM with deterministic AES-SIV for key-sized values, with and without the cache of
+ * deterministic ciphertexts. Lookups cycle through {@code distinctKeys} keys, so a cache at least that large
+ * serves all of them after warmup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeterministicBenchmark {
+  @Param({ "16", "64" })
+  int keySize;
+
+  @Param({ "1000" })
+  int distinctKeys;
+
+  CryptoHelper aesGcm;
+  CryptoHelper aesSiv;
+  CryptoHelper aesSivCached;
+  byte[][] keys;
+  byte[] associatedData = "Key".getBytes(StandardCharsets.UTF_8);
+  int next = 0;
+
+  @Setup
+  public void setup() throws GeneralSecurityException, IOException {
+    FakeKmsClient kms = new FakeKmsClient();
+    aesGcm = new CryptoHelper().loadKeyset(false).withKmsClient(kms);
+    aesSiv = new CryptoHelper().loadKeyset(false).withKmsClient(kms).deterministicCacheSize(0);
+    aesSivCached = new CryptoHelper().loadKeyset(false).withKmsClient(kms).deterministicCacheSize(distinctKeys);
+    keys = new byte[distinctKeys][];
+    for (int i = 0; i < distinctKeys; i++) {
+      String prefix = String.format("%08d", i);
+      keys[i] = (prefix + Payloads.text(Math.max(0, keySize - prefix.length()))).getBytes(StandardCharsets.UTF_8);
+    }
+    aesGcm.encryptToBytes(keys[0], associatedData);
+    aesSiv.encryptDeterministically(keys[0], associatedData);
+    aesSivCached.encryptDeterministically(keys[0], associatedData);
+  }
+
+  private byte[] nextKey() {
+    next = next + 1 == keys.length ? 0 : next + 1;
+    return keys[next];
+  }
+
+  @Benchmark
+  public byte[] aesGcm() throws GeneralSecurityException, IOException {
+    return aesGcm.encryptToBytes(nextKey(), associatedData);
+  }
+
+  @Benchmark
+  public byte[] aesSiv() throws GeneralSecurityException, IOException {
+    return aesSiv.encryptDeterministically(nextKey(), associatedData);
+  }
+
+  @Benchmark
+  public byte[] aesSivCached() throws GeneralSecurityException, IOException {
+    return aesSivCached.encryptDeterministically(nextKey(), associatedData);
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms.benchmark;
+
+import com.google.crypto.tink.Aead;
+import com.google.crypto.tink.aead.AeadKeyTemplates;
+import com.google.crypto.tink.aead.KmsEnvelopeAead;
+import com.google.samples.kms.CachingEnvelopeAead;
+import com.google.samples.kms.FakeKmsClient;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-record cost of envelope encryption when every record wraps its own data key ({@code KmsEnvelopeAead})
+ * compared with one data key reused for {@code dataKeyMessages} records.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EnvelopeDataKeyBenchmark {
+  private static final int records = 1000;
+
+  @Param({ "1000" })
+  long kmsLatencyMicros;
+
+  @Param({ "1", "1000" })
+  long dataKeyMessages;
+
+  @Param({ "256" })
+  int payloadSize;
+
+  Aead kmsEnvelope;
+  CachingEnvelopeAead caching;
+  byte[] plaintext;
+  byte[][] ciphertexts;
+  byte[] associatedData = "EnvelopeDataKeyBenchmark".getBytes(StandardCharsets.UTF_8);
+  int next = 0;
+
+  @Setup
+  public void setup() throws GeneralSecurityException {
+    FakeKmsClient kms = new FakeKmsClient(kmsLatencyMicros, TimeUnit.MICROSECONDS);
+    Aead remote = kms.getAead("fake-kms://kek");
+    kmsEnvelope = new KmsEnvelopeAead(AeadKeyTemplates.AES256_GCM, remote);
+    caching = new CachingEnvelopeAead(AeadKeyTemplates.AES256_GCM, remote).maxMessages(dataKeyMessages);
+    plaintext = Payloads.text(payloadSize).getBytes(StandardCharsets.UTF_8);
+    CachingEnvelopeAead writer = new CachingEnvelopeAead(AeadKeyTemplates.AES256_GCM, remote)
+        .maxMessages(dataKeyMessages);
+    ciphertexts = new byte[records][];
+    for (int i = 0; i < records; i++) {
+      ciphertexts[i] = writer.encrypt(plaintext, associatedData);
+    }
+  }
+
+  @Benchmark
+  public byte[] kmsEnvelopeEncrypt() throws GeneralSecurityException {
+    return kmsEnvelope.encrypt(plaintext, associatedData);
+  }
+
+  @Benchmark
+  public byte[] cachingEnvelopeEncrypt() throws GeneralSecurityException {
+    return caching.encrypt(plaintext, associatedData);
+  }
+
+  @Benchmark
+  public byte[] kmsEnvelopeDecrypt() throws GeneralSecurityException {
+    next = (next + 1) % records;
+    return kmsEnvelope.decrypt(ciphertexts[next], associatedData);
+  }
+
+  @Benchmark
+  public byte[] cachingEnvelopeDecrypt() throws GeneralSecurityException {
+    next = (next + 1) % records;
+    return caching.decrypt(ciphertexts[next], associatedData);
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms.benchmark;
+
+import com.google.crypto.tink.Aead;
+import com.google.samples.kms.CryptoHelper;
+import com.google.samples.kms.FakeKmsClient;
+import com.google.samples.kms.JmxInstrumentation;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of instrumentation on the encryption hot path: the bare Tink primitive, a helper without
+ * instrumentation and a helper recording into {@link JmxInstrumentation}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InstrumentationBenchmark {
+  @Param({ "16" })
+  int payloadSize;
+
+  Aead aead;
+  CryptoHelper noop;
+  CryptoHelper jmx;
+  byte[] payload;
+  byte[] associatedData;
+
+  @Setup
+  public void setup() throws GeneralSecurityException, IOException {
+    FakeKmsClient kms = new FakeKmsClient();
+    noop = new CryptoHelper().loadKeyset(false).withKmsClient(kms);
+    jmx = new CryptoHelper().loadKeyset(false).withKmsClient(kms)
+        .instrumentation(new JmxInstrumentation("InstrumentationBenchmark"));
+    aead = noop.getAead();
+    associatedData = noop.getAssociatedData();
+    payload = Payloads.text(payloadSize).getBytes("UTF-8");
+    jmx.encryptToBytes(payload);
+  }
+
+  @Benchmark
+  public byte[] baseline() throws GeneralSecurityException {
+    return aead.encrypt(payload, associatedData);
+  }
+
+  @Benchmark
+  public byte[] noop() throws GeneralSecurityException, IOException {
+    return noop.encryptToBytes(payload);
+  }
+
+  @Benchmark
+  public byte[] jmx() throws GeneralSecurityException, IOException {
+    return jmx.encryptToBytes(payload);
+  }
+}
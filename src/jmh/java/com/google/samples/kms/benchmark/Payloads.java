@@ -0,0 +1,49 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms.benchmark;
+
+import java.util.Random;
+
+final class Payloads {
+  static final String ALPHABET = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 ";
+
+  private Payloads() {
+  }
+
+  static String text(int size) {
+    Random random = new Random(size);
+    StringBuilder b = new StringBuilder(size);
+    for (int i = 0; i < size; i++) {
+      b.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+    }
+    return b.toString();
+  }
+
+  /**
+   * JSON records of {@code size} characters, which compress about as well as typical application values.
+   */
+  static String json(int size) {
+    Random random = new Random(size);
+    StringBuilder b = new StringBuilder(size + 128).append('[');
+    for (int i = 0; b.length() < size; i++) {
+      b.append(String.format("{\"id\":%d,\"name\":\"customer %d\",\"email\":\"customer%d@example.com\","
+          + "\"status\":\"%s\",\"balance\":%d.%02d},", i, random.nextInt(100000), i, random.nextBoolean() ? "active"
+          : "inactive", random.nextInt(10000), random.nextInt(100)));
+    }
+    return b.substring(0, size);
+  }
+}
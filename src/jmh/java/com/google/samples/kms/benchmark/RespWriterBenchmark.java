@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms.benchmark;
+
+import com.google.samples.kms.redis.RespWriter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writes {@link #RECORDS} SET frames per invocation, comparing the original String.format based encoding
+ * against {@link RespWriter}. Output goes to a sink that discards it, so only encoding cost is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RespWriterBenchmark {
+  static final int RECORDS = 1_000_000;
+
+  @Param({ "16", "64", "256" })
+  int payloadSize;
+
+  String[] keys;
+  String member;
+
+  @Setup
+  public void setup() {
+    keys = new String[1024];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = String.format("customer:%010d", i);
+    }
+    member = Payloads.text(payloadSize);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RECORDS)
+  public void stringFormat() throws IOException {
+    try (Writer out = new BufferedWriter(new OutputStreamWriter(OutputStream.nullOutputStream(),
+        StandardCharsets.UTF_8), 1 << 20)) {
+      for (int i = 0; i < RECORDS; i++) {
+        String key = keys[i & 1023];
+        out.write(String.format("*3\r\n$3\r\nSET\r\n$%d\r\n%s\r\n$%d\r\n%s\r\n", key.length(), key,
+            member.length(), member));
+      }
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RECORDS)
+  public long respWriter() throws IOException {
+    try (RespWriter out = new RespWriter(new NullChannel(), 1 << 20)) {
+      for (int i = 0; i < RECORDS; i++) {
+        out.writeSet(keys[i & 1023], member);
+      }
+      return out.size();
+    }
+  }
+
+  static final class NullChannel implements WritableByteChannel {
+    @Override
+    public int write(ByteBuffer src) {
+      int n = src.remaining();
+      src.position(src.limit());
+      return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
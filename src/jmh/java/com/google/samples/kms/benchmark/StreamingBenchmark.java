@@ -0,0 +1,106 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms.benchmark;
+
+import com.google.samples.kms.CryptoHelper;
+import com.google.samples.kms.FakeKmsClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One-shot AEAD compared with the streaming mode for large payloads. MB/s is {@code payloadSize} divided by the
+ * time per operation; {@code gc.alloc.rate.norm} from {@code -prof gc} shows the heap allocated per payload,
+ * which grows with the payload for the one-shot path and stays at a few segments for the streaming path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class StreamingBenchmark {
+  @Param({ "1048576", "67108864" })
+  int payloadSize;
+
+  CryptoHelper cryptoHelper;
+  byte[] plaintext;
+  String plaintextString;
+  byte[] ciphertext;
+  byte[] streamCiphertext;
+
+  @Setup
+  public void setup() throws GeneralSecurityException, IOException {
+    cryptoHelper = new CryptoHelper().loadKeyset(false).withKmsClient(new FakeKmsClient());
+    plaintextString = Payloads.text(payloadSize);
+    plaintext = plaintextString.getBytes(StandardCharsets.UTF_8);
+    ciphertext = cryptoHelper.encryptToBytes(plaintext);
+    ByteArrayOutputStream b = new ByteArrayOutputStream();
+    try (OutputStream out = cryptoHelper.encryptingStream(b)) {
+      out.write(plaintext);
+    }
+    streamCiphertext = b.toByteArray();
+  }
+
+  @Benchmark
+  public byte[] oneShotEncrypt() throws GeneralSecurityException, IOException {
+    return cryptoHelper.encryptToBytes(plaintext);
+  }
+
+  @Benchmark
+  public String oneShotEncryptString() throws GeneralSecurityException, IOException {
+    return cryptoHelper.encrypt(plaintextString);
+  }
+
+  @Benchmark
+  public long streamingEncrypt() throws GeneralSecurityException, IOException {
+    try (InputStream in = new ByteArrayInputStream(plaintext);
+        OutputStream out = cryptoHelper.encryptingStream(OutputStream.nullOutputStream())) {
+      return in.transferTo(out);
+    }
+  }
+
+  @Benchmark
+  public byte[] oneShotDecrypt() throws GeneralSecurityException, IOException {
+    return cryptoHelper.decryptToBytes(ciphertext);
+  }
+
+  @Benchmark
+  public long streamingDecrypt() throws GeneralSecurityException, IOException {
+    try (InputStream in = cryptoHelper.decryptingStream(new ByteArrayInputStream(streamCiphertext))) {
+      return in.transferTo(OutputStream.nullOutputStream());
+    }
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms;
+
+import com.google.crypto.tink.DeterministicAead;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.LinkedHashMap;
+
+/**
+ * Deterministic encryption with an LRU cache of recent ciphertexts keyed by plaintext and associated data. Keys
+ * of a store are encrypted again on every lookup, and the same hot keys repeat, so most of them are served
+ * without running AES-SIV. Decryption is not cached.
+ */
+public class CachingDeterministicAead implements DeterministicAead {
+  private final DeterministicAead daead;
+  private final LinkedHashMap<ByteBuffer, byte[]> ciphertexts = new LinkedHashMap<ByteBuffer, byte[]>(16, 0.75f,
+      true);
+  private int maxEntries;
+  private long hits = 0;
+  private long misses = 0;
+
+  public CachingDeterministicAead(DeterministicAead daead, int maxEntries) {
+    this.daead = daead;
+    this.maxEntries = Math.max(0, maxEntries);
+  }
+
+  @Override
+  public byte[] encryptDeterministically(byte[] plaintext, byte[] associatedData) throws GeneralSecurityException {
+    if (maxEntries == 0) {
+      return daead.encryptDeterministically(plaintext, associatedData);
+    }
+    ByteBuffer key = cacheKey(plaintext, associatedData);
+    synchronized (this) {
+      byte[] c = ciphertexts.get(key);
+      if (c != null) {
+        hits++;
+        return c.clone();
+      }
+      misses++;
+    }
+    byte[] c = daead.encryptDeterministically(plaintext, associatedData);
+    synchronized (this) {
+      ciphertexts.put(key, c.clone());
+      while (ciphertexts.size() > maxEntries) {
+        ciphertexts.remove(ciphertexts.keySet().iterator().next());
+      }
+    }
+    return c;
+  }
+
+  @Override
+  public byte[] decryptDeterministically(byte[] ciphertext, byte[] associatedData) throws GeneralSecurityException {
+    return daead.decryptDeterministically(ciphertext, associatedData);
+  }
+
+  /**
+   * Length of the associated data, the associated data and the plaintext, so that different splits of the same
+   * bytes never share an entry.
+   */
+  private static ByteBuffer cacheKey(byte[] plaintext, byte[] associatedData) {
+    int adLength = associatedData == null ? 0 : associatedData.length;
+    ByteBuffer key = ByteBuffer.allocate(4 + adLength + plaintext.length).putInt(adLength);
+    if (associatedData != null) {
+      key.put(associatedData);
+    }
+    return key.put(plaintext).flip();
+  }
+
+  public synchronized int size() {
+    return ciphertexts.size();
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized void clear() {
+    ciphertexts.clear();
+  }
+
+  @Override
+  public synchronized String toString() {
+    long lookups = hits + misses;
+    return String.format("%d entries, %d hits, %d misses (%.1f%% hit rate)", ciphertexts.size(), hits, misses,
+        lookups == 0 ? 0.0 : 100.0 * hits / lookups);
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms;
+
+import com.google.crypto.tink.Aead;
+import com.google.crypto.tink.Registry;
+import com.google.crypto.tink.proto.KeyTemplate;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Envelope encryption that wraps one data encryption key (DEK) with the remote key and reuses it until a number
+ * of messages, plaintext bytes or an age is reached. Decryption keeps an LRU cache of unwrapped DEKs keyed by
+ * their wrapped bytes. Ciphertexts have the same layout as those of Tink's {@code KmsEnvelopeAead}: the length
+ * of the wrapped DEK as a 4 byte big-endian integer, the wrapped DEK and the payload. Each format can be
+ * decrypted by the other.
+ */
+public class CachingEnvelopeAead implements Aead {
+  private static final byte[] emptyAssociatedData = new byte[0];
+  private static final int lengthEncodingSize = 4;
+
+  private final KeyTemplate dekTemplate;
+  private final Aead remote;
+  private long maxMessages = 1000;
+  private long maxBytes = Long.MAX_VALUE;
+  private long maxAgeNanos = TimeUnit.MINUTES.toNanos(5);
+  private final LruCache unwrapped = new LruCache(1000);
+  private DataKey current;
+
+  public CachingEnvelopeAead(KeyTemplate dekTemplate, Aead remote) {
+    this.dekTemplate = dekTemplate;
+    this.remote = remote;
+  }
+
+  /**
+   * Wraps a new DEK after this many messages. 1 behaves like {@code KmsEnvelopeAead}.
+   */
+  public synchronized CachingEnvelopeAead maxMessages(long messages) {
+    maxMessages = Math.max(1, messages);
+    return this;
+  }
+
+  /**
+   * Wraps a new DEK once the plaintexts encrypted with the current one reach this many bytes.
+   */
+  public synchronized CachingEnvelopeAead maxBytes(long bytes) {
+    maxBytes = Math.max(1, bytes);
+    return this;
+  }
+
+  public synchronized CachingEnvelopeAead maxAge(long age, TimeUnit unit) {
+    maxAgeNanos = unit.toNanos(age);
+    return this;
+  }
+
+  /**
+   * Number of unwrapped DEKs kept for decryption.
+   */
+  public CachingEnvelopeAead cacheSize(int keys) {
+    unwrapped.resize(keys);
+    return this;
+  }
+
+  private static final class DataKey {
+    final byte[] encryptedDek;
+    final Aead aead;
+    final long created = System.nanoTime();
+    long messages = 0;
+    long bytes = 0;
+
+    DataKey(byte[] encryptedDek, Aead aead) {
+      this.encryptedDek = encryptedDek;
+      this.aead = aead;
+    }
+  }
+
+  /**
+   * Access-ordered map from wrapped to unwrapped DEK, bounded to {@code maxKeys} entries.
+   */
+  private static final class LruCache extends LinkedHashMap<ByteBuffer, Aead> {
+    private static final long serialVersionUID = 1L;
+    private int maxKeys;
+
+    LruCache(int maxKeys) {
+      super(16, 0.75f, true);
+      this.maxKeys = maxKeys;
+    }
+
+    synchronized Aead lookup(ByteBuffer encryptedDek) {
+      return get(encryptedDek);
+    }
+
+    synchronized void store(ByteBuffer encryptedDek, Aead aead) {
+      put(encryptedDek, aead);
+    }
+
+    synchronized void resize(int keys) {
+      maxKeys = Math.max(1, keys);
+      while (size() > maxKeys) {
+        remove(keySet().iterator().next());
+      }
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Aead> eldest) {
+      return size() > maxKeys;
+    }
+  }
+
+  private synchronized DataKey dataKey(int plaintextLength) throws GeneralSecurityException {
+    DataKey k = current;
+    if (k == null || k.messages >= maxMessages || k.bytes + plaintextLength > maxBytes
+        || System.nanoTime() - k.created >= maxAgeNanos) {
+      byte[] dek = Registry.newKey(dekTemplate).toByteArray();
+      byte[] encryptedDek = remote.encrypt(dek, emptyAssociatedData);
+      k = new DataKey(encryptedDek, Registry.getPrimitive(dekTemplate.getTypeUrl(), dek, Aead.class));
+      unwrapped.store(ByteBuffer.wrap(encryptedDek), k.aead);
+      current = k;
+    }
+    k.messages++;
+    k.bytes += plaintextLength;
+    return k;
+  }
+
+  @Override
+  public byte[] encrypt(byte[] plaintext, byte[] associatedData) throws GeneralSecurityException {
+    DataKey k = dataKey(plaintext.length);
+    byte[] payload = k.aead.encrypt(plaintext, associatedData);
+    return ByteBuffer.allocate(lengthEncodingSize + k.encryptedDek.length + payload.length)
+        .putInt(k.encryptedDek.length).put(k.encryptedDek).put(payload).array();
+  }
+
+  @Override
+  public byte[] decrypt(byte[] ciphertext, byte[] associatedData) throws GeneralSecurityException {
+    int encryptedDekSize = encryptedDekSize(ciphertext, 0);
+    Aead aead = unwrap(encryptedDek(ciphertext, 0, encryptedDekSize));
+    int payloadStart = payloadOffset(0, encryptedDekSize);
+    byte[] payload = new byte[ciphertext.length - payloadStart];
+    System.arraycopy(ciphertext, payloadStart, payload, 0, payload.length);
+    return aead.decrypt(payload, associatedData);
+  }
+
+  /**
+   * Returns the length of the wrapped DEK of the envelope that starts at {@code offset}.
+   */
+  static int encryptedDekSize(byte[] ciphertext, int offset) throws GeneralSecurityException {
+    if (ciphertext.length - offset < lengthEncodingSize) {
+      throw new GeneralSecurityException("ciphertext too short");
+    }
+    int size = ByteBuffer.wrap(ciphertext, offset, lengthEncodingSize).getInt();
+    if (size <= 0 || size > ciphertext.length - offset - lengthEncodingSize) {
+      throw new GeneralSecurityException("invalid ciphertext");
+    }
+    return size;
+  }
+
+  /**
+   * Returns the index of the payload that follows the wrapped DEK of the envelope starting at {@code offset}.
+   */
+  static int payloadOffset(int offset, int encryptedDekSize) {
+    return offset + lengthEncodingSize + encryptedDekSize;
+  }
+
+  /**
+   * Returns the wrapped DEK of the envelope that starts at {@code offset}, without copying.
+   */
+  static ByteBuffer encryptedDek(byte[] ciphertext, int offset, int encryptedDekSize) {
+    return ByteBuffer.wrap(ciphertext, offset + lengthEncodingSize, encryptedDekSize).slice();
+  }
+
+  /**
+   * Returns the DEK for {@code encryptedDek}, calling the remote key only on a cache miss.
+   */
+  Aead unwrap(ByteBuffer encryptedDek) throws GeneralSecurityException {
+    Aead aead = unwrapped.lookup(encryptedDek);
+    if (aead == null) {
+      byte[] wrapped = new byte[encryptedDek.remaining()];
+      encryptedDek.duplicate().get(wrapped);
+      byte[] dek = remote.decrypt(wrapped, emptyAssociatedData);
+      aead = Registry.getPrimitive(dekTemplate.getTypeUrl(), dek, Aead.class);
+      unwrapped.store(ByteBuffer.wrap(wrapped), aead);
+    }
+    return aead;
+  }
+}
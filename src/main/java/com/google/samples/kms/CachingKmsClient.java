@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms;
+
+import com.google.crypto.tink.Aead;
+import com.google.crypto.tink.KmsClient;
+import com.google.crypto.tink.KmsClients;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Wraps a {@link KmsClient} and keeps one key-encryption-key {@link Aead} per key URI, so that each remote key
+ * is resolved once no matter how many keysets are read or written with it. The cached primitives are shared by
+ * all threads; the underlying client's {@code Aead} must therefore be thread-safe, which holds for Cloud KMS.
+ */
+public class CachingKmsClient implements KmsClient {
+  private final KmsClient client;
+  private final ConcurrentMap<String, Aead> keyEncryptionKeys = new ConcurrentHashMap<String, Aead>();
+  private boolean registered = false;
+
+  public CachingKmsClient(KmsClient client) {
+    this.client = client;
+  }
+
+  @Override
+  public boolean doesSupport(String keyUri) {
+    return client.doesSupport(keyUri);
+  }
+
+  /**
+   * Returns a new caching client around the wrapped client with other credentials, starting with an empty cache.
+   */
+  @Override
+  public KmsClient withCredentials(String credentialPath) throws GeneralSecurityException {
+    return new CachingKmsClient(client.withCredentials(credentialPath));
+  }
+
+  @Override
+  public KmsClient withDefaultCredentials() throws GeneralSecurityException {
+    return new CachingKmsClient(client.withDefaultCredentials());
+  }
+
+  @Override
+  public Aead getAead(String keyUri) throws GeneralSecurityException {
+    Aead kek = keyEncryptionKeys.get(keyUri);
+    if (kek == null) {
+      synchronized (keyEncryptionKeys) {
+        kek = keyEncryptionKeys.get(keyUri);
+        if (kek == null) {
+          kek = client.getAead(keyUri);
+          keyEncryptionKeys.put(keyUri, kek);
+        }
+      }
+    }
+    return kek;
+  }
+
+  /**
+   * Adds this client to the global {@link KmsClients} list, which Tink consults when it builds KMS envelope
+   * primitives. Repeated calls do not add it again.
+   */
+  public synchronized CachingKmsClient register() {
+    if (!registered) {
+      KmsClients.add(this);
+      registered = true;
+    }
+    return this;
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+/**
+ * Progress of a bulk job, kept in a sidecar file next to its output so that an interrupted job can resume
+ * instead of starting over. A checkpoint records where the next unprocessed record starts in the input, how
+ * long the output was at that point and the encrypted keysets written at the start of the output. It is only
+ * valid for an unchanged input: size and modification time must still match. The job syncs its output before
+ * each save, so the output is never shorter than the recorded length.
+ */
+public class Checkpoint {
+  private final Path file;
+  private final Path input;
+  private final Path output;
+  private final long inputSize;
+  private final long inputModified;
+  private final String keyset;
+  private final String deterministicKeyset;
+  private final boolean resumed;
+  private long inputOffset;
+  private long outputLength;
+  private long rows;
+  private long savedNanos = System.nanoTime();
+
+  private Checkpoint(Path input, Path output, long inputSize, long inputModified, String keyset,
+      String deterministicKeyset, boolean resumed) {
+    this.file = sidecar(output);
+    this.input = input;
+    this.output = output;
+    this.inputSize = inputSize;
+    this.inputModified = inputModified;
+    this.keyset = keyset;
+    this.deterministicKeyset = deterministicKeyset;
+    this.resumed = resumed;
+  }
+
+  public static Path sidecar(Path output) {
+    return Paths.get(output.toString() + ".checkpoint");
+  }
+
+  /**
+   * Starts tracking a new job. Nothing is written until the first {@link #save}.
+   */
+  public static Checkpoint start(Path input, Path output, String keyset, String deterministicKeyset)
+      throws IOException {
+    return new Checkpoint(input.toAbsolutePath(), output, Files.size(input),
+        Files.getLastModifiedTime(input).toMillis(), keyset, deterministicKeyset, false);
+  }
+
+  /**
+   * Returns the checkpoint of an interrupted job from {@code input} to {@code output}, or null if there is none
+   * or it no longer matches the input or output, in which case the stale sidecar is deleted.
+   */
+  public static Checkpoint resume(Path input, Path output) throws IOException {
+    Path file = sidecar(output);
+    if (!Files.exists(file)) {
+      return null;
+    }
+    Properties p = new Properties();
+    try (InputStream in = Files.newInputStream(file)) {
+      p.load(in);
+    }
+    try {
+      Checkpoint c = new Checkpoint(Paths.get(p.getProperty("input")), output,
+          Long.parseLong(p.getProperty("inputSize")), Long.parseLong(p.getProperty("inputModified")),
+          p.getProperty("keyset"), p.getProperty("deterministicKeyset"), true);
+      c.inputOffset = Long.parseLong(p.getProperty("inputOffset"));
+      c.outputLength = Long.parseLong(p.getProperty("outputLength"));
+      c.rows = Long.parseLong(p.getProperty("rows"));
+      if (c.input.equals(input.toAbsolutePath()) && c.inputSize == Files.size(input)
+          && c.inputModified == Files.getLastModifiedTime(input).toMillis() && Files.exists(output)
+          && Files.size(output) >= c.outputLength && c.inputOffset <= c.inputSize) {
+        return c;
+      }
+    } catch (NullPointerException | NumberFormatException e) {
+      // incomplete or foreign sidecar, start over
+    }
+    Files.delete(file);
+    return null;
+  }
+
+  /**
+   * Opens the output of a resumed job, cut back to the checkpointed length and positioned at its end, so that
+   * anything written after the last save is overwritten.
+   */
+  public FileChannel openOutput() throws IOException {
+    if (!resumed) {
+      return FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING);
+    }
+    FileChannel channel = FileChannel.open(output, StandardOpenOption.WRITE);
+    channel.truncate(outputLength);
+    channel.position(outputLength);
+    return channel;
+  }
+
+  /**
+   * Returns true if the last save is at least {@code intervalNanos} ago.
+   */
+  public boolean due(long intervalNanos) {
+    return System.nanoTime() - savedNanos >= intervalNanos;
+  }
+
+  /**
+   * Records the progress atomically: the sidecar is written to a temporary file and moved over the old one.
+   */
+  public void save(long inputOffset, long outputLength, long rows) throws IOException {
+    this.inputOffset = inputOffset;
+    this.outputLength = outputLength;
+    this.rows = rows;
+    Properties p = new Properties();
+    p.setProperty("input", input.toString());
+    p.setProperty("inputSize", Long.toString(inputSize));
+    p.setProperty("inputModified", Long.toString(inputModified));
+    p.setProperty("inputOffset", Long.toString(inputOffset));
+    p.setProperty("outputLength", Long.toString(outputLength));
+    p.setProperty("rows", Long.toString(rows));
+    if (keyset != null) {
+      p.setProperty("keyset", keyset);
+    }
+    if (deterministicKeyset != null) {
+      p.setProperty("deterministicKeyset", deterministicKeyset);
+    }
+    Path tmp = Paths.get(file.toString() + ".tmp");
+    try (OutputStream out = Files.newOutputStream(tmp)) {
+      p.store(out, "progress of " + output);
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    savedNanos = System.nanoTime();
+  }
+
+  /**
+   * Removes the sidecar once the job has completed.
+   */
+  public void delete() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  public boolean isResumed() {
+    return resumed;
+  }
+
+  public long getInputOffset() {
+    return inputOffset;
+  }
+
+  public long getOutputLength() {
+    return outputLength;
+  }
+
+  public long getRows() {
+    return rows;
+  }
+
+  public String getKeyset() {
+    return keyset;
+  }
+
+  public String getDeterministicKeyset() {
+    return deterministicKeyset;
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate stage in front of encryption. A compressed value is the marker byte 0xC1 followed by the Tink ciphertext
+ * of its payload: the length of the original plaintext as a varint and the raw Deflate stream. Tink ciphertexts
+ * start with 0x00 or 0x01, so the marker tells compressed values apart without looking at the plaintext, and it is
+ * bound to the ciphertext through the associated data so that it cannot be added or stripped. Deflaters and
+ * inflaters are pooled rather than kept per thread, since virtual threads would each get their own.
+ */
+final class Compression {
+  static final byte marker = (byte) 0xC1;
+  private static final int poolSize = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+  private static final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<Deflater>(poolSize);
+  private static final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<Inflater>(poolSize);
+
+  private Compression() {
+  }
+
+  static boolean isCompressed(byte[] ciphertext) {
+    return ciphertext.length > 0 && ciphertext[0] == marker;
+  }
+
+  /**
+   * Returns the associated data under which the payload of a compressed value is encrypted.
+   */
+  static byte[] associatedData(byte[] associatedData) {
+    byte[] ad = new byte[associatedData.length + 1];
+    ad[0] = marker;
+    System.arraycopy(associatedData, 0, ad, 1, associatedData.length);
+    return ad;
+  }
+
+  /**
+   * Returns {@code ciphertext} of a compressed payload preceded by the marker.
+   */
+  static byte[] mark(byte[] ciphertext) {
+    byte[] value = new byte[ciphertext.length + 1];
+    value[0] = marker;
+    System.arraycopy(ciphertext, 0, value, 1, ciphertext.length);
+    return value;
+  }
+
+  /**
+   * Returns the compressed payload of {@code plaintext}, or null if it would not be smaller than the plaintext
+   * once the marker is added.
+   */
+  static byte[] compress(byte[] plaintext, int level) {
+    byte[] out = new byte[Math.max(0, plaintext.length - 1)];
+    int n = putVarint(out, 0, plaintext.length);
+    if (n < 0) {
+      return null;
+    }
+    Deflater deflater = deflaters.poll();
+    if (deflater == null) {
+      deflater = new Deflater(level, true);
+    }
+    try {
+      deflater.setLevel(level);
+      deflater.setInput(plaintext);
+      deflater.finish();
+      while (!deflater.finished()) {
+        if (n == out.length) {
+          return null;
+        }
+        n += deflater.deflate(out, n, out.length - n);
+      }
+      return Arrays.copyOf(out, n);
+    } finally {
+      deflater.reset();
+      if (!deflaters.offer(deflater)) {
+        deflater.end();
+      }
+    }
+  }
+
+  /**
+   * Returns the plaintext of a compressed payload.
+   *
+   * @throws GeneralSecurityException if the payload is not a complete Deflate stream of the announced length
+   */
+  static byte[] decompress(byte[] payload) throws GeneralSecurityException {
+    long length = 0;
+    int offset = 0;
+    for (int shift = 0;; shift += 7) {
+      if (offset == payload.length || shift > 28) {
+        throw new GeneralSecurityException("invalid compressed payload");
+      }
+      byte b = payload[offset++];
+      length |= (long) (b & 0x7f) << shift;
+      if (b >= 0) {
+        break;
+      }
+    }
+    if (length > Integer.MAX_VALUE - 8 || length > 1032L * payload.length) {
+      throw new GeneralSecurityException("invalid compressed payload length");
+    }
+    Inflater inflater = inflaters.poll();
+    if (inflater == null) {
+      inflater = new Inflater(true);
+    }
+    try {
+      inflater.setInput(payload, offset, payload.length - offset);
+      byte[] plaintext = new byte[(int) length];
+      int n = 0;
+      while (n < plaintext.length && !inflater.finished() && !inflater.needsInput()) {
+        n += inflater.inflate(plaintext, n, plaintext.length - n);
+      }
+      if (n == plaintext.length && !inflater.finished() && inflater.inflate(new byte[1]) > 0) {
+        throw new GeneralSecurityException("compressed payload longer than announced");
+      }
+      if (n != plaintext.length || !inflater.finished() || inflater.getRemaining() > 0) {
+        throw new GeneralSecurityException("corrupt compressed payload");
+      }
+      return plaintext;
+    } catch (DataFormatException e) {
+      throw new GeneralSecurityException("corrupt compressed payload", e);
+    } finally {
+      inflater.reset();
+      if (!inflaters.offer(inflater)) {
+        inflater.end();
+      }
+    }
+  }
+
+  /**
+   * Writes {@code value} as a varint at {@code offset} and returns the offset after it, or -1 if it does not fit.
+   */
+  private static int putVarint(byte[] out, int offset, int value) {
+    while ((value & ~0x7f) != 0) {
+      if (offset >= out.length) {
+        return -1;
+      }
+      out[offset++] = (byte) ((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    if (offset >= out.length) {
+      return -1;
+    }
+    out[offset++] = (byte) value;
+    return offset;
+  }
+}
@@ -18,68 +18,230 @@ package com.google.samples.kms;
 
 import com.google.crypto.tink.Aead;
 import com.google.crypto.tink.CleartextKeysetHandle;
+import com.google.crypto.tink.CryptoFormat;
+import com.google.crypto.tink.DeterministicAead;
 import com.google.crypto.tink.JsonKeysetReader;
 import com.google.crypto.tink.JsonKeysetWriter;
 import com.google.crypto.tink.KeysetHandle;
+import com.google.crypto.tink.KeysetManager;
 import com.google.crypto.tink.KmsClient;
-import com.google.crypto.tink.KmsClients;
+import com.google.crypto.tink.StreamingAead;
+import com.google.crypto.tink.aead.AeadConfig;
 import com.google.crypto.tink.aead.AeadKeyTemplates;
-import com.google.crypto.tink.config.TinkConfig;
+import com.google.crypto.tink.daead.DeterministicAeadConfig;
+import com.google.crypto.tink.daead.DeterministicAeadKeyTemplates;
 import com.google.crypto.tink.integration.gcpkms.GcpKmsClient;
+import com.google.crypto.tink.proto.HashType;
+import com.google.crypto.tink.proto.KeyTemplate;
+import com.google.crypto.tink.proto.Keyset;
+import com.google.crypto.tink.streamingaead.StreamingAeadConfig;
+import com.google.crypto.tink.streamingaead.StreamingAeadKeyTemplates;
 
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.Base64.Decoder;
 import java.util.Base64.Encoder;
-import java.util.prefs.BackingStoreException;
-import java.util.prefs.Preferences;
+import java.util.List;
+import java.util.zip.Deflater;
 
 public class CryptoHelper {
-  private static final Preferences preferences = initializePreferences();
-  static final String keyResourceIdUri = preferences.get("keyResourceIdUri",
-      "gcp-kms://projects/tink-test-infrastructure/locations/global/keyRings/unit-and-integration-testing/cryptoKeys/aead-key");
-  static final String kmsCredentialsFilename = preferences.get("kmsCredentialsFilename",
-      "kmsServiceAccountCredentials.json");
-  static final String keysetFilename = preferences.get("keysetFilename", "keyset.json");
-  static final String keysetFilenameClear = preferences.get("keysetFilenameClear", "keyset-clear.json");
-  static final String charsetName = "UTF-8";
+  static final String defaultKeyUri =
+      "gcp-kms://projects/tink-test-infrastructure/locations/global/keyRings/unit-and-integration-testing/cryptoKeys/aead-key";
   static final String authenticationText = "CryptoHelper";
+  private static CachingKmsClient defaultKmsClient;
 
+  private String keyUri;
+  private String keysetFilename;
+  private String keysetFilenameClear;
+  private String streamingKeysetFilename;
+  private String streamingKeysetFilenameClear;
+  private String deterministicKeysetFilename;
+  private String deterministicKeysetFilenameClear;
   private boolean writeKeyset = false;
   private boolean loadKeyset = false;
 
   private boolean writeClearKeyset = false;
-  private byte[] authentication = getAuthenticaton();
+  private int deterministicCacheSize = 10000;
+  private int compressionThreshold = Integer.MAX_VALUE;
+  private int compressionLevel = Deflater.BEST_SPEED;
+  private Instrumentation instrumentation = Instrumentation.noop;
+  private CachingKmsClient kmsClient;
+  final byte[] authentication = authenticationText.getBytes(StandardCharsets.UTF_8);
 
-  private Encoder encoder = Base64.getEncoder();
-  private Decoder decoder = Base64.getDecoder();
+  private final Encoder encoder = Base64.getEncoder();
+  private final Decoder decoder = Base64.getDecoder();
 
-  protected KeysetHandle keysetHandle;
-  protected Aead aead;
+  private final Object lock = new Object();
+  private volatile Primitives primitives;
+  private volatile StreamingPrimitives streamingPrimitives;
+  private volatile DeterministicPrimitives deterministicPrimitives;
 
-  public CryptoHelper() throws GeneralSecurityException {
-    TinkConfig.register();
-  }
-
-  private static Preferences initializePreferences() {
-    final String name = CryptoHelper.class.getCanonicalName();
-    Preferences preferences = Preferences.userNodeForPackage(CryptoHelper.class);
-    if (!preferences.getBoolean(name, false)) {
-      preferences.putBoolean(name, Boolean.TRUE);
-      try {
-        preferences.flush();
-      } catch (BackingStoreException e) {
-        e.printStackTrace();
+  /**
+   * Immutable pair of keyset and primitive. Instances are published once through the volatile
+   * {@code primitives} field, so readers never observe a keyset without its matching primitive.
+   */
+  private static final class Primitives {
+    final KeysetHandle keysetHandle;
+    final Aead aead;
+    final byte[] primaryPrefix;
+    private volatile int overhead = -1;
+
+    Primitives(KeysetHandle keysetHandle, Aead aead) throws GeneralSecurityException {
+      this.keysetHandle = keysetHandle;
+      this.aead = aead;
+      this.primaryPrefix = primaryPrefix(keysetHandle);
+    }
+
+    /**
+     * Bytes that the primary key adds to every plaintext, measured once on an empty one.
+     */
+    int overhead(byte[] associatedData) throws GeneralSecurityException {
+      int o = overhead;
+      if (o < 0) {
+        o = aead.encrypt(new byte[0], associatedData).length;
+        overhead = o;
       }
+      return o;
+    }
+  }
+
+  private static byte[] primaryPrefix(KeysetHandle keysetHandle) throws GeneralSecurityException {
+    Keyset keyset = CleartextKeysetHandle.getKeyset(keysetHandle);
+    for (Keyset.Key key : keyset.getKeyList()) {
+      if (key.getKeyId() == keyset.getPrimaryKeyId()) {
+        return CryptoFormat.getOutputPrefix(key);
+      }
+    }
+    throw new GeneralSecurityException("keyset has no primary key");
+  }
+
+  private static final class StreamingPrimitives {
+    final KeysetHandle keysetHandle;
+    final StreamingAead streamingAead;
+
+    StreamingPrimitives(KeysetHandle keysetHandle) throws GeneralSecurityException {
+      this.keysetHandle = keysetHandle;
+      this.streamingAead = keysetHandle.getPrimitive(StreamingAead.class);
+    }
+  }
+
+  private static final class DeterministicPrimitives {
+    final KeysetHandle keysetHandle;
+    final CachingDeterministicAead deterministicAead;
+
+    DeterministicPrimitives(KeysetHandle keysetHandle, int cacheSize) throws GeneralSecurityException {
+      this.keysetHandle = keysetHandle;
+      this.deterministicAead = new CachingDeterministicAead(keysetHandle.getPrimitive(DeterministicAead.class),
+          cacheSize);
+    }
+  }
+
+  /**
+   * Registers the AEAD primitives only. The streaming and deterministic ones are registered when their keysets
+   * are first used, which keeps them off the startup path of helpers that never need them.
+   */
+  public CryptoHelper() throws GeneralSecurityException {
+    AeadConfig.register();
+  }
+
+  /**
+   * Cloud KMS key that protects the keysets, instead of the {@code keyResourceIdUri} setting.
+   */
+  public CryptoHelper keyUri(String uri) {
+    keyUri = uri;
+    return this;
+  }
+
+  public String getKeyUri() {
+    if (keyUri == null) {
+      keyUri = Settings.get("keyResourceIdUri", defaultKeyUri);
+    }
+    return keyUri;
+  }
+
+  /**
+   * File of the encrypted keyset, instead of the {@code keysetFilename} setting. The clear-text copy goes next to
+   * it with a {@code -clear} suffix.
+   */
+  public CryptoHelper keysetFile(String filename) {
+    keysetFilename = filename;
+    keysetFilenameClear = clearFilename(filename);
+    return this;
+  }
+
+  public CryptoHelper streamingKeysetFile(String filename) {
+    streamingKeysetFilename = filename;
+    streamingKeysetFilenameClear = clearFilename(filename);
+    return this;
+  }
+
+  public CryptoHelper deterministicKeysetFile(String filename) {
+    deterministicKeysetFilename = filename;
+    deterministicKeysetFilenameClear = clearFilename(filename);
+    return this;
+  }
+
+  private static String clearFilename(String filename) {
+    int dot = filename.lastIndexOf('.');
+    return dot > 0 ? filename.substring(0, dot) + "-clear" + filename.substring(dot) : filename + "-clear";
+  }
+
+  private String keysetFilename() {
+    if (keysetFilename == null) {
+      keysetFilename = Settings.get("keysetFilename", "keyset.json");
+    }
+    return keysetFilename;
+  }
+
+  private String keysetFilenameClear() {
+    if (keysetFilenameClear == null) {
+      keysetFilenameClear = Settings.get("keysetFilenameClear", "keyset-clear.json");
+    }
+    return keysetFilenameClear;
+  }
+
+  private String streamingKeysetFilename() {
+    if (streamingKeysetFilename == null) {
+      streamingKeysetFilename = Settings.get("streamingKeysetFilename", "streaming-keyset.json");
+    }
+    return streamingKeysetFilename;
+  }
+
+  private String streamingKeysetFilenameClear() {
+    if (streamingKeysetFilenameClear == null) {
+      streamingKeysetFilenameClear = Settings.get("streamingKeysetFilenameClear", "streaming-keyset-clear.json");
+    }
+    return streamingKeysetFilenameClear;
+  }
+
+  private String deterministicKeysetFilename() {
+    if (deterministicKeysetFilename == null) {
+      deterministicKeysetFilename = Settings.get("deterministicKeysetFilename", "deterministic-keyset.json");
     }
-    return preferences;
+    return deterministicKeysetFilename;
+  }
+
+  private String deterministicKeysetFilenameClear() {
+    if (deterministicKeysetFilenameClear == null) {
+      deterministicKeysetFilenameClear = Settings.get("deterministicKeysetFilenameClear",
+          "deterministic-keyset-clear.json");
+    }
+    return deterministicKeysetFilenameClear;
   }
 
   public CryptoHelper loadKeyset(boolean flag) {
@@ -97,117 +259,553 @@ public class CryptoHelper {
     return this;
   }
 
+  /**
+   * Reports encryption, decryption, keyset loads and KMS calls to {@code instrumentation}, and Redis batches of
+   * helpers built on this one. Set it before first use, keysets that are already loaded do not report KMS calls.
+   */
+  public CryptoHelper instrumentation(Instrumentation instrumentation) {
+    this.instrumentation = instrumentation;
+    return this;
+  }
+
+  public Instrumentation getInstrumentation() {
+    return instrumentation;
+  }
+
+  /**
+   * Compresses plaintexts of at least {@code bytes} bytes with Deflate before they are encrypted, if that makes
+   * them smaller; a negative value turns compression off. Decryption inflates compressed payloads either way, so
+   * helpers with and without this option read each other's data. The ciphertext length then reveals how well
+   * the plaintext compresses, as in CRIME and BREACH, so leave it off for values that mix attacker-controlled
+   * input with secrets.
+   */
+  public CryptoHelper compressAbove(int bytes) {
+    compressionThreshold = bytes < 0 ? Integer.MAX_VALUE : bytes;
+    return this;
+  }
+
+  /**
+   * Deflate level from 1 (fastest, the default) to 9 (smallest) used by {@link #compressAbove}.
+   */
+  public CryptoHelper compressionLevel(int level) {
+    compressionLevel = level;
+    return this;
+  }
+
+  /**
+   * Number of deterministic ciphertexts kept for repeated plaintexts, 0 disables the cache. Takes effect when the
+   * deterministic keyset is loaded.
+   */
+  public CryptoHelper deterministicCacheSize(int entries) {
+    deterministicCacheSize = Math.max(0, entries);
+    return this;
+  }
+
+  /**
+   * Uses {@code client} instead of Cloud KMS. Pass the same {@link CachingKmsClient} to several helpers to let
+   * them share the resolved key-encryption keys.
+   */
+  public CryptoHelper withKmsClient(KmsClient client) {
+    kmsClient = client instanceof CachingKmsClient ? (CachingKmsClient) client : new CachingKmsClient(client);
+    return this;
+  }
+
   public KmsClient getKmsClient() throws GeneralSecurityException {
-    File credentials = new File(kmsCredentialsFilename);
-    if (credentials.exists()) {
-      return new GcpKmsClient().withCredentials(kmsCredentialsFilename);
+    return cachingKmsClient();
+  }
+
+  private CachingKmsClient cachingKmsClient() throws GeneralSecurityException {
+    return kmsClient != null ? kmsClient : getDefaultKmsClient();
+  }
+
+  /**
+   * The Cloud KMS client shared by all helpers without an explicit client. Credentials are loaded on first use.
+   */
+  private static synchronized CachingKmsClient getDefaultKmsClient() throws GeneralSecurityException {
+    if (defaultKmsClient == null) {
+      String kmsCredentialsFilename = Settings.get("kmsCredentialsFilename", "kmsServiceAccountCredentials.json");
+      File credentials = new File(kmsCredentialsFilename);
+      if (credentials.exists()) {
+        defaultKmsClient = new CachingKmsClient(new GcpKmsClient().withCredentials(kmsCredentialsFilename));
+      } else {
+        defaultKmsClient = new CachingKmsClient(new GcpKmsClient());
+      }
+    }
+    return defaultKmsClient;
+  }
+
+  private Aead getKeyEncryptionKey() throws GeneralSecurityException {
+    return resolveKeyEncryptionKey(cachingKmsClient(), getKeyUri());
+  }
+
+  /**
+   * Resolves {@code keyUri} with {@code client}. With instrumentation the lookup is reported as
+   * {@code KMS_CLIENT} and every call to the returned key as {@code KMS_CALL}.
+   */
+  Aead resolveKeyEncryptionKey(KmsClient client, String keyUri) throws GeneralSecurityException {
+    if (!instrumentation.isEnabled()) {
+      return client.getAead(keyUri);
+    }
+    long start = System.nanoTime();
+    try {
+      Aead kek = client.getAead(keyUri);
+      instrumentation.record(Instrumentation.Operation.KMS_CLIENT, 1, 0, System.nanoTime() - start);
+      return InstrumentedAead.wrap(kek, instrumentation, Instrumentation.Operation.KMS_CALL);
+    } catch (GeneralSecurityException | RuntimeException e) {
+      instrumentation.failure(Instrumentation.Operation.KMS_CLIENT, e);
+      throw e;
     }
-    return new GcpKmsClient();
   }
 
   protected KeysetHandle useExistingKeyset() throws IOException, GeneralSecurityException {
+    return useExistingKeyset(keysetFilename());
+  }
+
+  private KeysetHandle useExistingKeyset(String filename) throws IOException, GeneralSecurityException {
     if (loadKeyset) {
-      File keyset = new File(keysetFilename);
+      File keyset = new File(filename);
       if (keyset.exists()) {
-        return KeysetHandle.read(JsonKeysetReader.withFile(keyset), //
-            getKmsClient().getAead(keyResourceIdUri));
+        return KeysetHandle.read(JsonKeysetReader.withFile(keyset), getKeyEncryptionKey());
       }
     }
     return null;
   }
 
   protected void write(KeysetHandle k) throws IOException, GeneralSecurityException {
+    write(k, keysetFilename(), keysetFilenameClear());
+  }
+
+  private void write(KeysetHandle k, String filename, String filenameClear)
+      throws IOException, GeneralSecurityException {
     if (writeKeyset) {
-      File keyset = new File(keysetFilename);
-      k.write(JsonKeysetWriter.withFile(keyset), getKmsClient().getAead(keyResourceIdUri));
+      File keyset = new File(filename);
+      k.write(JsonKeysetWriter.withFile(keyset), getKeyEncryptionKey());
     }
     if (writeClearKeyset) {
-      File keysetClear = new File(keysetFilenameClear);
+      File keysetClear = new File(filenameClear);
       CleartextKeysetHandle.write(k, JsonKeysetWriter.withFile(keysetClear));
     }
   }
 
   public void write(OutputStream output) throws GeneralSecurityException, IOException {
-    getAead();
-    keysetHandle.write(JsonKeysetWriter.withOutputStream(output), //
-        getKmsClient().getAead(keyResourceIdUri));
+    getKeysetHandle().write(JsonKeysetWriter.withOutputStream(output), getKeyEncryptionKey());
   }
 
   public void setEncodedKeysetHandle(String keysetBase64String) //
       throws GeneralSecurityException, IOException {
+    long start = System.nanoTime();
     byte[] k = decoder.decode(keysetBase64String);
-    keysetHandle = KeysetHandle.read(JsonKeysetReader.withBytes(k), //
-        getKmsClient().getAead(keyResourceIdUri));
+    KeysetHandle keysetHandle = KeysetHandle.read(JsonKeysetReader.withBytes(k), getKeyEncryptionKey());
+    synchronized (lock) {
+      registerKmsClient();
+      primitives = new Primitives(keysetHandle, newAead(keysetHandle));
+    }
+    instrumentation.record(Instrumentation.Operation.KEYSET_LOAD, 1, k.length, System.nanoTime() - start);
   }
 
   public String getEncodedKeysetHandle() throws GeneralSecurityException, IOException {
-    getAead();
-    PipedOutputStream pos = new PipedOutputStream();
-    BufferedOutputStream bos = new BufferedOutputStream(pos);
-    PipedInputStream pis = new PipedInputStream(pos);
-    keysetHandle.write(JsonKeysetWriter.withOutputStream(bos), //
-        getKmsClient().getAead(keyResourceIdUri));
-    bos.close();
-    byte[] b = pis.readAllBytes();
-    pis.close();
-    return encoder.encodeToString(b);
-  }
-
-  private byte[] getAuthenticaton() {
-    if (authentication == null) {
-      try {
-        authentication = authenticationText.getBytes(charsetName);
-      } catch (Exception e) {
-        return null;
-      }
+    ByteArrayOutputStream b = new ByteArrayOutputStream();
+    write(b);
+    return encoder.encodeToString(b.toByteArray());
+  }
+
+  public void setEncodedStreamingKeysetHandle(String keysetBase64String)
+      throws GeneralSecurityException, IOException {
+    byte[] k = decoder.decode(keysetBase64String);
+    KeysetHandle keysetHandle = KeysetHandle.read(JsonKeysetReader.withBytes(k), getKeyEncryptionKey());
+    synchronized (lock) {
+      streamingPrimitives = new StreamingPrimitives(keysetHandle);
+    }
+  }
+
+  public String getEncodedStreamingKeysetHandle() throws GeneralSecurityException, IOException {
+    ByteArrayOutputStream b = new ByteArrayOutputStream();
+    getStreamingPrimitives().keysetHandle.write(JsonKeysetWriter.withOutputStream(b), getKeyEncryptionKey());
+    return encoder.encodeToString(b.toByteArray());
+  }
+
+  public void setEncodedDeterministicKeysetHandle(String keysetBase64String)
+      throws GeneralSecurityException, IOException {
+    byte[] k = decoder.decode(keysetBase64String);
+    KeysetHandle keysetHandle = KeysetHandle.read(JsonKeysetReader.withBytes(k), getKeyEncryptionKey());
+    synchronized (lock) {
+      deterministicPrimitives = new DeterministicPrimitives(keysetHandle, deterministicCacheSize);
+    }
+  }
+
+  public String getEncodedDeterministicKeysetHandle() throws GeneralSecurityException, IOException {
+    ByteArrayOutputStream b = new ByteArrayOutputStream();
+    getDeterministicPrimitives().keysetHandle.write(JsonKeysetWriter.withOutputStream(b), getKeyEncryptionKey());
+    return encoder.encodeToString(b.toByteArray());
+  }
+
+  /**
+   * Returns a stream that encrypts everything written to it into {@code ciphertext} one segment at a time, so
+   * memory use does not grow with the size of the payload. The ciphertext is complete once the stream is closed.
+   */
+  public OutputStream encryptingStream(OutputStream ciphertext) throws GeneralSecurityException, IOException {
+    return getStreamingAead().newEncryptingStream(ciphertext, authentication);
+  }
+
+  public InputStream decryptingStream(InputStream ciphertext) throws GeneralSecurityException, IOException {
+    return getStreamingAead().newDecryptingStream(ciphertext, authentication);
+  }
+
+  public WritableByteChannel encryptingChannel(WritableByteChannel ciphertext)
+      throws GeneralSecurityException, IOException {
+    return getStreamingAead().newEncryptingChannel(ciphertext, authentication);
+  }
+
+  /**
+   * Returns a channel over the plaintext of {@code ciphertext} that supports random access and only decrypts
+   * the segments that are read.
+   */
+  public SeekableByteChannel decryptingChannel(SeekableByteChannel ciphertext)
+      throws GeneralSecurityException, IOException {
+    return getStreamingAead().newSeekableDecryptingChannel(ciphertext, authentication);
+  }
+
+  /**
+   * Encrypts the file {@code plaintext} into {@code ciphertext} with the streaming keyset and returns the number
+   * of plaintext bytes.
+   */
+  public long encrypt(Path plaintext, Path ciphertext) throws GeneralSecurityException, IOException {
+    try (InputStream in = Files.newInputStream(plaintext);
+        OutputStream out = encryptingStream(Files.newOutputStream(ciphertext))) {
+      return in.transferTo(out);
+    }
+  }
+
+  public long decrypt(Path ciphertext, Path plaintext) throws GeneralSecurityException, IOException {
+    try (InputStream in = decryptingStream(Files.newInputStream(ciphertext));
+        OutputStream out = Files.newOutputStream(plaintext)) {
+      return in.transferTo(out);
+    }
+  }
+
+  public byte[] encryptToBytes(byte[] plaintext) throws GeneralSecurityException, IOException {
+    return encryptToBytes(plaintext, authentication);
+  }
+
+  public byte[] decryptToBytes(byte[] ciphertext) throws GeneralSecurityException, IOException {
+    return decryptToBytes(ciphertext, authentication);
+  }
+
+  /**
+   * Returns a copy of the associated data used when none is given.
+   */
+  public byte[] getAssociatedData() {
+    return authentication.clone();
+  }
+
+  /**
+   * Encrypts with {@code associatedData} instead of the default, which binds the ciphertext to a context such as
+   * a column name. It can only be decrypted with the same associated data.
+   */
+  public byte[] encryptToBytes(byte[] plaintext, byte[] associatedData) throws GeneralSecurityException, IOException {
+    if (!instrumentation.isEnabled()) {
+      return compressAndEncrypt(plaintext, associatedData);
+    }
+    long start = System.nanoTime();
+    try {
+      byte[] ciphertext = compressAndEncrypt(plaintext, associatedData);
+      instrumentation.record(Instrumentation.Operation.ENCRYPT, 1, plaintext.length, System.nanoTime() - start);
+      return ciphertext;
+    } catch (GeneralSecurityException | RuntimeException e) {
+      instrumentation.failure(Instrumentation.Operation.ENCRYPT, e);
+      throw e;
+    }
+  }
+
+  public byte[] decryptToBytes(byte[] ciphertext, byte[] associatedData)
+      throws GeneralSecurityException, IOException {
+    if (!instrumentation.isEnabled()) {
+      return decryptAndInflate(ciphertext, associatedData);
+    }
+    long start = System.nanoTime();
+    try {
+      byte[] plaintext = decryptAndInflate(ciphertext, associatedData);
+      instrumentation.record(Instrumentation.Operation.DECRYPT, 1, plaintext.length, System.nanoTime() - start);
+      return plaintext;
+    } catch (GeneralSecurityException | RuntimeException e) {
+      instrumentation.failure(Instrumentation.Operation.DECRYPT, e);
+      throw e;
+    }
+  }
+
+  private byte[] compressAndEncrypt(byte[] plaintext, byte[] associatedData)
+      throws GeneralSecurityException, IOException {
+    byte[] payload = plaintext.length < compressionThreshold ? null : Compression.compress(plaintext, compressionLevel);
+    if (payload == null) {
+      return getAead().encrypt(plaintext, associatedData);
+    }
+    return Compression.mark(getAead().encrypt(payload, Compression.associatedData(associatedData)));
+  }
+
+  private byte[] decryptAndInflate(byte[] ciphertext, byte[] associatedData)
+      throws GeneralSecurityException, IOException {
+    if (!Compression.isCompressed(ciphertext)) {
+      return getAead().decrypt(ciphertext, associatedData);
+    }
+    byte[] payload = Arrays.copyOfRange(ciphertext, 1, ciphertext.length);
+    return Compression.decompress(getAead().decrypt(payload, Compression.associatedData(associatedData)));
+  }
+
+  /**
+   * Encrypts with the deterministic keyset: equal plaintexts give equal ciphertexts, so the result can be used
+   * as a lookup key or join column. This reveals which values are equal and should be kept to identifiers.
+   */
+  public byte[] encryptDeterministically(byte[] plaintext, byte[] associatedData)
+      throws GeneralSecurityException, IOException {
+    return getDeterministicAead().encryptDeterministically(plaintext, associatedData);
+  }
+
+  public byte[] decryptDeterministically(byte[] ciphertext, byte[] associatedData)
+      throws GeneralSecurityException, IOException {
+    return getDeterministicAead().decryptDeterministically(ciphertext, associatedData);
+  }
+
+  /**
+   * Decrypts many ciphertexts at once and returns the plaintexts in the same order. Subclasses may share remote
+   * work between the ciphertexts; this implementation decrypts them one by one.
+   */
+  public List<byte[]> decryptAll(List<byte[]> ciphertexts) throws GeneralSecurityException, IOException {
+    List<byte[]> plaintexts = new ArrayList<byte[]>(ciphertexts.size());
+    for (byte[] c : ciphertexts) {
+      plaintexts.add(decryptToBytes(c));
+    }
+    return plaintexts;
+  }
+
+  /**
+   * Returns the largest ciphertext that {@link #encrypt(ByteBuffer, ByteBuffer)} writes for {@code plaintextSize}
+   * bytes under the current primary key, to size its destination.
+   */
+  public int ciphertextSize(int plaintextSize) throws GeneralSecurityException, IOException {
+    return plaintextSize + getPrimitives().overhead(authentication);
+  }
+
+  /**
+   * Encrypts the remaining bytes of {@code plaintext} into {@code ciphertext} and returns the number of bytes
+   * written. If {@code ciphertext} has less room than {@link #ciphertextSize}, a BufferOverflowException is thrown
+   * before anything is read. A heap buffer that spans its whole backing array is passed to Tink without copying;
+   * Tink returns the ciphertext as an array, which is copied into the destination. Both buffers keep their
+   * positions if encryption fails.
+   */
+  public int encrypt(ByteBuffer plaintext, ByteBuffer ciphertext) throws GeneralSecurityException, IOException {
+    if (ciphertext.remaining() < ciphertextSize(plaintext.remaining())) {
+      throw new BufferOverflowException();
     }
-    return authentication;
+    byte[] c = encryptToBytes(remaining(plaintext.duplicate()));
+    ciphertext.put(c);
+    plaintext.position(plaintext.limit());
+    return c.length;
+  }
+
+  /**
+   * Decrypts the remaining bytes of {@code ciphertext} into {@code plaintext} and returns the number of bytes
+   * written. The plaintext of a compressed value can be larger than its ciphertext; if it does not fit, a
+   * BufferOverflowException is thrown. Both buffers keep their positions if decryption fails.
+   */
+  public int decrypt(ByteBuffer ciphertext, ByteBuffer plaintext) throws GeneralSecurityException, IOException {
+    byte[] p = decryptToBytes(remaining(ciphertext.duplicate()));
+    if (plaintext.remaining() < p.length) {
+      throw new BufferOverflowException();
+    }
+    plaintext.put(p);
+    ciphertext.position(ciphertext.limit());
+    return p.length;
+  }
+
+  /**
+   * Returns the raw ciphertext of a value that was stored either as raw bytes or as Base64 text. Tink
+   * ciphertexts start with the prefix byte 0x01 (or 0x00 for legacy keys), and compressed ones with 0xC1, none of
+   * which occur in Base64, so both formats can be read side by side while data is migrated.
+   */
+  public byte[] decodeCiphertext(byte[] value) {
+    return isRawCiphertext(value) ? value : decoder.decode(value);
+  }
+
+  public static boolean isRawCiphertext(byte[] value) {
+    return value.length > 0 && (value[0] == CryptoFormat.TINK_START_BYTE || value[0] == CryptoFormat.LEGACY_START_BYTE
+        || value[0] == Compression.marker);
+  }
+
+  private static byte[] remaining(ByteBuffer buffer) {
+    if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+        && buffer.limit() == buffer.array().length) {
+      buffer.position(buffer.limit());
+      return buffer.array();
+    }
+    byte[] b = new byte[buffer.remaining()];
+    buffer.get(b);
+    return b;
   }
 
   public String encrypt(String text) //
       throws GeneralSecurityException, IOException, NullPointerException {
-    Aead a = getAead();
-    byte[] data = text.getBytes(charsetName);
-    byte[] ciphertext = a.encrypt(data, authentication);
-    return encoder.encodeToString(ciphertext);
+    return encoder.encodeToString(encryptToBytes(text));
   }
 
   public byte[] encryptToBytes(String plaintext) //
       throws GeneralSecurityException, IOException, NullPointerException {
-    return getAead().encrypt(plaintext.getBytes(charsetName), authentication);
+    return encryptToBytes(plaintext.getBytes(StandardCharsets.UTF_8));
   }
 
   public String decrypt(byte[] ciphertext) //
       throws NullPointerException, GeneralSecurityException, IOException {
-    byte[] clearText = getAead().decrypt(ciphertext, authentication);
-    return new String(clearText, charsetName);
+    return new String(decryptToBytes(ciphertext), StandardCharsets.UTF_8);
   }
 
   public String decrypt(String ciphertext)
       throws UnsupportedEncodingException, GeneralSecurityException, NullPointerException, IOException {
-    byte[] c = decoder.decode(ciphertext);
-    byte[] clearText = getAead().decrypt(c, authentication);
-    return new String(clearText, charsetName);
+    return decrypt(decoder.decode(ciphertext));
+  }
+
+  protected KeysetHandle newKeysetHandle() throws GeneralSecurityException {
+    return KeysetHandle.generateNew(keyTemplate());
   }
 
-  protected KeysetHandle getKeysetHandle() throws GeneralSecurityException {
-    if (keysetHandle == null) {
-      keysetHandle = KeysetHandle.generateNew(AeadKeyTemplates.createAesGcmKeyTemplate(256 / 8));
+  /**
+   * Template of the keys in the keyset, used for a new keyset and by {@link #rotateKeyset}.
+   */
+  protected KeyTemplate keyTemplate() {
+    return AeadKeyTemplates.createAesGcmKeyTemplate(256 / 8);
+  }
+
+  /**
+   * Adds a new key to the keyset and makes it the primary, and returns its id. New ciphertexts use the new key,
+   * while those of the earlier keys stay readable for as long as the keys remain in the keyset.
+   */
+  public int rotateKeyset() throws GeneralSecurityException, IOException {
+    synchronized (lock) {
+      KeysetManager manager = KeysetManager.withKeysetHandle(getKeysetHandle());
+      int keyId = manager.addNewKey(keyTemplate(), true);
+      KeysetHandle k = manager.getKeysetHandle();
+      write(k);
+      primitives = new Primitives(k, newAead(k));
+      return keyId;
     }
-    return keysetHandle;
+  }
+
+  public int getPrimaryKeyId() throws GeneralSecurityException, IOException {
+    return getKeysetHandle().getKeysetInfo().getPrimaryKeyId();
+  }
+
+  /**
+   * Whether {@code ciphertext} carries the output prefix of the primary key, i.e. was encrypted with the key that
+   * new ciphertexts use. Always false for keys without a prefix.
+   */
+  public boolean isEncryptedWithPrimary(byte[] ciphertext) throws GeneralSecurityException, IOException {
+    byte[] prefix = getPrimitives().primaryPrefix;
+    int offset = Compression.isCompressed(ciphertext) ? 1 : 0;
+    return prefix.length > 0 && ciphertext.length >= offset + prefix.length
+        && Arrays.equals(ciphertext, offset, offset + prefix.length, prefix, 0, prefix.length);
+  }
+
+  /**
+   * Builds the primitive for a keyset once it has been loaded or generated, after installing the JCE provider of
+   * the {@code cryptoProvider} setting.
+   */
+  protected Aead newAead(KeysetHandle keysetHandle) throws GeneralSecurityException {
+    CryptoProviders.preferConfigured();
+    return keysetHandle.getPrimitive(Aead.class);
+  }
+
+  /**
+   * Generates the keyset of the streaming mode: AES-256-GCM-HKDF with 1MB segments.
+   */
+  protected KeysetHandle newStreamingKeysetHandle() throws GeneralSecurityException {
+    return KeysetHandle.generateNew(
+        StreamingAeadKeyTemplates.createAesGcmHkdfStreamingKeyTemplate(256 / 8, HashType.SHA256, 256 / 8, 1 << 20));
+  }
+
+  /**
+   * Generates the keyset of the deterministic mode: AES-256-SIV.
+   */
+  protected KeysetHandle newDeterministicKeysetHandle() throws GeneralSecurityException {
+    return KeysetHandle.generateNew(DeterministicAeadKeyTemplates.AES256_SIV);
+  }
+
+  public CachingDeterministicAead getDeterministicAead() throws GeneralSecurityException, IOException {
+    return getDeterministicPrimitives().deterministicAead;
+  }
+
+  private DeterministicPrimitives getDeterministicPrimitives() throws GeneralSecurityException, IOException {
+    DeterministicPrimitives p = deterministicPrimitives;
+    if (p == null) {
+      synchronized (lock) {
+        p = deterministicPrimitives;
+        if (p == null) {
+          DeterministicAeadConfig.register();
+          KeysetHandle k = useExistingKeyset(deterministicKeysetFilename());
+          if (k == null) {
+            k = newDeterministicKeysetHandle();
+            write(k, deterministicKeysetFilename(), deterministicKeysetFilenameClear());
+          }
+          p = new DeterministicPrimitives(k, deterministicCacheSize);
+          deterministicPrimitives = p;
+        }
+      }
+    }
+    return p;
+  }
+
+  public StreamingAead getStreamingAead() throws GeneralSecurityException, IOException {
+    return getStreamingPrimitives().streamingAead;
+  }
+
+  private StreamingPrimitives getStreamingPrimitives() throws GeneralSecurityException, IOException {
+    StreamingPrimitives p = streamingPrimitives;
+    if (p == null) {
+      synchronized (lock) {
+        p = streamingPrimitives;
+        if (p == null) {
+          StreamingAeadConfig.register();
+          KeysetHandle k = useExistingKeyset(streamingKeysetFilename());
+          if (k == null) {
+            k = newStreamingKeysetHandle();
+            write(k, streamingKeysetFilename(), streamingKeysetFilenameClear());
+          }
+          p = new StreamingPrimitives(k);
+          streamingPrimitives = p;
+        }
+      }
+    }
+    return p;
+  }
+
+  protected KeysetHandle getKeysetHandle() throws GeneralSecurityException, IOException {
+    return getPrimitives().keysetHandle;
   }
 
   public Aead getAead() throws java.security.GeneralSecurityException, IOException, NullPointerException {
-    if (aead == null) {
-      KeysetHandle k = useExistingKeyset();
-      if (k == null) {
-        k = getKeysetHandle();
-        write(k);
+    return getPrimitives().aead;
+  }
+
+  private Primitives getPrimitives() throws GeneralSecurityException, IOException {
+    Primitives p = primitives;
+    if (p == null) {
+      synchronized (lock) {
+        p = primitives;
+        if (p == null) {
+          long start = System.nanoTime();
+          KeysetHandle k = useExistingKeyset();
+          if (k == null) {
+            k = newKeysetHandle();
+            write(k);
+          }
+          registerKmsClient();
+          p = new Primitives(k, newAead(k));
+          primitives = p;
+          instrumentation.record(Instrumentation.Operation.KEYSET_LOAD, 1, 0, System.nanoTime() - start);
+        }
       }
-      KmsClients.add(getKmsClient());
-      aead = k.getPrimitive(Aead.class);
-      keysetHandle = k;
     }
-    return aead;
+    return p;
+  }
+
+  private void registerKmsClient() throws GeneralSecurityException {
+    cachingKmsClient().register();
   }
 }
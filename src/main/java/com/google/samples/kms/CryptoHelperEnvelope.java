@@ -16,22 +16,353 @@
 
 package com.google.samples.kms;
 
+import com.google.crypto.tink.Aead;
+import com.google.crypto.tink.CleartextKeysetHandle;
+import com.google.crypto.tink.CryptoFormat;
 import com.google.crypto.tink.KeysetHandle;
+import com.google.crypto.tink.KmsClient;
+import com.google.crypto.tink.KmsClients;
 import com.google.crypto.tink.aead.AeadKeyTemplates;
+import com.google.crypto.tink.proto.KeyStatusType;
+import com.google.crypto.tink.proto.KeyTemplate;
+import com.google.crypto.tink.proto.Keyset;
+import com.google.crypto.tink.proto.KmsEnvelopeAeadKey;
+import com.google.crypto.tink.proto.KmsEnvelopeAeadKeyFormat;
+import com.google.protobuf.InvalidProtocolBufferException;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class CryptoHelperEnvelope extends CryptoHelper {
+  private static final String kmsEnvelopeAeadKeyTypeUrl = "type.googleapis.com/google.crypto.tink.KmsEnvelopeAeadKey";
+  private static final int parallelDecryptThreshold = 256;
+
+  private boolean reuseDataKey = false;
+  private long dataKeyMaxMessages;
+  private long dataKeyMaxBytes;
+  private long dataKeyMaxAgeNanos;
+  private int dataKeyCacheSize = 1000;
+  private int unwrapConcurrency = 8;
+  private ThreadPoolExecutor unwrapExecutor;
+
   public CryptoHelperEnvelope() throws GeneralSecurityException {
     super();
   }
 
+  /**
+   * Encrypts with one data key until it has been used for {@code maxMessages} messages, {@code maxBytes} bytes of
+   * plaintext or for {@code maxAge}, instead of wrapping a new key with KMS for every message. The ciphertexts
+   * stay readable by helpers without this option. Must be set before the first use.
+   */
+  public CryptoHelperEnvelope reuseDataKey(long maxMessages, long maxBytes, long maxAge, TimeUnit unit) {
+    reuseDataKey = true;
+    dataKeyMaxMessages = maxMessages;
+    dataKeyMaxBytes = maxBytes;
+    dataKeyMaxAgeNanos = unit.toNanos(maxAge);
+    return this;
+  }
+
+  /**
+   * Number of unwrapped data keys kept for decryption when {@link #reuseDataKey} is set.
+   */
+  public CryptoHelperEnvelope dataKeyCacheSize(int keys) {
+    dataKeyCacheSize = keys;
+    return this;
+  }
+
+  /**
+   * Maximum number of concurrent KMS calls made by {@link #decryptAll}.
+   */
+  public synchronized CryptoHelperEnvelope unwrapConcurrency(int calls) {
+    unwrapConcurrency = Math.max(1, calls);
+    if (unwrapExecutor != null) {
+      unwrapExecutor.shutdown();
+      unwrapExecutor = null;
+    }
+    return this;
+  }
+
+  private synchronized ThreadPoolExecutor unwrapExecutor() {
+    if (unwrapExecutor == null) {
+      unwrapExecutor = new ThreadPoolExecutor(unwrapConcurrency, unwrapConcurrency, 30, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), r -> {
+            Thread t = new Thread(r, "crypto-helper-unwrap");
+            t.setDaemon(true);
+            return t;
+          });
+      unwrapExecutor.allowCoreThreadTimeOut(true);
+    }
+    return unwrapExecutor;
+  }
+
+  @Override
+  protected KeyTemplate keyTemplate() {
+    return AeadKeyTemplates.createKmsEnvelopeAeadKeyTemplate(getKeyUri(), AeadKeyTemplates.AES256_GCM);
+  }
+
+  @Override
+  protected Aead newAead(KeysetHandle keysetHandle) throws GeneralSecurityException {
+    Aead keysetAead = super.newAead(keysetHandle);
+    if (!reuseDataKey) {
+      return keysetAead;
+    }
+    Keyset keyset = CleartextKeysetHandle.getKeyset(keysetHandle);
+    Map<ByteBuffer, CachingEnvelopeAead> envelopes = envelopes(keyset, dataKeyCacheSize);
+    for (Keyset.Key key : keyset.getKeyList()) {
+      if (key.getKeyId() == keyset.getPrimaryKeyId()) {
+        ByteBuffer prefix = ByteBuffer.wrap(CryptoFormat.getOutputPrefix(key));
+        if (envelopes.containsKey(prefix)) {
+          return new EnvelopeKeysetAead(prefix, envelopes, keysetAead);
+        }
+      }
+    }
+    return new EnvelopeKeysetAead(null, envelopes, keysetAead);
+  }
+
+  /**
+   * Maps the output prefix of every enabled KMS envelope key in {@code keyset} to an envelope primitive.
+   */
+  private Map<ByteBuffer, CachingEnvelopeAead> envelopes(Keyset keyset, int cacheSize)
+      throws GeneralSecurityException {
+    Map<ByteBuffer, CachingEnvelopeAead> envelopes = new HashMap<ByteBuffer, CachingEnvelopeAead>();
+    for (Keyset.Key key : keyset.getKeyList()) {
+      if (key.getStatus() == KeyStatusType.ENABLED
+          && kmsEnvelopeAeadKeyTypeUrl.equals(key.getKeyData().getTypeUrl())) {
+        KmsEnvelopeAeadKeyFormat params;
+        try {
+          params = KmsEnvelopeAeadKey.parseFrom(key.getKeyData().getValue()).getParams();
+        } catch (InvalidProtocolBufferException e) {
+          throw new GeneralSecurityException("invalid KmsEnvelopeAeadKey", e);
+        }
+        CachingEnvelopeAead envelope = new CachingEnvelopeAead(params.getDekTemplate(),
+            getKeyEncryptionKey(params.getKekUri())).maxMessages(dataKeyMaxMessages).maxBytes(dataKeyMaxBytes)
+                .maxAge(dataKeyMaxAgeNanos, TimeUnit.NANOSECONDS).cacheSize(cacheSize);
+        envelopes.put(ByteBuffer.wrap(CryptoFormat.getOutputPrefix(key)), envelope);
+      }
+    }
+    return envelopes;
+  }
+
+  /**
+   * Resolves {@code kekUri} with this helper's client, or with the globally registered clients if it does not
+   * support the URI.
+   */
+  private Aead getKeyEncryptionKey(String kekUri) throws GeneralSecurityException {
+    KmsClient client = getKmsClient();
+    return resolveKeyEncryptionKey(client.doesSupport(kekUri) ? client : KmsClients.get(kekUri), kekUri);
+  }
+
+  private static ByteBuffer prefix(byte[] ciphertext) {
+    return ciphertext.length > CryptoFormat.NON_RAW_PREFIX_SIZE
+        ? ByteBuffer.wrap(ciphertext, 0, CryptoFormat.NON_RAW_PREFIX_SIZE)
+        : null;
+  }
+
+  /**
+   * Decrypts {@code ciphertexts} with one KMS call per distinct data key. At most {@code unwrapConcurrency} of
+   * these calls run at the same time. The payloads are then decrypted locally in parallel. Ciphertexts of other
+   * key types fall back to {@link #decryptToBytes}.
+   */
   @Override
-  protected KeysetHandle getKeysetHandle() throws GeneralSecurityException {
-    if (super.keysetHandle == null) {
-      super.keysetHandle = KeysetHandle.generateNew(
-          AeadKeyTemplates.createKmsEnvelopeAeadKeyTemplate(keyResourceIdUri, AeadKeyTemplates.AES256_GCM));
+  public List<byte[]> decryptAll(List<byte[]> ciphertexts) throws GeneralSecurityException, IOException {
+    Instrumentation instrumentation = getInstrumentation();
+    if (!instrumentation.isEnabled()) {
+      return decryptBatch(ciphertexts);
+    }
+    long start = System.nanoTime();
+    try {
+      List<byte[]> plaintexts = decryptBatch(ciphertexts);
+      long bytes = 0;
+      for (byte[] p : plaintexts) {
+        bytes += p.length;
+      }
+      instrumentation.record(Instrumentation.Operation.DECRYPT, ciphertexts.size(), bytes, System.nanoTime() - start);
+      return plaintexts;
+    } catch (GeneralSecurityException | IOException | RuntimeException e) {
+      instrumentation.failure(Instrumentation.Operation.DECRYPT, e);
+      throw e;
+    }
+  }
+
+  private List<byte[]> decryptBatch(List<byte[]> ciphertexts) throws GeneralSecurityException, IOException {
+    final Aead aead = getAead();
+    Map<ByteBuffer, CachingEnvelopeAead> envelopes = aead instanceof EnvelopeKeysetAead
+        ? ((EnvelopeKeysetAead) aead).envelopes
+        : envelopes(CleartextKeysetHandle.getKeyset(getKeysetHandle()), 1);
+    final int n = ciphertexts.size();
+    final byte[][] input = ciphertexts.toArray(new byte[0][]);
+    final boolean[] compressed = new boolean[n];
+    final ByteBuffer[] encryptedDeks = new ByteBuffer[n];
+    Map<ByteBuffer, CachingEnvelopeAead> distinct = new LinkedHashMap<ByteBuffer, CachingEnvelopeAead>();
+    for (int i = 0; i < n; i++) {
+      if (Compression.isCompressed(input[i])) {
+        compressed[i] = true;
+        input[i] = Arrays.copyOfRange(input[i], 1, input[i].length);
+      }
+      ByteBuffer prefix = prefix(input[i]);
+      CachingEnvelopeAead envelope = prefix == null ? null : envelopes.get(prefix);
+      if (envelope != null) {
+        try {
+          int size = CachingEnvelopeAead.encryptedDekSize(input[i], CryptoFormat.NON_RAW_PREFIX_SIZE);
+          encryptedDeks[i] = CachingEnvelopeAead.encryptedDek(input[i], CryptoFormat.NON_RAW_PREFIX_SIZE, size);
+          distinct.putIfAbsent(encryptedDeks[i], envelope);
+        } catch (GeneralSecurityException e) {
+          // Not an envelope after all, decrypted with the keyset below.
+        }
+      }
+    }
+    final Map<ByteBuffer, Aead> deks = unwrapAll(distinct);
+
+    final byte[][] output = new byte[n][];
+    if (n < parallelDecryptThreshold) {
+      decryptRange(input, compressed, encryptedDeks, deks, output, 0, n, aead);
+      return Arrays.asList(output);
+    }
+    int chunk = (n + ForkJoinPool.getCommonPoolParallelism() - 1) / ForkJoinPool.getCommonPoolParallelism();
+    List<Future<Void>> chunks = new ArrayList<Future<Void>>();
+    for (int from = 0; from < n; from += chunk) {
+      final int start = from;
+      final int end = Math.min(n, from + chunk);
+      chunks.add(ForkJoinPool.commonPool().submit(() -> {
+        decryptRange(input, compressed, encryptedDeks, deks, output, start, end, aead);
+        return null;
+      }));
+    }
+    for (Future<Void> f : chunks) {
+      await(f);
+    }
+    return Arrays.asList(output);
+  }
+
+  /**
+   * Unwraps each data key once. Keys whose KMS call fails are left out, so that their ciphertexts take the
+   * regular path and report the error.
+   */
+  private Map<ByteBuffer, Aead> unwrapAll(Map<ByteBuffer, CachingEnvelopeAead> distinct)
+      throws GeneralSecurityException, IOException {
+    Map<ByteBuffer, Aead> deks = new HashMap<ByteBuffer, Aead>();
+    if (distinct.size() == 1) {
+      Map.Entry<ByteBuffer, CachingEnvelopeAead> e = distinct.entrySet().iterator().next();
+      try {
+        deks.put(e.getKey(), e.getValue().unwrap(e.getKey()));
+      } catch (GeneralSecurityException ignored) {
+        // Reported by the regular path.
+      }
+      return deks;
+    }
+    Map<ByteBuffer, Future<Aead>> pending = new HashMap<ByteBuffer, Future<Aead>>();
+    for (Map.Entry<ByteBuffer, CachingEnvelopeAead> e : distinct.entrySet()) {
+      final ByteBuffer encryptedDek = e.getKey();
+      final CachingEnvelopeAead envelope = e.getValue();
+      pending.put(encryptedDek, unwrapExecutor().submit(() -> envelope.unwrap(encryptedDek)));
+    }
+    for (Map.Entry<ByteBuffer, Future<Aead>> e : pending.entrySet()) {
+      try {
+        deks.put(e.getKey(), await(e.getValue()));
+      } catch (GeneralSecurityException ignored) {
+        // Reported by the regular path.
+      }
+    }
+    return deks;
+  }
+
+  private void decryptRange(byte[][] input, boolean[] compressed, ByteBuffer[] encryptedDeks,
+      Map<ByteBuffer, Aead> deks, byte[][] output, int from, int to, Aead aead) throws GeneralSecurityException {
+    byte[] compressedAuthentication = Compression.associatedData(authentication);
+    for (int i = from; i < to; i++) {
+      byte[] ad = compressed[i] ? compressedAuthentication : authentication;
+      byte[] plaintext = null;
+      Aead dek = encryptedDeks[i] == null ? null : deks.get(encryptedDeks[i]);
+      if (dek != null) {
+        int payload = CachingEnvelopeAead.payloadOffset(CryptoFormat.NON_RAW_PREFIX_SIZE, encryptedDeks[i].limit());
+        try {
+          plaintext = dek.decrypt(Arrays.copyOfRange(input[i], payload, input[i].length), ad);
+        } catch (GeneralSecurityException e) {
+          // Prefixes of different keys may collide; let the keyset try all of them.
+        }
+      }
+      if (plaintext == null) {
+        plaintext = aead.decrypt(input[i], ad);
+      }
+      output[i] = compressed[i] ? Compression.decompress(plaintext) : plaintext;
+    }
+  }
+
+  private static <T> T await(Future<T> f) throws GeneralSecurityException, IOException {
+    try {
+      return f.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while decrypting");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof GeneralSecurityException) {
+        throw (GeneralSecurityException) cause;
+      }
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  /**
+   * Encrypts with the envelope of the primary key, if it is one, and decrypts ciphertexts of any envelope key
+   * with its cached data keys. Everything else goes to the keyset primitive, which handles other key types.
+   */
+  private static final class EnvelopeKeysetAead implements Aead {
+    private final CachingEnvelopeAead primary;
+    private final byte[] primaryPrefix;
+    final Map<ByteBuffer, CachingEnvelopeAead> envelopes;
+    private final Aead keyset;
+
+    EnvelopeKeysetAead(ByteBuffer primaryPrefix, Map<ByteBuffer, CachingEnvelopeAead> envelopes, Aead keyset) {
+      this.primary = primaryPrefix == null ? null : envelopes.get(primaryPrefix);
+      this.primaryPrefix = primaryPrefix == null ? null : primaryPrefix.array();
+      this.envelopes = envelopes;
+      this.keyset = keyset;
+    }
+
+    @Override
+    public byte[] encrypt(byte[] plaintext, byte[] associatedData) throws GeneralSecurityException {
+      if (primary == null) {
+        return keyset.encrypt(plaintext, associatedData);
+      }
+      byte[] c = primary.encrypt(plaintext, associatedData);
+      byte[] ciphertext = Arrays.copyOf(primaryPrefix, primaryPrefix.length + c.length);
+      System.arraycopy(c, 0, ciphertext, primaryPrefix.length, c.length);
+      return ciphertext;
+    }
+
+    @Override
+    public byte[] decrypt(byte[] ciphertext, byte[] associatedData) throws GeneralSecurityException {
+      ByteBuffer prefix = prefix(ciphertext);
+      CachingEnvelopeAead envelope = prefix == null ? null : envelopes.get(prefix);
+      if (envelope != null) {
+        try {
+          return envelope.decrypt(Arrays.copyOfRange(ciphertext, prefix.limit(), ciphertext.length), associatedData);
+        } catch (GeneralSecurityException e) {
+          // Prefixes of different keys may collide; let the keyset try all of them.
+        }
+      }
+      return keyset.decrypt(ciphertext, associatedData);
     }
-    return keysetHandle;
   }
 }
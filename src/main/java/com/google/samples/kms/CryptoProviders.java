@@ -0,0 +1,122 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Selects the JCE provider behind Tink's AES-GCM. Tink asks the JVM for {@code AES/GCM/NoPadding} on every call, so
+ * installing a provider in front of the others, e.g. Conscrypt (BoringSSL), switches all helpers of the process,
+ * including the AES-CTR and HMAC used by the streaming and deterministic modes. A provider is only installed after
+ * it decrypts a ciphertext of the JDK provider and vice versa; otherwise the JDK provider stays in place.
+ */
+public final class CryptoProviders {
+  private static final Logger logger = Logger.getLogger(CryptoProviders.class.getName());
+  static final String aesGcm = "AES/GCM/NoPadding";
+  /** Conscrypt, from {@code org.conscrypt:conscrypt-openjdk-uber}, which must be on the class path. */
+  public static final String conscrypt = "org.conscrypt.OpenSSLProvider";
+  private static boolean configured = false;
+
+  private CryptoProviders() {
+  }
+
+  /**
+   * Installs {@code provider} as the first JCE provider and returns the name of the provider that now serves
+   * AES-GCM. {@code provider} is {@code conscrypt}, {@code jdk} to keep the default order, or the class name of a
+   * {@link Provider} with a public no-argument constructor. A provider that is missing, cannot load its native
+   * code or fails the self-test is logged and skipped.
+   */
+  public static synchronized String prefer(String provider) {
+    if (provider == null || provider.isEmpty() || provider.equalsIgnoreCase("jdk")) {
+      return activeProvider();
+    }
+    String className = provider.equalsIgnoreCase("conscrypt") ? conscrypt : provider;
+    try {
+      Provider p = (Provider) Class.forName(className).getConstructor().newInstance();
+      selfTest(p);
+      Security.removeProvider(p.getName());
+      Security.insertProviderAt(p, 1);
+    } catch (ReflectiveOperationException | LinkageError | ClassCastException | GeneralSecurityException e) {
+      logger.log(Level.WARNING, "falling back to the JDK provider, could not install " + className, e);
+    }
+    return activeProvider();
+  }
+
+  /**
+   * Applies the {@code cryptoProvider} setting once per process. Called when a helper builds its first primitive,
+   * so the setting is not read on startup.
+   */
+  static synchronized void preferConfigured() {
+    if (!configured) {
+      configured = true;
+      String provider = Settings.get("cryptoProvider", null);
+      if (provider != null) {
+        prefer(provider);
+      }
+    }
+  }
+
+  /**
+   * Name of the provider that serves AES-GCM, or "none".
+   */
+  public static String activeProvider() {
+    try {
+      return Cipher.getInstance(aesGcm).getProvider().getName();
+    } catch (GeneralSecurityException e) {
+      return "none";
+    }
+  }
+
+  private static void selfTest(Provider provider) throws GeneralSecurityException {
+    SecureRandom random = new SecureRandom();
+    byte[] key = new byte[32];
+    byte[] plaintext = new byte[100];
+    random.nextBytes(key);
+    random.nextBytes(plaintext);
+    SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
+    Cipher candidate = Cipher.getInstance(aesGcm, provider);
+    Cipher reference = Cipher.getInstance(aesGcm);
+    if (!Arrays.equals(plaintext, roundtrip(candidate, reference, keySpec, plaintext, random))
+        || !Arrays.equals(plaintext, roundtrip(reference, candidate, keySpec, plaintext, random))) {
+      throw new GeneralSecurityException(provider.getName() + " does not match the JDK's AES-GCM");
+    }
+  }
+
+  private static byte[] roundtrip(Cipher encrypter, Cipher decrypter, SecretKeySpec key, byte[] plaintext,
+      SecureRandom random) throws GeneralSecurityException {
+    byte[] iv = new byte[12];
+    random.nextBytes(iv);
+    byte[] ad = CryptoHelper.authenticationText.getBytes(StandardCharsets.UTF_8);
+    encrypter.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, iv));
+    encrypter.updateAAD(ad);
+    byte[] ciphertext = encrypter.doFinal(plaintext);
+    decrypter.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(128, iv));
+    decrypter.updateAAD(ad);
+    return decrypter.doFinal(ciphertext);
+  }
+}
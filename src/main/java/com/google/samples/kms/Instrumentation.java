@@ -0,0 +1,70 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms;
+
+/**
+ * Receives counts, byte counts and latencies of the operations of {@link CryptoHelper} and the Redis helpers.
+ * Implementations are called on the hot path from many threads and must be thread-safe and cheap.
+ */
+public interface Instrumentation {
+
+  enum Operation {
+    /** Encryption of one or more plaintexts, bytes are plaintext bytes. */
+    ENCRYPT,
+    /** Decryption of one or more ciphertexts, bytes are plaintext bytes. */
+    DECRYPT,
+    /** Loading or generating a keyset and building its primitive. */
+    KEYSET_LOAD,
+    /** Resolving the key-encryption key through the KMS client. */
+    KMS_CLIENT,
+    /** A call to the remote key-encryption key, e.g. wrapping a keyset or data key. */
+    KMS_CALL,
+    /** A pipelined batch of Redis SET commands, bytes are keys and values sent. */
+    REDIS_SET,
+    /** An MGET round trip, bytes are values received. */
+    REDIS_GET
+  }
+
+  /**
+   * Ignores everything. Callers check {@link #isEnabled} and skip taking timestamps, so it costs one branch.
+   */
+  Instrumentation noop = new Instrumentation() {
+    @Override
+    public boolean isEnabled() {
+      return false;
+    }
+
+    @Override
+    public void record(Operation operation, long count, long bytes, long nanos) {
+    }
+
+    @Override
+    public void failure(Operation operation, Throwable cause) {
+    }
+  };
+
+  default boolean isEnabled() {
+    return true;
+  }
+
+  /**
+   * Records that {@code operation} completed {@code count} items of {@code bytes} in total in {@code nanos}.
+   */
+  void record(Operation operation, long count, long bytes, long nanos);
+
+  void failure(Operation operation, Throwable cause);
+}
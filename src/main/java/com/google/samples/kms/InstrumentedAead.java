@@ -0,0 +1,69 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms;
+
+import com.google.crypto.tink.Aead;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * Reports every call of an {@link Aead} as one {@code operation}, e.g. to count the calls to a remote KMS key.
+ */
+final class InstrumentedAead implements Aead {
+  private final Aead aead;
+  private final Instrumentation instrumentation;
+  private final Instrumentation.Operation operation;
+
+  private InstrumentedAead(Aead aead, Instrumentation instrumentation, Instrumentation.Operation operation) {
+    this.aead = aead;
+    this.instrumentation = instrumentation;
+    this.operation = operation;
+  }
+
+  /**
+   * Returns {@code aead} itself if {@code instrumentation} is disabled.
+   */
+  static Aead wrap(Aead aead, Instrumentation instrumentation, Instrumentation.Operation operation) {
+    return instrumentation.isEnabled() ? new InstrumentedAead(aead, instrumentation, operation) : aead;
+  }
+
+  @Override
+  public byte[] encrypt(byte[] plaintext, byte[] associatedData) throws GeneralSecurityException {
+    long start = System.nanoTime();
+    try {
+      byte[] ciphertext = aead.encrypt(plaintext, associatedData);
+      instrumentation.record(operation, 1, plaintext.length, System.nanoTime() - start);
+      return ciphertext;
+    } catch (GeneralSecurityException | RuntimeException e) {
+      instrumentation.failure(operation, e);
+      throw e;
+    }
+  }
+
+  @Override
+  public byte[] decrypt(byte[] ciphertext, byte[] associatedData) throws GeneralSecurityException {
+    long start = System.nanoTime();
+    try {
+      byte[] plaintext = aead.decrypt(ciphertext, associatedData);
+      instrumentation.record(operation, 1, ciphertext.length, System.nanoTime() - start);
+      return plaintext;
+    } catch (GeneralSecurityException | RuntimeException e) {
+      instrumentation.failure(operation, e);
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Keeps counters and a latency histogram per operation and publishes them as MXBeans named
+ * {@code com.google.samples.kms:type=Instrumentation,name=<name>,operation=<operation>}. Latencies are bucketed by
+ * powers of two nanoseconds, so percentiles are accurate to a factor of two.
+ */
+public class JmxInstrumentation implements Instrumentation {
+  private static final String domain = "com.google.samples.kms";
+
+  private final Map<Operation, OperationStats> stats = new EnumMap<Operation, OperationStats>(Operation.class);
+  private final String name;
+
+  public JmxInstrumentation(String name) {
+    this.name = name;
+    for (Operation operation : Operation.values()) {
+      stats.put(operation, new OperationStats());
+    }
+  }
+
+  public interface OperationStatsMXBean {
+    long getCount();
+
+    long getBytes();
+
+    long getFailures();
+
+    double getMeanMicros();
+
+    double getP50Micros();
+
+    double getP99Micros();
+
+    double getMaxMicros();
+
+    /**
+     * Number of operations per latency bucket, where bucket {@code i} holds latencies from {@code 2^i} up to
+     * {@code 2^(i+1)} nanoseconds.
+     */
+    long[] getLatencyHistogram();
+
+    void reset();
+  }
+
+  static final class OperationStats implements OperationStatsMXBean {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+    private final LongAdder[] buckets = new LongAdder[64];
+
+    OperationStats() {
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    void record(long n, long b, long ns) {
+      count.add(n);
+      bytes.add(b);
+      nanos.add(ns);
+      maxNanos.accumulate(ns);
+      buckets[63 - Long.numberOfLeadingZeros(Math.max(1, ns))].increment();
+    }
+
+    void failure() {
+      failures.increment();
+    }
+
+    @Override
+    public long getCount() {
+      return count.sum();
+    }
+
+    @Override
+    public long getBytes() {
+      return bytes.sum();
+    }
+
+    @Override
+    public long getFailures() {
+      return failures.sum();
+    }
+
+    @Override
+    public double getMeanMicros() {
+      long[] histogram = getLatencyHistogram();
+      long calls = 0;
+      for (long c : histogram) {
+        calls += c;
+      }
+      return calls == 0 ? 0 : nanos.sum() / 1000.0 / calls;
+    }
+
+    @Override
+    public double getP50Micros() {
+      return percentileMicros(0.50);
+    }
+
+    @Override
+    public double getP99Micros() {
+      return percentileMicros(0.99);
+    }
+
+    @Override
+    public double getMaxMicros() {
+      return maxNanos.get() / 1000.0;
+    }
+
+    @Override
+    public long[] getLatencyHistogram() {
+      long[] histogram = new long[buckets.length];
+      for (int i = 0; i < buckets.length; i++) {
+        histogram[i] = buckets[i].sum();
+      }
+      return histogram;
+    }
+
+    /**
+     * Returns the upper bound of the bucket that holds the given fraction of all calls.
+     */
+    private double percentileMicros(double fraction) {
+      long[] histogram = getLatencyHistogram();
+      long calls = 0;
+      for (long c : histogram) {
+        calls += c;
+      }
+      long rank = (long) Math.ceil(fraction * calls);
+      long seen = 0;
+      for (int i = 0; i < histogram.length; i++) {
+        seen += histogram[i];
+        if (seen >= rank && seen > 0) {
+          return Math.min((double) (1L << Math.min(i + 1, 62)), (double) maxNanos.get()) / 1000.0;
+        }
+      }
+      return 0;
+    }
+
+    @Override
+    public void reset() {
+      count.reset();
+      bytes.reset();
+      failures.reset();
+      nanos.reset();
+      maxNanos.reset();
+      for (LongAdder bucket : buckets) {
+        bucket.reset();
+      }
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d calls, %d bytes, %d failures, mean %.1fus, p50 %.1fus, p99 %.1fus, max %.1fus",
+          getCount(), getBytes(), getFailures(), getMeanMicros(), getP50Micros(), getP99Micros(), getMaxMicros());
+    }
+  }
+
+  /**
+   * Registers one MXBean per operation with the platform MBean server.
+   */
+  public JmxInstrumentation register() throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    for (Map.Entry<Operation, OperationStats> e : stats.entrySet()) {
+      server.registerMBean(e.getValue(), objectName(e.getKey()));
+    }
+    return this;
+  }
+
+  public void unregister() throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    for (Operation operation : stats.keySet()) {
+      ObjectName objectName = objectName(operation);
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+    }
+  }
+
+  private ObjectName objectName(Operation operation) throws JMException {
+    return new ObjectName(String.format("%s:type=Instrumentation,name=%s,operation=%s", domain,
+        ObjectName.quote(name), operation.name().toLowerCase(Locale.ROOT)));
+  }
+
+  public OperationStatsMXBean getStats(Operation operation) {
+    return stats.get(operation);
+  }
+
+  @Override
+  public void record(Operation operation, long count, long bytes, long nanos) {
+    stats.get(operation).record(count, bytes, nanos);
+  }
+
+  @Override
+  public void failure(Operation operation, Throwable cause) {
+    stats.get(operation).failure();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder b = new StringBuilder(name);
+    for (Map.Entry<Operation, OperationStats> e : stats.entrySet()) {
+      if (e.getValue().getCount() > 0 || e.getValue().getFailures() > 0) {
+        b.append("\n  ").append(e.getKey()).append(": ").append(e.getValue());
+      }
+    }
+    return b.toString();
+  }
+}
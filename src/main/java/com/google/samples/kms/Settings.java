@@ -0,0 +1,72 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+/**
+ * Configuration of the helpers. A setting is looked up in the system property {@code cryptoHelper.<name>}, then in
+ * the Java preferences of this package, then falls back to its default. The preferences are opened on the first
+ * lookup that needs them, not on class initialization, and {@code -DcryptoHelper.preferences=false} skips them
+ * entirely, which saves their file system access on short-lived runs.
+ */
+final class Settings {
+  private static final Logger logger = Logger.getLogger(Settings.class.getName());
+  static final String propertyPrefix = "cryptoHelper.";
+
+  private Settings() {
+  }
+
+  static String get(String name, String defaultValue) {
+    String value = System.getProperty(propertyPrefix + name);
+    if (value != null) {
+      return value;
+    }
+    if (!preferencesEnabled()) {
+      return defaultValue;
+    }
+    return PreferencesHolder.preferences.get(name, defaultValue);
+  }
+
+  static boolean preferencesEnabled() {
+    return !"false".equalsIgnoreCase(System.getProperty(propertyPrefix + "preferences"));
+  }
+
+  /**
+   * Opened on first use by the class loader, which also makes the initialization thread-safe.
+   */
+  private static final class PreferencesHolder {
+    static final Preferences preferences = initializePreferences();
+
+    private static Preferences initializePreferences() {
+      final String name = CryptoHelper.class.getCanonicalName();
+      Preferences preferences = Preferences.userNodeForPackage(CryptoHelper.class);
+      if (!preferences.getBoolean(name, false)) {
+        preferences.putBoolean(name, Boolean.TRUE);
+        try {
+          preferences.flush();
+        } catch (BackingStoreException e) {
+          logger.log(Level.WARNING, "could not store preferences of " + name, e);
+        }
+      }
+      return preferences;
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts rows and bytes processed by a bulk job and reports them as rates.
+ */
+public class ThroughputReport {
+  private final String name;
+  private final long startNanos = System.nanoTime();
+  private final AtomicLong rows = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+  private volatile long endNanos;
+
+  public ThroughputReport(String name) {
+    this.name = name;
+  }
+
+  public void add(long rowCount, long byteCount) {
+    rows.addAndGet(rowCount);
+    bytes.addAndGet(byteCount);
+  }
+
+  public ThroughputReport finish() {
+    endNanos = System.nanoTime();
+    return this;
+  }
+
+  public long getRows() {
+    return rows.get();
+  }
+
+  public long getBytes() {
+    return bytes.get();
+  }
+
+  public long getElapsedNanos() {
+    long end = endNanos;
+    return (end == 0 ? System.nanoTime() : end) - startNanos;
+  }
+
+  public double getRowsPerSecond() {
+    return getRows() / seconds();
+  }
+
+  public double getMegabytesPerSecond() {
+    return getBytes() / (1024.0 * 1024.0) / seconds();
+  }
+
+  private double seconds() {
+    return Math.max(getElapsedNanos(), 1) / (double) TimeUnit.SECONDS.toNanos(1);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s: %d rows, %d bytes in %.3fs (%.0f rows/s, %.2f MB/s)", name, getRows(), getBytes(),
+        seconds(), getRowsPerSecond(), getMegabytesPerSecond());
+  }
+}
@@ -18,18 +18,69 @@ package com.google.samples.kms.ale;
 
 import com.google.samples.kms.CryptoHelper;
 import com.google.samples.kms.redis.RedisBulkloadHelper;
+import com.google.samples.kms.redis.RedisHelper;
+import com.google.samples.kms.redis.RedisKeyRotation;
 
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
 
 public final class ApplicationLayerEncryption {
 
   public static void main(String[] args) throws IOException, GeneralSecurityException {
-    if (args.length == 0) {
-      System.err.println("please pass input csv filename as parameters");
+    if (args.length == 3 && (args[0].equals("--encrypt-file") || args[0].equals("--decrypt-file"))) {
+      crypt(args[0].equals("--encrypt-file"), args[1], args[2]);
+      return;
+    }
+    if (args.length >= 3 && args[0].equals("--load")) {
+      try (RedisHelper redis = new RedisHelper(new CryptoHelper(), args[2],
+          args.length > 3 ? Integer.parseInt(args[3]) : 6379)) {
+        System.out.println(redis.load(args[1]));
+      }
+      return;
+    }
+    if (args.length >= 2 && args[0].equals("--rotate-keys")) {
+      try (RedisHelper redis = new RedisHelper(new CryptoHelper(), args[1],
+          args.length > 2 ? Integer.parseInt(args[2]) : 6379)) {
+        RedisKeyRotation rotation = new RedisKeyRotation(redis);
+        if (args.length > 3) {
+          rotation.maxKeysPerSecond(Long.parseLong(args[3]));
+        }
+        System.out.println(rotation.run());
+        System.out.println(String.format("skipped %d values, %d values kept changing", rotation.getSkipped(),
+            rotation.getConflicts()));
+      }
+      return;
+    }
+    if (args.length < 2) {
+      System.err.println("please pass input csv filename and output filename as parameters, "
+          + "optionally followed by the number of workers and the queue depth, "
+          + "or --encrypt-file/--decrypt-file followed by input and output filename, "
+          + "or --load followed by input csv filename, Redis host and optionally port, "
+          + "or --rotate-keys followed by Redis host and optionally port and keys per second");
       return;
     }
     CryptoHelper c = new CryptoHelper();
-    RedisBulkloadHelper.encrypt(c, args[0], args[1]);
+    RedisBulkloadHelper bulkload = new RedisBulkloadHelper(c).checkpointInterval(10, TimeUnit.SECONDS);
+    if (args.length > 2) {
+      bulkload.workers(Integer.parseInt(args[2]));
+    }
+    if (args.length > 3) {
+      bulkload.queueDepth(Integer.parseInt(args[3]));
+    }
+    System.out.println(bulkload.encrypt(args[0], args[1]));
+  }
+
+  /**
+   * Encrypts or decrypts a file of any size with the streaming keyset, which is kept next to the AEAD keyset.
+   */
+  private static void crypt(boolean encrypt, String input, String output) throws IOException, GeneralSecurityException {
+    CryptoHelper c = new CryptoHelper().loadKeyset(true).writeKeyset(true);
+    long time = System.nanoTime();
+    long bytes = encrypt ? c.encrypt(Paths.get(input), Paths.get(output)) : c.decrypt(Paths.get(input), Paths.get(output));
+    double seconds = (System.nanoTime() - time) / 1e9;
+    System.out.println(String.format("%s %d bytes in %.1fs (%.1f MB/s)", encrypt ? "encrypted" : "decrypted", bytes,
+        seconds, bytes / seconds / (1 << 20)));
   }
 }
\ No newline at end of file
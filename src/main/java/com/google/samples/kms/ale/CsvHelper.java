@@ -16,43 +16,469 @@
 
 package com.google.samples.kms.ale;
 
+import com.google.samples.kms.Checkpoint;
 import com.google.samples.kms.CryptoHelper;
+import com.google.samples.kms.ThroughputReport;
 
-import java.io.FileReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
 
 public class CsvHelper {
+  static final String keysetKey = "--tink-keyset--";
+  static final String deterministicKeysetKey = "--tink-deterministic-keyset--";
+  private static final Future<Chunk> endOfInput = CompletableFuture.completedFuture(null);
+  private static final byte[] recordSeparator = "\r\n".getBytes(StandardCharsets.US_ASCII);
+  private static final long maxRegionSize = Integer.MAX_VALUE - 8;
+
+  private final CryptoHelper cryptoHelper;
+  private int workers = Runtime.getRuntime().availableProcessors();
+  private int queueDepth = 2 * Runtime.getRuntime().availableProcessors();
+  private int chunkSize = 8 << 20;
+  private long checkpointIntervalNanos = -1;
+  private List<String> columns = Arrays.asList(Headers.Member.name());
+  private List<String> deterministicColumns = new ArrayList<String>();
+  private final Map<String, byte[]> associatedData = new HashMap<String, byte[]>();
 
   public enum Headers {
     Key, Member
   }
 
-  public static Iterable<CSVRecord> read(String filename) throws IOException {
-    Reader in = new FileReader(filename);
+  /**
+   * Transformed records of one chunk of the input, in input order.
+   */
+  private static final class Chunk {
+    final int rows;
+    final ByteArrayOutputStream csv;
+    final long end;
+
+    Chunk(int rows, ByteArrayOutputStream csv, long end) {
+      this.rows = rows;
+      this.csv = csv;
+      this.end = end;
+    }
+  }
+
+  /**
+   * The header record and, in encrypted files, the keyset records that precede the data.
+   */
+  private static final class Prelude {
+    final List<byte[]> header = new ArrayList<byte[]>();
+    final ByteArrayOutputStream rawHeader = new ByteArrayOutputStream();
+    String keyset;
+    String deterministicKeyset;
+    long end;
+  }
+
+  /**
+   * How a selected column is transformed.
+   */
+  private static final class Column {
+    final byte[] associatedData;
+    final boolean deterministic;
+
+    Column(byte[] associatedData, boolean deterministic) {
+      this.associatedData = associatedData;
+      this.deterministic = deterministic;
+    }
+  }
+
+  public CsvHelper(CryptoHelper cryptoHelper) {
+    this.cryptoHelper = cryptoHelper;
+  }
+
+  public CsvHelper workers(int count) {
+    workers = Math.max(1, count);
+    return this;
+  }
+
+  public CsvHelper queueDepth(int depth) {
+    queueDepth = Math.max(1, depth);
+    return this;
+  }
+
+  /**
+   * Approximate number of input bytes per chunk. Chunks end on a record boundary, so a chunk grows to hold a
+   * record that is larger than this.
+   */
+  public CsvHelper chunkSize(int bytes) {
+    chunkSize = Math.max(1, bytes);
+    return this;
+  }
+
+  /**
+   * Records progress in a {@link Checkpoint} sidecar next to the output at most this often, and resumes an
+   * interrupted job from it instead of starting over. 0 saves after every chunk.
+   */
+  public CsvHelper checkpointInterval(long interval, TimeUnit unit) {
+    checkpointIntervalNanos = unit.toNanos(Math.max(0, interval));
+    return this;
+  }
+
+  /**
+   * Names the columns to encrypt or decrypt, by their header. All other columns are copied unchanged. The default
+   * is {@code Member}.
+   */
+  public CsvHelper columns(String... headers) {
+    columns = Arrays.asList(headers);
+    return this;
+  }
+
+  /**
+   * Names columns, such as keys, to encrypt deterministically in addition to {@link #columns}. Equal values get
+   * equal ciphertexts, so encrypted files can still be joined or grouped on these columns. The deterministic
+   * keyset is stored in a {@code --tink-deterministic-keyset--} record.
+   */
+  public CsvHelper deterministicColumns(String... headers) {
+    deterministicColumns = Arrays.asList(headers);
+    return this;
+  }
+
+  /**
+   * Binds the ciphertexts of {@code column} to {@code data}, e.g. the column name, so that a value cannot be
+   * moved to another column unnoticed. Decryption must use the same associated data.
+   */
+  public CsvHelper associatedData(String column, byte[] data) {
+    associatedData.put(column, data);
+    return this;
+  }
+
+  /**
+   * Parses the {@code Key} and {@code Member} columns of a CSV file. Close the parser to release the file.
+   */
+  public static CSVParser read(String filename) throws IOException {
+    Reader in = Files.newBufferedReader(Paths.get(filename), StandardCharsets.UTF_8);
+    return CSVFormat.RFC4180.withHeader(Headers.class).withSkipHeaderRecord().parse(in);
+  }
+
+  /**
+   * Reads a CSV file that was encrypted as a whole with {@link CryptoHelper#encrypt(java.nio.file.Path,
+   * java.nio.file.Path)}, decrypting it while it is parsed.
+   */
+  public static Iterable<CSVRecord> read(CryptoHelper ctx, String encryptedFilename)
+      throws IOException, GeneralSecurityException {
+    Reader in = new InputStreamReader(ctx.decryptingStream(Files.newInputStream(Paths.get(encryptedFilename))),
+        StandardCharsets.UTF_8);
     return CSVFormat.RFC4180.withHeader(Headers.class).withSkipHeaderRecord().parse(in);
   }
 
   public static void encrypt(CryptoHelper ctx, String inputFileName, String outputFileName)
       throws IOException, GeneralSecurityException {
-    Reader in = new FileReader(inputFileName);
-    Appendable writer = Files.newBufferedWriter(Paths.get(outputFileName));
-    final CSVPrinter printer = CSVFormat.RFC4180.withHeader(Headers.class).print(writer);
-    printer.printRecord("--tink-keyset--", ctx.getEncodedKeysetHandle());
-    Iterable<CSVRecord> records = CSVFormat.RFC4180.withHeader(Headers.class).parse(in);
-    for (CSVRecord record : records) {
-      String key = record.get(Headers.Key);
-      String member = record.get(Headers.Member);
-      printer.printRecord(key, ctx.encryptToBytes(member));
+    new CsvHelper(ctx).encrypt(inputFileName, outputFileName);
+  }
+
+  public static void decrypt(CryptoHelper ctx, String inputFileName, String outputFileName)
+      throws IOException, GeneralSecurityException {
+    new CsvHelper(ctx).decrypt(inputFileName, outputFileName);
+  }
+
+  /**
+   * Encrypts the selected columns of a UTF-8 CSV file into Base64 ciphertext. The output starts with the header
+   * of the input followed by a {@code --tink-keyset--} record holding the encrypted keyset.
+   */
+  public ThroughputReport encrypt(String inputFileName, String outputFileName)
+      throws IOException, GeneralSecurityException {
+    return transform(inputFileName, outputFileName, true);
+  }
+
+  /**
+   * Decrypts the selected columns of a file written by {@link #encrypt}. The keysets are taken from its
+   * {@code --tink-keyset--} and {@code --tink-deterministic-keyset--} records, which are not copied to the output.
+   */
+  public ThroughputReport decrypt(String inputFileName, String outputFileName)
+      throws IOException, GeneralSecurityException {
+    return transform(inputFileName, outputFileName, false);
+  }
+
+  /**
+   * The input is memory-mapped and split into chunks on record boundaries by a reader thread; the chunks are
+   * parsed and transformed by the worker pool and written by the calling thread in input order. At most
+   * {@code queueDepth} chunks are in flight.
+   */
+  private ThroughputReport transform(String inputFileName, String outputFileName, boolean encrypt)
+      throws IOException, GeneralSecurityException {
+    ThroughputReport report = new ThroughputReport(outputFileName);
+    Path input = Paths.get(inputFileName);
+    Path output = Paths.get(outputFileName);
+    Checkpoint checkpoint = checkpointIntervalNanos < 0 ? null : Checkpoint.resume(input, output);
+    Prelude prelude;
+    try (FileChannel in = FileChannel.open(Paths.get(inputFileName), StandardOpenOption.READ)) {
+      prelude = readPrelude(in, encrypt ? 0 : 2);
+    }
+    if (prelude.keyset != null) {
+      cryptoHelper.setEncodedKeysetHandle(prelude.keyset);
+    }
+    if (prelude.deterministicKeyset != null) {
+      cryptoHelper.setEncodedDeterministicKeysetHandle(prelude.deterministicKeyset);
+    }
+    if (checkpoint != null && checkpoint.getKeyset() != null) {
+      cryptoHelper.setEncodedKeysetHandle(checkpoint.getKeyset());
+    }
+    if (checkpoint != null && checkpoint.getDeterministicKeyset() != null) {
+      cryptoHelper.setEncodedDeterministicKeysetHandle(checkpoint.getDeterministicKeyset());
+    }
+    Column[] selected = selectColumns(prelude);
+    long start = checkpoint == null ? prelude.end : checkpoint.getInputOffset();
+    long rows = checkpoint == null ? 0 : checkpoint.getRows();
+    BlockingQueue<Future<Chunk>> pending = new ArrayBlockingQueue<Future<Chunk>>(queueDepth);
+    ExecutorService pool = Executors.newFixedThreadPool(workers);
+    Thread reader = new Thread(() -> split(inputFileName, start, pool, pending, selected, encrypt),
+        "csv-helper-reader");
+    reader.setDaemon(true);
+    try (FileChannel channel = checkpoint == null ? FileChannel.open(output, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING) : checkpoint.openOutput()) {
+      OutputStream out = Channels.newOutputStream(channel);
+      if (checkpoint == null) {
+        String keyset = null;
+        String deterministicKeyset = null;
+        prelude.rawHeader.writeTo(out);
+        out.write(recordSeparator);
+        if (encrypt) {
+          keyset = cryptoHelper.getEncodedKeysetHandle();
+          out.write((keysetKey + "," + keyset).getBytes(StandardCharsets.US_ASCII));
+          out.write(recordSeparator);
+          if (!deterministicColumns.isEmpty()) {
+            deterministicKeyset = cryptoHelper.getEncodedDeterministicKeysetHandle();
+            out.write((deterministicKeysetKey + "," + deterministicKeyset).getBytes(StandardCharsets.US_ASCII));
+            out.write(recordSeparator);
+          }
+        }
+        if (checkpointIntervalNanos >= 0) {
+          checkpoint = Checkpoint.start(input, output, keyset, deterministicKeyset);
+          channel.force(false);
+          checkpoint.save(start, channel.position(), rows);
+        }
+      }
+      reader.start();
+      for (Chunk chunk = await(take(pending)); chunk != null; chunk = await(take(pending))) {
+        chunk.csv.writeTo(out);
+        report.add(chunk.rows, chunk.csv.size());
+        rows += chunk.rows;
+        if (checkpoint != null && checkpoint.due(checkpointIntervalNanos)) {
+          channel.force(false);
+          checkpoint.save(chunk.end, channel.position(), rows);
+        }
+      }
+    } finally {
+      reader.interrupt();
+      pool.shutdownNow();
+    }
+    if (checkpoint != null) {
+      checkpoint.delete();
+    }
+    return report.finish();
+  }
+
+  /**
+   * Returns the transformation of every column, indexed by position, or null for columns that are copied.
+   */
+  private Column[] selectColumns(Prelude prelude) throws IOException {
+    List<String> names = new ArrayList<String>();
+    for (byte[] name : prelude.header) {
+      names.add(new String(name, StandardCharsets.UTF_8));
+    }
+    Column[] selected = new Column[names.size()];
+    List<String> all = new ArrayList<String>(columns);
+    all.addAll(deterministicColumns);
+    for (String column : all) {
+      int i = names.indexOf(column);
+      if (i < 0) {
+        throw new IOException(String.format("column %s not found in header %s", column, names));
+      }
+      selected[i] = new Column(associatedData.getOrDefault(column, cryptoHelper.getAssociatedData()),
+          deterministicColumns.contains(column));
     }
-    printer.close(true);
+    return selected;
   }
 
+  /**
+   * Parses the header and up to {@code keysetRecords} keyset records that follow it.
+   */
+  private Prelude readPrelude(FileChannel in, int keysetRecords) throws IOException {
+    long size = in.size();
+    long length = Math.min(size, 1 << 16);
+    while (true) {
+      MappedByteBuffer region = in.map(FileChannel.MapMode.READ_ONLY, 0, length);
+      int end = 0;
+      for (int i = 0; i <= keysetRecords && end >= 0; i++) {
+        end = length == size ? (int) length : CsvScanner.firstRecordEnd(region, end, (int) length);
+      }
+      if (end >= 0) {
+        Prelude prelude = new Prelude();
+        CsvScanner scanner = new CsvScanner(region.slice(0, end));
+        if (!scanner.next()) {
+          throw new IOException("missing header record");
+        }
+        for (int i = 0; i < scanner.fields(); i++) {
+          prelude.header.add(scanner.value(i));
+        }
+        scanner.copyRaw(0, scanner.fields(), prelude.rawHeader);
+        prelude.end = scanner.position();
+        while (scanner.next() && scanner.fields() == 2) {
+          String name = new String(scanner.value(0), StandardCharsets.UTF_8);
+          if (keysetKey.equals(name)) {
+            prelude.keyset = new String(scanner.value(1), StandardCharsets.US_ASCII);
+          } else if (deterministicKeysetKey.equals(name)) {
+            prelude.deterministicKeyset = new String(scanner.value(1), StandardCharsets.US_ASCII);
+          } else {
+            break;
+          }
+          prelude.end = scanner.position();
+        }
+        return prelude;
+      }
+      if (length >= maxRegionSize) {
+        throw new IOException("header record is larger than 2GB");
+      }
+      length = Math.min(size, Math.min(2 * length, maxRegionSize));
+    }
+  }
+
+  private void split(String inputFileName, long start, ExecutorService pool, BlockingQueue<Future<Chunk>> pending,
+      Column[] selected, boolean encrypt) {
+    try (FileChannel in = FileChannel.open(Paths.get(inputFileName), StandardOpenOption.READ)) {
+      long size = in.size();
+      long position = start;
+      while (position < size) {
+        long length = Math.min(size - position, chunkSize);
+        MappedByteBuffer region = in.map(FileChannel.MapMode.READ_ONLY, position, length);
+        int end = position + length == size ? (int) length : CsvScanner.lastRecordEnd(region, 0, (int) length);
+        while (end < 0) {
+          if (length >= maxRegionSize) {
+            throw new IOException(String.format("record at byte %d is larger than 2GB", position));
+          }
+          length = Math.min(size - position, Math.min(2 * length, maxRegionSize));
+          region = in.map(FileChannel.MapMode.READ_ONLY, position, length);
+          end = position + length == size ? (int) length : CsvScanner.lastRecordEnd(region, 0, (int) length);
+        }
+        pending.put(submit(pool, region.slice(0, end), position + end, selected, encrypt));
+        position += end;
+      }
+      pending.put(endOfInput);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      CompletableFuture<Chunk> failed = new CompletableFuture<Chunk>();
+      failed.completeExceptionally(e);
+      try {
+        pending.put(failed);
+      } catch (InterruptedException interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private Future<Chunk> submit(ExecutorService pool, ByteBuffer region, long regionEnd, Column[] selected,
+      boolean encrypt) {
+    return pool.submit(() -> {
+      Base64.Encoder encoder = Base64.getEncoder();
+      Base64.Decoder decoder = Base64.getDecoder();
+      ByteArrayOutputStream csv = new ByteArrayOutputStream(encrypt ? region.remaining() * 2 : region.remaining());
+      CsvScanner scanner = new CsvScanner(region);
+      int rows = 0;
+      while (scanner.next()) {
+        int copied = 0;
+        for (int i = 0; i < Math.min(scanner.fields(), selected.length); i++) {
+          Column column = selected[i];
+          if (column == null) {
+            continue;
+          }
+          if (i > copied) {
+            if (copied > 0) {
+              csv.write(',');
+            }
+            scanner.copyRaw(copied, i, csv);
+          }
+          if (i > 0) {
+            csv.write(',');
+          }
+          if (encrypt) {
+            csv.write(encoder.encode(encrypt(column, scanner.value(i))));
+          } else {
+            CsvScanner.writeField(decrypt(column, decoder.decode(scanner.value(i))), csv);
+          }
+          copied = i + 1;
+        }
+        if (copied < scanner.fields()) {
+          if (copied > 0) {
+            csv.write(',');
+          }
+          scanner.copyRaw(copied, scanner.fields(), csv);
+        }
+        csv.write(recordSeparator);
+        rows++;
+      }
+      return new Chunk(rows, csv, regionEnd);
+    });
+  }
+
+  private byte[] encrypt(Column column, byte[] plaintext) throws GeneralSecurityException, IOException {
+    return column.deterministic ? cryptoHelper.encryptDeterministically(plaintext, column.associatedData)
+        : cryptoHelper.encryptToBytes(plaintext, column.associatedData);
+  }
+
+  private byte[] decrypt(Column column, byte[] ciphertext) throws GeneralSecurityException, IOException {
+    return column.deterministic ? cryptoHelper.decryptDeterministically(ciphertext, column.associatedData)
+        : cryptoHelper.decryptToBytes(ciphertext, column.associatedData);
+  }
+
+  private static <T> T take(BlockingQueue<T> queue) throws IOException {
+    try {
+      return queue.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted while waiting for records", e);
+    }
+  }
+
+  private static <T> T await(Future<T> future) throws IOException, GeneralSecurityException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted while waiting for records", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof GeneralSecurityException) {
+        throw (GeneralSecurityException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
 }
\ No newline at end of file
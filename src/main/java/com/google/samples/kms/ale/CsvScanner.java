@@ -0,0 +1,240 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms.ale;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Byte-level RFC 4180 parser over a buffer of UTF-8 text. It never decodes characters: fields are handed out as
+ * the bytes between their delimiters, which is all that is needed to copy keys and encrypt values. Record
+ * positions are byte offsets, so a job can checkpoint and resume from them.
+ */
+public final class CsvScanner {
+  private final ByteBuffer buffer;
+  private final int limit;
+  private int position;
+  private int fields = 0;
+  private int[] starts = new int[4];
+  private int[] ends = new int[4];
+  private boolean[] quoted = new boolean[4];
+  private byte[] scratch = new byte[256];
+
+  public CsvScanner(ByteBuffer buffer) {
+    this.buffer = buffer;
+    this.position = buffer.position();
+    this.limit = buffer.limit();
+  }
+
+  private static final int fieldStart = 0;
+  private static final int unquoted = 1;
+  private static final int inQuotes = 2;
+  private static final int quoteInQuotes = 3;
+
+  /**
+   * Returns the offset just past the last record that ends in {@code buffer[from, to)}, or -1 if no record ends
+   * there. {@code from} must be the start of a record. Only quotes at the start of a field open a quoted field,
+   * as in {@link #next}, and a line feed outside of quotes ends the record.
+   */
+  public static int lastRecordEnd(ByteBuffer buffer, int from, int to) {
+    return recordEnd(buffer, from, to, true);
+  }
+
+  static int firstRecordEnd(ByteBuffer buffer, int from, int to) {
+    return recordEnd(buffer, from, to, false);
+  }
+
+  private static int recordEnd(ByteBuffer buffer, int from, int to, boolean last) {
+    int state = fieldStart;
+    int end = -1;
+    for (int i = from; i < to; i++) {
+      byte b = buffer.get(i);
+      switch (state) {
+        case inQuotes:
+          if (b == '"') {
+            state = quoteInQuotes;
+          }
+          break;
+        case quoteInQuotes:
+          state = b == '"' ? inQuotes : b == ',' ? fieldStart : unquoted;
+          break;
+        case fieldStart:
+          state = b == '"' ? inQuotes : b == ',' ? fieldStart : unquoted;
+          break;
+        default:
+          if (b == ',') {
+            state = fieldStart;
+          }
+      }
+      if (b == '\n' && state != inQuotes) {
+        state = fieldStart;
+        end = i + 1;
+        if (!last) {
+          break;
+        }
+      }
+    }
+    return end;
+  }
+
+  /**
+   * Offset of the next unread byte.
+   */
+  public int position() {
+    return position;
+  }
+
+  /**
+   * Parses the next record and returns false at the end of the buffer. Empty lines are skipped.
+   */
+  public boolean next() throws IOException {
+    while (position < limit && (buffer.get(position) == '\n'
+        || (buffer.get(position) == '\r' && position + 1 < limit && buffer.get(position + 1) == '\n'))) {
+      position += buffer.get(position) == '\n' ? 1 : 2;
+    }
+    if (position >= limit) {
+      return false;
+    }
+    fields = 0;
+    while (true) {
+      int start = position;
+      boolean isQuoted = buffer.get(position) == '"';
+      if (isQuoted) {
+        position++;
+        while (true) {
+          if (position >= limit) {
+            throw new IOException(String.format("unterminated quoted field at byte %d", start));
+          }
+          if (buffer.get(position++) == '"') {
+            if (position < limit && buffer.get(position) == '"') {
+              position++;
+            } else {
+              break;
+            }
+          }
+        }
+        add(start, position, true);
+      } else {
+        while (position < limit && buffer.get(position) != ',' && buffer.get(position) != '\n') {
+          position++;
+        }
+        int end = position;
+        if (end > start && buffer.get(end - 1) == '\r' && (end == limit || buffer.get(end) == '\n')) {
+          end--;
+        }
+        add(start, end, false);
+      }
+      if (position < limit && buffer.get(position) == ',') {
+        position++;
+        if (position == limit) {
+          add(position, position, false);
+          return true;
+        }
+        continue;
+      }
+      if (position < limit && buffer.get(position) == '\r') {
+        position++;
+      }
+      if (position < limit) {
+        if (buffer.get(position) != '\n') {
+          throw new IOException(String.format("unexpected character after quoted field at byte %d", position));
+        }
+        position++;
+      }
+      return true;
+    }
+  }
+
+  private void add(int start, int end, boolean isQuoted) {
+    if (fields == starts.length) {
+      starts = Arrays.copyOf(starts, fields * 2);
+      ends = Arrays.copyOf(ends, fields * 2);
+      quoted = Arrays.copyOf(quoted, fields * 2);
+    }
+    starts[fields] = start;
+    ends[fields] = end;
+    quoted[fields] = isQuoted;
+    fields++;
+  }
+
+  public int fields() {
+    return fields;
+  }
+
+  /**
+   * Copies fields {@code from} to {@code to} (exclusive) with the commas between them as they appear in the
+   * input, including quotes, so that they stay valid CSV without being re-quoted.
+   */
+  void copyRaw(int from, int to, OutputStream out) throws IOException {
+    int length = ends[to - 1] - starts[from];
+    if (scratch.length < length) {
+      scratch = new byte[Math.max(length, 2 * scratch.length)];
+    }
+    buffer.get(starts[from], scratch, 0, length);
+    out.write(scratch, 0, length);
+  }
+
+  /**
+   * Writes {@code value} as a CSV field, quoted if it contains a delimiter, quote or line break.
+   */
+  static void writeField(byte[] value, OutputStream out) throws IOException {
+    boolean quote = false;
+    for (byte b : value) {
+      if (b == ',' || b == '"' || b == '\r' || b == '\n') {
+        quote = true;
+        break;
+      }
+    }
+    if (!quote) {
+      out.write(value);
+      return;
+    }
+    out.write('"');
+    int start = 0;
+    for (int i = 0; i < value.length; i++) {
+      if (value[i] == '"') {
+        out.write(value, start, i + 1 - start);
+        start = i;
+      }
+    }
+    out.write(value, start, value.length - start);
+    out.write('"');
+  }
+
+  /**
+   * Returns the value of field {@code i} with quotes removed and doubled quotes unescaped.
+   */
+  public byte[] value(int i) {
+    if (!quoted[i]) {
+      byte[] b = new byte[ends[i] - starts[i]];
+      buffer.get(starts[i], b);
+      return b;
+    }
+    byte[] b = new byte[ends[i] - starts[i] - 2];
+    int n = 0;
+    for (int p = starts[i] + 1; p < ends[i] - 1; p++) {
+      byte c = buffer.get(p);
+      b[n++] = c;
+      if (c == '"') {
+        p++;
+      }
+    }
+    return n == b.length ? b : Arrays.copyOf(b, n);
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms.redis;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Size and round-trip latency of one pipelined batch written by {@link RedisHelper}.
+ */
+public final class BatchStats {
+  private final int commands;
+  private final long bytes;
+  private final long latencyNanos;
+
+  public BatchStats(int commands, long bytes, long latencyNanos) {
+    this.commands = commands;
+    this.bytes = bytes;
+    this.latencyNanos = latencyNanos;
+  }
+
+  public int getCommands() {
+    return commands;
+  }
+
+  public long getBytes() {
+    return bytes;
+  }
+
+  public long getLatencyNanos() {
+    return latencyNanos;
+  }
+
+  public double getCommandsPerSecond() {
+    return commands * (double) TimeUnit.SECONDS.toNanos(1) / Math.max(latencyNanos, 1);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d commands, %d bytes in %dµs (%.0f commands/s)", commands, bytes,
+        TimeUnit.NANOSECONDS.toMicros(latencyNanos), getCommandsPerSecond());
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms.redis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded LRU cache of decrypted values for {@link RedisHelper#get}. Entries expire after a fixed time to live.
+ * Plaintexts are held as {@code byte[]} and zeroed when they are evicted, expire or are invalidated.
+ */
+public class DecryptedValueCache {
+  private final int maxEntries;
+  private final long ttlNanos;
+  private final LongSupplier clock;
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  private long writes = 0;
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  public DecryptedValueCache(int maxEntries, long ttl, TimeUnit unit) {
+    this(maxEntries, ttl, unit, System::nanoTime);
+  }
+
+  DecryptedValueCache(int maxEntries, long ttl, TimeUnit unit, LongSupplier clock) {
+    this.maxEntries = Math.max(1, maxEntries);
+    this.ttlNanos = unit.toNanos(ttl);
+    this.clock = clock;
+  }
+
+  private static final class Entry {
+    final byte[] plaintext;
+    final long expires;
+
+    Entry(byte[] plaintext, long expires) {
+      this.plaintext = plaintext;
+      this.expires = expires;
+    }
+  }
+
+  /**
+   * Returns the cached value of {@code key}, or null if it is absent or has expired.
+   */
+  public synchronized String get(String key) {
+    Entry e = entries.get(key);
+    if (e != null && e.expires - clock.getAsLong() <= 0) {
+      wipe(entries.remove(key));
+      evictions++;
+      e = null;
+    }
+    if (e == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return new String(e.plaintext, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Marks the start of a lookup. A value read from Redis afterwards may only be cached with {@link #put} if no key
+   * was invalidated in between, otherwise it could be older than a concurrent write.
+   */
+  public synchronized long stamp() {
+    return writes;
+  }
+
+  /**
+   * Caches {@code plaintext}, which the cache takes ownership of and wipes once the entry is dropped.
+   */
+  public synchronized void put(String key, byte[] plaintext, long stamp) {
+    if (stamp != writes) {
+      Arrays.fill(plaintext, (byte) 0);
+      return;
+    }
+    wipe(entries.put(key, new Entry(plaintext, clock.getAsLong() + ttlNanos)));
+    Iterator<Entry> eldest = entries.values().iterator();
+    while (entries.size() > maxEntries) {
+      wipe(eldest.next());
+      eldest.remove();
+      evictions++;
+    }
+  }
+
+  public synchronized void invalidate(String key) {
+    writes++;
+    wipe(entries.remove(key));
+  }
+
+  public synchronized void clear() {
+    writes++;
+    for (Entry e : entries.values()) {
+      wipe(e);
+    }
+    entries.clear();
+  }
+
+  private static void wipe(Entry e) {
+    if (e != null) {
+      Arrays.fill(e.plaintext, (byte) 0);
+    }
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  @Override
+  public synchronized String toString() {
+    long lookups = hits + misses;
+    return String.format("%d entries, %d hits, %d misses (%.1f%% hit rate), %d evictions", entries.size(), hits,
+        misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups, evictions);
+  }
+}
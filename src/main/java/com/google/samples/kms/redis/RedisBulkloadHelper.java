@@ -16,35 +16,290 @@
 
 package com.google.samples.kms.redis;
 
+import com.google.samples.kms.Checkpoint;
 import com.google.samples.kms.CryptoHelper;
-
+import com.google.samples.kms.ThroughputReport;
 import com.google.samples.kms.ale.CsvHelper;
+import com.google.samples.kms.ale.CsvScanner;
 
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
 
 public class RedisBulkloadHelper {
+  private static final Future<Batch> endOfInput = CompletableFuture.completedFuture(null);
+  private static final int bufferSize = 1 << 20;
+  private static final int regionSize = 8 << 20;
+  private static final long maxRegionSize = Integer.MAX_VALUE - 8;
+
+  private final CryptoHelper cryptoHelper;
+  private int workers = Runtime.getRuntime().availableProcessors();
+  private int queueDepth = 64;
+  private int batchSize = 1000;
+  private boolean rawCiphertext = false;
+  private long checkpointIntervalNanos = -1;
+
+  /**
+   * Encrypted and formatted records of one batch, in input order, and the byte offset of the record that follows
+   * it in the input.
+   */
+  private static final class Batch {
+    final int rows;
+    final RespWriter resp;
+    final long end;
+
+    Batch(int rows, RespWriter resp, long end) {
+      this.rows = rows;
+      this.resp = resp;
+      this.end = end;
+    }
+  }
+
+  public RedisBulkloadHelper(CryptoHelper cryptoHelper) {
+    this.cryptoHelper = cryptoHelper;
+  }
+
+  public RedisBulkloadHelper workers(int count) {
+    workers = Math.max(1, count);
+    return this;
+  }
+
+  public RedisBulkloadHelper queueDepth(int depth) {
+    queueDepth = Math.max(1, depth);
+    return this;
+  }
+
+  public RedisBulkloadHelper batchSize(int size) {
+    batchSize = Math.max(1, size);
+    return this;
+  }
+
+  /**
+   * Writes ciphertext as raw bytes instead of Base64 text. Values loaded this way must be read with
+   * {@link RedisHelper#get}, which accepts both formats.
+   */
+  public RedisBulkloadHelper rawCiphertext(boolean flag) {
+    rawCiphertext = flag;
+    return this;
+  }
+
+  /**
+   * Records progress in a {@link Checkpoint} sidecar next to the output at most this often, and resumes an
+   * interrupted job from it instead of starting over. 0 saves after every batch.
+   */
+  public RedisBulkloadHelper checkpointInterval(long interval, TimeUnit unit) {
+    checkpointIntervalNanos = unit.toNanos(Math.max(0, interval));
+    return this;
+  }
 
   public static String formatToRedisBulkString(String key, String member) {
-    return String.format(//
-        "*3\r\n$3\r\nSET\r\n$%d\r\n%s\r\n$%d\r\n%s\r\n", //
-        key.length(), key, member.length(), member);
+    return new StringBuilder(key.length() + member.length() + 32) //
+        .append("*3\r\n$3\r\nSET\r\n$").append(RespWriter.utf8Length(key)).append("\r\n") //
+        .append(key).append("\r\n$").append(RespWriter.utf8Length(member)).append("\r\n") //
+        .append(member).append("\r\n").toString();
   }
 
   public static void encrypt(CryptoHelper cryptoHelper, String csvFileName, String redisBulkloadFileName) //
       throws IOException, GeneralSecurityException {
-    FileWriter out = new FileWriter(redisBulkloadFileName);
-    out.write(formatToRedisBulkString("--tink-keyset--", cryptoHelper.getEncodedKeysetHandle()));
-    for (CSVRecord record : CsvHelper.read(csvFileName)) {
-      String key = record.get(CsvHelper.Headers.Key);
-      String member = record.get(CsvHelper.Headers.Member);
-      String ciphertext = cryptoHelper.encrypt(member);
-      out.write(formatToRedisBulkString(key, ciphertext));
+    try (CSVParser records = CsvHelper.read(csvFileName);
+        RespWriter out = new RespWriter(open(redisBulkloadFileName), bufferSize)) {
+      out.writeSet(RedisHelper.redisKeysetKey, cryptoHelper.getEncodedKeysetHandle());
+      for (CSVRecord record : records) {
+        String key = record.get(CsvHelper.Headers.Key);
+        String member = record.get(CsvHelper.Headers.Member);
+        String ciphertext = cryptoHelper.encrypt(member);
+        out.writeSet(key, ciphertext);
+      }
+    }
+  }
+
+  private static FileChannel open(String fileName) throws IOException {
+    return FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+  }
+
+  /**
+   * Encrypts a CSV file into a Redis bulkload file on several threads. A reader thread hands batches of records
+   * to the worker pool, and the calling thread writes the finished batches in input order. At most
+   * {@code queueDepth} batches are in flight, so a slow disk throttles the reader instead of filling the heap.
+   */
+  public ThroughputReport encrypt(String csvFileName, String redisBulkloadFileName) //
+      throws IOException, GeneralSecurityException {
+    ThroughputReport report = new ThroughputReport(redisBulkloadFileName);
+    Path input = Paths.get(csvFileName);
+    Path output = Paths.get(redisBulkloadFileName);
+    Checkpoint checkpoint = checkpointIntervalNanos < 0 ? null : Checkpoint.resume(input, output);
+    if (checkpoint != null) {
+      cryptoHelper.setEncodedKeysetHandle(checkpoint.getKeyset());
     }
+    long start = checkpoint == null ? 0 : checkpoint.getInputOffset();
+    long rows = checkpoint == null ? 0 : checkpoint.getRows();
+    BlockingQueue<Future<Batch>> pending = new ArrayBlockingQueue<Future<Batch>>(queueDepth);
+    ExecutorService pool = Executors.newFixedThreadPool(workers);
+    Thread reader = new Thread(() -> read(csvFileName, start, pool, pending), "redis-bulkload-reader");
+    reader.setDaemon(true);
+    FileChannel channel = checkpoint == null ? open(redisBulkloadFileName) : checkpoint.openOutput();
+    try (RespWriter out = new RespWriter(channel, bufferSize)) {
+      if (checkpoint == null) {
+        String keyset = cryptoHelper.getEncodedKeysetHandle();
+        out.writeSet(RedisHelper.redisKeysetKey, keyset);
+        if (checkpointIntervalNanos >= 0) {
+          checkpoint = Checkpoint.start(input, output, keyset, null);
+          save(checkpoint, out, channel, start, rows);
+        }
+      }
+      reader.start();
+      for (Batch batch = await(take(pending)); batch != null; batch = await(take(pending))) {
+        out.write(batch.resp.buffer(), 0, batch.resp.position());
+        report.add(batch.rows, batch.resp.position());
+        rows += batch.rows;
+        if (checkpoint != null && checkpoint.due(checkpointIntervalNanos)) {
+          save(checkpoint, out, channel, batch.end, rows);
+        }
+      }
+    } finally {
+      reader.interrupt();
+      pool.shutdownNow();
+    }
+    if (checkpoint != null) {
+      checkpoint.delete();
+    }
+    return report.finish();
+  }
+
+  private static void save(Checkpoint checkpoint, RespWriter out, FileChannel channel, long inputOffset, long rows)
+      throws IOException {
     out.flush();
-    out.close();
+    channel.force(false);
+    checkpoint.save(inputOffset, channel.position(), rows);
+  }
+
+  /**
+   * Maps the input from {@code position} up to the end of the last record that fits in a region, growing the
+   * region for records that do not fit.
+   */
+  private static ByteBuffer mapRecords(FileChannel in, long position, long size) throws IOException {
+    long length = Math.min(size - position, regionSize);
+    while (true) {
+      MappedByteBuffer region = in.map(FileChannel.MapMode.READ_ONLY, position, length);
+      int end = position + length == size ? (int) length : CsvScanner.lastRecordEnd(region, 0, (int) length);
+      if (end >= 0) {
+        return region.slice(0, end);
+      }
+      if (length >= maxRegionSize) {
+        throw new IOException(String.format("record at byte %d is larger than 2GB", position));
+      }
+      length = Math.min(size - position, Math.min(2 * length, maxRegionSize));
+    }
+  }
+
+  /**
+   * Reads the key and member of each record from byte offset {@code start}, which is either 0 or the start of a
+   * record after the header, and hands them to the workers in batches.
+   */
+  private void read(String csvFileName, long start, ExecutorService pool, BlockingQueue<Future<Batch>> pending) {
+    try (FileChannel in = FileChannel.open(Paths.get(csvFileName), StandardOpenOption.READ)) {
+      long size = in.size();
+      boolean header = start == 0;
+      List<byte[][]> records = new ArrayList<byte[][]>(batchSize);
+      for (long position = start; position < size;) {
+        ByteBuffer region = mapRecords(in, position, size);
+        CsvScanner scanner = new CsvScanner(region);
+        while (scanner.next()) {
+          if (header) {
+            header = false;
+            continue;
+          }
+          if (scanner.fields() < 2) {
+            throw new IOException(String.format("record before byte %d has no member",
+                position + scanner.position()));
+          }
+          records.add(new byte[][] { scanner.value(0), scanner.value(1) });
+          if (records.size() == batchSize) {
+            pending.put(submit(pool, records, position + scanner.position()));
+            records = new ArrayList<byte[][]>(batchSize);
+          }
+        }
+        position += region.limit();
+      }
+      if (!records.isEmpty()) {
+        pending.put(submit(pool, records, size));
+      }
+      pending.put(endOfInput);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      CompletableFuture<Batch> failed = new CompletableFuture<Batch>();
+      failed.completeExceptionally(e);
+      try {
+        pending.put(failed);
+      } catch (InterruptedException interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private Future<Batch> submit(ExecutorService pool, List<byte[][]> records, long end) {
+    return pool.submit(() -> {
+      RespWriter resp = new RespWriter(records.size() * 128);
+      for (byte[][] record : records) {
+        if (rawCiphertext) {
+          resp.writeSet(record[0], cryptoHelper.encryptToBytes(record[1]));
+        } else {
+          resp.writeSet(new String(record[0], StandardCharsets.UTF_8),
+              cryptoHelper.encrypt(new String(record[1], StandardCharsets.UTF_8)));
+        }
+      }
+      return new Batch(records.size(), resp, end);
+    });
+  }
+
+  private static <T> T take(BlockingQueue<T> queue) throws IOException {
+    try {
+      return queue.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted while waiting for encrypted records", e);
+    }
+  }
+
+  static <T> T await(Future<T> future) throws IOException, GeneralSecurityException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted while waiting for encrypted records", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof GeneralSecurityException) {
+        throw (GeneralSecurityException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
   }
 }
\ No newline at end of file
@@ -0,0 +1,455 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms.redis;
+
+import com.google.samples.kms.CryptoHelper;
+import com.google.samples.kms.Instrumentation;
+import com.google.samples.kms.ThroughputReport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisSlotBasedConnectionHandler;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisAskDataException;
+import redis.clients.jedis.exceptions.JedisClusterMaxAttemptsException;
+import redis.clients.jedis.exceptions.JedisClusterOperationException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisMovedDataException;
+import redis.clients.jedis.util.JedisClusterCRC16;
+
+/**
+ * Variant of {@link RedisHelper} for Redis Cluster. Each batch of {@link #set} and {@link #get} is grouped by
+ * hash slot, and the groups of every node are pipelined to it in parallel: a SET per key, and one MGET per slot
+ * since a command cannot span slots. Keys that share a hash tag, e.g. {@code {user42}:name}, land in one slot
+ * and are read with a single MGET.
+ *
+ * <p>Redirects are followed per key: MOVED refreshes the slot map and sends the key again, ASK sends it to the
+ * importing node after ASKING, and a TRYAGAIN during a migration reads the keys of the slot one by one. The
+ * keyset is stored once under {@code --tink-keyset--}, written with SETNX so that helpers starting at the same
+ * time agree on one keyset.
+ */
+public class RedisClusterHelper implements Closeable {
+  private static final int maxRedirects = 5;
+  private final CryptoHelper cryptoHelper;
+  private final SlotMap slots;
+  private boolean rawCiphertext = false;
+  private int batchSize = 5000;
+  private ExecutorService executor;
+
+  public RedisClusterHelper(CryptoHelper ctx, Set<HostAndPort> nodes) throws GeneralSecurityException, IOException {
+    this(ctx, nodes, defaultPoolConfig());
+  }
+
+  public RedisClusterHelper(CryptoHelper ctx, Set<HostAndPort> nodes, GenericObjectPoolConfig<Jedis> poolConfig)
+      throws GeneralSecurityException, IOException {
+    slots = new SlotMap(nodes, poolConfig);
+    cryptoHelper = ctx.loadKeyset(false);
+    byte[] key = RedisHelper.redisKeysetKey.getBytes(StandardCharsets.UTF_8);
+    byte[] k = getKeyset(key);
+    if (k == null) {
+      k = ctx.getEncodedKeysetHandle().getBytes(StandardCharsets.UTF_8);
+      if (setnx(key, k) == 1) {
+        return;
+      }
+      k = getKeyset(key);
+    }
+    ctx.setEncodedKeysetHandle(new String(k, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * The settings of {@link redis.clients.jedis.JedisPoolConfig}, typed for {@link Jedis} since that class extends
+   * the raw pool config.
+   */
+  private static GenericObjectPoolConfig<Jedis> defaultPoolConfig() {
+    GenericObjectPoolConfig<Jedis> poolConfig = new GenericObjectPoolConfig<Jedis>();
+    poolConfig.setTestWhileIdle(true);
+    poolConfig.setMinEvictableIdleTimeMillis(60000);
+    poolConfig.setTimeBetweenEvictionRunsMillis(30000);
+    poolConfig.setNumTestsPerEvictionRun(-1);
+    return poolConfig;
+  }
+
+  private byte[] getKeyset(byte[] key) throws GeneralSecurityException, IOException {
+    GetBatch batch = new GetBatch(new byte[][] { key });
+    batch.run();
+    return batch.values[0];
+  }
+
+  /**
+   * Sends SETNX to the node that owns {@code key} and follows redirects.
+   */
+  private long setnx(byte[] key, byte[] value) {
+    for (int attempt = 1; attempt <= maxRedirects; attempt++) {
+      try (Jedis j = slots.getSlotPool(JedisClusterCRC16.getSlot(key)).getResource()) {
+        return j.setnx(key, value);
+      } catch (JedisAskDataException e) {
+        try (Jedis j = slots.getNodePool(e.getTargetNode()).getResource()) {
+          j.asking();
+          return j.setnx(key, value);
+        }
+      } catch (JedisMovedDataException e) {
+        slots.renewSlotCache();
+      }
+    }
+    throw new JedisClusterMaxAttemptsException("key was redirected more than " + maxRedirects + " times");
+  }
+
+  /**
+   * Stores ciphertext as raw bytes instead of Base64 text, see {@link RedisHelper#rawCiphertext}.
+   */
+  public RedisClusterHelper rawCiphertext(boolean flag) {
+    rawCiphertext = flag;
+    return this;
+  }
+
+  /**
+   * Number of keys that {@link #set} encrypts and spreads over the nodes at a time.
+   */
+  public RedisClusterHelper batchSize(int keys) {
+    batchSize = Math.max(1, keys);
+    return this;
+  }
+
+  public Map<String, JedisPool> getClusterNodes() {
+    return slots.getNodes();
+  }
+
+  private synchronized ExecutorService executor() {
+    if (executor == null) {
+      executor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "redis-cluster-helper");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    return executor;
+  }
+
+  @Override
+  public synchronized void close() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+    slots.close();
+  }
+
+  public ThroughputReport set(Iterator<Map.Entry<String, String>> kvs) throws GeneralSecurityException, IOException {
+    return write(kvs, true);
+  }
+
+  public ThroughputReport setClear(Iterator<Map.Entry<String, String>> kvs)
+      throws GeneralSecurityException, IOException {
+    return write(kvs, false);
+  }
+
+  private ThroughputReport write(Iterator<Map.Entry<String, String>> kvs, boolean encrypt)
+      throws GeneralSecurityException, IOException {
+    ThroughputReport report = new ThroughputReport("redis cluster set");
+    while (kvs.hasNext()) {
+      List<byte[]> keys = new ArrayList<byte[]>(batchSize);
+      List<byte[]> values = new ArrayList<byte[]>(batchSize);
+      long bytes = 0;
+      while (keys.size() < batchSize && kvs.hasNext()) {
+        Map.Entry<String, String> kv = kvs.next();
+        byte[] value = kv.getValue().getBytes(StandardCharsets.UTF_8);
+        if (encrypt) {
+          value = cryptoHelper.encryptToBytes(value);
+          if (!rawCiphertext) {
+            value = Base64.getEncoder().encode(value);
+          }
+        }
+        keys.add(kv.getKey().getBytes(StandardCharsets.UTF_8));
+        values.add(value);
+        bytes += keys.get(keys.size() - 1).length + value.length;
+      }
+      new SetBatch(keys.toArray(new byte[0][]), values.toArray(new byte[0][])).run();
+      report.add(keys.size(), bytes);
+    }
+    return report.finish();
+  }
+
+  public List<String> get(String... keys) throws GeneralSecurityException, IOException {
+    return getAll(keys, true);
+  }
+
+  public List<String> getClear(String... keys) throws GeneralSecurityException, IOException {
+    return getAll(keys, false);
+  }
+
+  private List<String> getAll(String[] keys, boolean decrypt) throws GeneralSecurityException, IOException {
+    byte[][] binaryKeys = new byte[keys.length][];
+    for (int i = 0; i < keys.length; i++) {
+      binaryKeys[i] = keys[i].getBytes(StandardCharsets.UTF_8);
+    }
+    GetBatch batch = new GetBatch(binaryKeys);
+    batch.run();
+    List<byte[]> ciphertexts = new ArrayList<byte[]>(keys.length);
+    for (byte[] v : batch.values) {
+      if (v != null) {
+        ciphertexts.add(decrypt ? cryptoHelper.decodeCiphertext(v) : v);
+      }
+    }
+    Iterator<byte[]> plaintexts = (decrypt ? cryptoHelper.decryptAll(ciphertexts) : ciphertexts).iterator();
+    List<String> l = new ArrayList<String>(keys.length);
+    for (byte[] v : batch.values) {
+      l.add(v == null ? null : new String(plaintexts.next(), StandardCharsets.UTF_8));
+    }
+    return l;
+  }
+
+  /**
+   * Sends the commands of one batch to the nodes that own their keys and follows redirects. Subclasses send
+   * the commands of one node in a pipeline and report the keys that were redirected.
+   */
+  private abstract class Batch {
+    final byte[][] keys;
+    final Set<Integer> singles = new HashSet<Integer>();
+
+    Batch(byte[][] keys) {
+      this.keys = keys;
+    }
+
+    /**
+     * Sends the keys at {@code indices} to {@code pool} and returns the redirects, one per key.
+     */
+    abstract List<Redirect> send(JedisPool pool, List<Integer> indices);
+
+    /**
+     * Sends the key at {@code index} to the importing node of a migrating slot.
+     */
+    abstract void ask(Jedis j, int index);
+
+    void run() throws GeneralSecurityException, IOException {
+      List<Integer> pending = new ArrayList<Integer>(keys.length);
+      for (int i = 0; i < keys.length; i++) {
+        pending.add(i);
+      }
+      for (int attempt = 1; !pending.isEmpty(); attempt++) {
+        if (attempt > maxRedirects) {
+          throw new JedisClusterMaxAttemptsException("keys were redirected more than " + maxRedirects + " times");
+        }
+        if (attempt > 1) {
+          slots.renewSlotCache();
+        }
+        Map<JedisPool, List<Integer>> byNode = new LinkedHashMap<JedisPool, List<Integer>>();
+        for (int i : pending) {
+          byNode.computeIfAbsent(slots.getSlotPool(JedisClusterCRC16.getSlot(keys[i])),
+              p -> new ArrayList<Integer>()).add(i);
+        }
+        pending = new ArrayList<Integer>();
+        for (Redirect r : sendAll(byNode)) {
+          if (r.error instanceof JedisAskDataException) {
+            try (Jedis j = slots.getNodePool(((JedisAskDataException) r.error).getTargetNode()).getResource()) {
+              j.asking();
+              ask(j, r.index);
+            }
+          } else if (r.error instanceof JedisMovedDataException) {
+            pending.add(r.index);
+          } else if (String.valueOf(r.error.getMessage()).startsWith("TRYAGAIN")) {
+            singles.add(r.index);
+            pending.add(r.index);
+          } else {
+            throw r.error;
+          }
+        }
+      }
+    }
+
+    private List<Redirect> sendAll(Map<JedisPool, List<Integer>> byNode) throws GeneralSecurityException, IOException {
+      List<Redirect> redirects = new ArrayList<Redirect>();
+      if (byNode.size() == 1) {
+        Map.Entry<JedisPool, List<Integer>> node = byNode.entrySet().iterator().next();
+        return send(node.getKey(), node.getValue());
+      }
+      List<Future<List<Redirect>>> nodes = new ArrayList<Future<List<Redirect>>>(byNode.size());
+      try {
+        for (Map.Entry<JedisPool, List<Integer>> node : byNode.entrySet()) {
+          nodes.add(executor().submit(() -> send(node.getKey(), node.getValue())));
+        }
+        for (Future<List<Redirect>> node : nodes) {
+          redirects.addAll(RedisBulkloadHelper.await(node));
+        }
+      } finally {
+        for (Future<List<Redirect>> node : nodes) {
+          node.cancel(true);
+        }
+      }
+      return redirects;
+    }
+  }
+
+  private final class SetBatch extends Batch {
+    private final byte[][] values;
+
+    SetBatch(byte[][] keys, byte[][] values) {
+      super(keys);
+      this.values = values;
+    }
+
+    @Override
+    List<Redirect> send(JedisPool pool, List<Integer> indices) {
+      Instrumentation instrumentation = cryptoHelper.getInstrumentation();
+      long start = System.nanoTime();
+      long bytes = 0;
+      List<Object> replies;
+      try (Jedis j = pool.getResource()) {
+        Pipeline p = j.pipelined();
+        for (int i : indices) {
+          p.set(keys[i], values[i]);
+          bytes += keys[i].length + values[i].length;
+        }
+        replies = p.syncAndReturnAll();
+      } catch (RuntimeException e) {
+        instrumentation.failure(Instrumentation.Operation.REDIS_SET, e);
+        throw e;
+      }
+      instrumentation.record(Instrumentation.Operation.REDIS_SET, indices.size(), bytes, System.nanoTime() - start);
+      List<Redirect> redirects = new ArrayList<Redirect>();
+      for (int n = 0; n < replies.size(); n++) {
+        if (replies.get(n) instanceof JedisDataException) {
+          redirects.add(new Redirect(indices.get(n), (JedisDataException) replies.get(n)));
+        }
+      }
+      return redirects;
+    }
+
+    @Override
+    void ask(Jedis j, int index) {
+      j.set(keys[index], values[index]);
+    }
+  }
+
+  private final class GetBatch extends Batch {
+    final byte[][] values;
+
+    GetBatch(byte[][] keys) {
+      super(keys);
+      values = new byte[keys.length][];
+    }
+
+    /**
+     * Sends one MGET per slot, or per key for keys that were asked to try again.
+     */
+    @Override
+    List<Redirect> send(JedisPool pool, List<Integer> indices) {
+      Map<Integer, List<Integer>> bySlot = new LinkedHashMap<Integer, List<Integer>>();
+      for (int i : indices) {
+        int group = singles.contains(i) ? -1 - i : JedisClusterCRC16.getSlot(keys[i]);
+        bySlot.computeIfAbsent(group, s -> new ArrayList<Integer>()).add(i);
+      }
+      Instrumentation instrumentation = cryptoHelper.getInstrumentation();
+      long start = System.nanoTime();
+      List<Object> replies;
+      try (Jedis j = pool.getResource()) {
+        Pipeline p = j.pipelined();
+        for (List<Integer> slot : bySlot.values()) {
+          byte[][] k = new byte[slot.size()][];
+          for (int n = 0; n < k.length; n++) {
+            k[n] = keys[slot.get(n)];
+          }
+          p.mget(k);
+        }
+        replies = p.syncAndReturnAll();
+      } catch (RuntimeException e) {
+        instrumentation.failure(Instrumentation.Operation.REDIS_GET, e);
+        throw e;
+      }
+      List<Redirect> redirects = new ArrayList<Redirect>();
+      long bytes = 0;
+      Iterator<Object> reply = replies.iterator();
+      for (List<Integer> slot : bySlot.values()) {
+        Object r = reply.next();
+        if (r instanceof JedisDataException) {
+          for (int i : slot) {
+            redirects.add(new Redirect(i, (JedisDataException) r));
+          }
+          continue;
+        }
+        @SuppressWarnings("unchecked")
+        List<byte[]> v = (List<byte[]>) r;
+        for (int n = 0; n < slot.size(); n++) {
+          values[slot.get(n)] = v.get(n);
+          bytes += v.get(n) == null ? 0 : v.get(n).length;
+        }
+      }
+      instrumentation.record(Instrumentation.Operation.REDIS_GET, indices.size(), bytes, System.nanoTime() - start);
+      return redirects;
+    }
+
+    @Override
+    void ask(Jedis j, int index) {
+      values[index] = j.get(keys[index]);
+    }
+  }
+
+  private static final class Redirect {
+    final int index;
+    final JedisDataException error;
+
+    Redirect(int index, JedisDataException error) {
+      this.index = index;
+      this.error = error;
+    }
+  }
+
+  /**
+   * Slot map of the cluster, discovered once from {@code nodes}, so that keys can be grouped by the node that
+   * owns them.
+   */
+  private static final class SlotMap extends JedisSlotBasedConnectionHandler {
+    SlotMap(Set<HostAndPort> nodes, GenericObjectPoolConfig<Jedis> poolConfig) {
+      super(nodes, poolConfig, Protocol.DEFAULT_TIMEOUT);
+    }
+
+    JedisPool getSlotPool(int slot) {
+      JedisPool pool = cache.getSlotPool(slot);
+      if (pool == null) {
+        renewSlotCache();
+        pool = cache.getSlotPool(slot);
+      }
+      if (pool == null) {
+        throw new JedisClusterOperationException("no node serves slot " + slot);
+      }
+      return pool;
+    }
+
+    JedisPool getNodePool(HostAndPort node) {
+      return cache.setupNodeIfNotExist(node);
+    }
+  }
+}
@@ -16,92 +16,762 @@
 
 package com.google.samples.kms.redis;
 
+import com.google.crypto.tink.DeterministicAead;
 import com.google.samples.kms.CryptoHelper;
+import com.google.samples.kms.Instrumentation;
+import com.google.samples.kms.ThroughputReport;
+import com.google.samples.kms.ale.CsvHelper;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
 import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
 
-public class RedisHelper {
+public class RedisHelper implements Closeable {
   static final String redisKeysetKey = "--tink-keyset--";
+  static final String redisDeterministicKeysetKey = "--tink-deterministic-keyset--";
+  static final String redisKeysetStampKey = "--tink-keyset-stamp--";
+  private static final byte[] keyAssociatedData = "RedisHelper key".getBytes(StandardCharsets.UTF_8);
   private CryptoHelper cryptoHelper;
   private JedisPool jedisPool;
+  private final boolean ownsPool;
+  private boolean rawCiphertext = false;
+  private boolean encryptKeys = false;
+  private volatile DeterministicAead keyCipher;
+  private volatile String keyset;
+  private volatile String keysetStamp;
+  private int getChunkSize = 1000;
+  private int chunksInFlight = 4;
+  private int connections = 4;
+  private int queueDepth = 2;
+  private int batchSize = 5000;
+  private long batchBytes = 8 << 20;
+  private boolean encryptAhead = false;
+  private Consumer<BatchStats> batchListener;
+  private DecryptedValueCache cache;
+  private ExecutorService executor;
 
   public RedisHelper(CryptoHelper ctx, String host, int port) throws GeneralSecurityException, IOException {
-    JedisPoolConfig poolConfig = new JedisPoolConfig();
-    poolConfig.setTestOnBorrow(true);
-    poolConfig.setTestWhileIdle(true);
-    jedisPool = new JedisPool(poolConfig, host, port, 30);
+    this(ctx, newJedisPool(host, port), true);
+  }
+
+  /**
+   * Uses {@code pool} without taking it over: {@link #close} leaves it open for the caller.
+   */
+  public RedisHelper(CryptoHelper ctx, JedisPool pool) throws GeneralSecurityException, IOException {
+    this(ctx, pool, false);
+  }
+
+  private RedisHelper(CryptoHelper ctx, JedisPool pool, boolean ownsPool)
+      throws GeneralSecurityException, IOException {
+    jedisPool = pool;
+    this.ownsPool = ownsPool;
     this.cryptoHelper = ctx.loadKeyset(false);
+    keysetStamp = getRaw(redisKeysetStampKey);
     String k = getRaw(redisKeysetKey);
     if (k == null) {
-      setRaw(redisKeysetKey, ctx.getEncodedKeysetHandle());
+      k = ctx.getEncodedKeysetHandle();
+      setRaw(redisKeysetKey, k);
     } else {
       ctx.setEncodedKeysetHandle(k);
     }
+    keyset = k;
+  }
+
+  static JedisPool newJedisPool(String host, int port) {
+    JedisPoolConfig poolConfig = new JedisPoolConfig();
+    poolConfig.setTestOnBorrow(true);
+    poolConfig.setTestWhileIdle(true);
+    return new JedisPool(poolConfig, host, port, 30);
+  }
+
+  /**
+   * Stores ciphertext as raw bytes instead of Base64 text, which saves a third of the memory and bandwidth
+   * per value. {@link #get} reads values written in either format.
+   */
+  public RedisHelper rawCiphertext(boolean flag) {
+    rawCiphertext = flag;
+    return this;
+  }
+
+  /**
+   * Encrypts keys deterministically, so that a key is stored under the same ciphertext every time and can still
+   * be read with a single GET. The deterministic keyset is shared through Redis like the value keyset. Redis
+   * then learns neither keys nor values, only which operations touch the same key.
+   */
+  public RedisHelper encryptKeys(boolean flag) {
+    encryptKeys = flag;
+    return this;
+  }
+
+  /**
+   * Makes {@link #set} and {@link #setClear} sync the pipeline after this many commands, so that pending replies
+   * never pile up in the client.
+   */
+  public RedisHelper batchSize(int commands) {
+    batchSize = Math.max(1, commands);
+    return this;
+  }
+
+  /**
+   * Also syncs the pipeline once the keys and values of a batch reach this many bytes.
+   */
+  public RedisHelper batchBytes(long bytes) {
+    batchBytes = Math.max(1, bytes);
+    return this;
+  }
+
+  /**
+   * Number of pooled connections {@link #load} writes on in parallel. Keep it at or below the size of the
+   * connection pool.
+   */
+  public RedisHelper connections(int count) {
+    connections = Math.max(1, count);
+    return this;
+  }
+
+  /**
+   * Number of batches {@link #load} buffers per connection before reading the input blocks.
+   */
+  public RedisHelper queueDepth(int batches) {
+    queueDepth = Math.max(1, batches);
+    return this;
+  }
+
+  /**
+   * Encrypts the next batch on a worker thread while the current one is sent to Redis.
+   */
+  public RedisHelper encryptAhead(boolean flag) {
+    encryptAhead = flag;
+    return this;
+  }
+
+  public RedisHelper batchListener(Consumer<BatchStats> listener) {
+    batchListener = listener;
+    return this;
+  }
+
+  /**
+   * Serves {@link #get} from {@code cache} where possible and caches what it decrypts. {@link #set} and
+   * {@link #setClear} invalidate the keys they write.
+   */
+  public RedisHelper cache(DecryptedValueCache cache) {
+    this.cache = cache;
+    return this;
+  }
+
+  /**
+   * Splits {@link #get} and {@link #getClear} into MGET commands of at most this many keys.
+   */
+  public RedisHelper getChunkSize(int keys) {
+    getChunkSize = Math.max(1, keys);
+    return this;
+  }
+
+  /**
+   * Number of MGET chunks fetched and decrypted ahead of the caller, each on its own pooled connection. Keep it
+   * at or below the size of the connection pool.
+   */
+  public synchronized RedisHelper chunksInFlight(int chunks) {
+    chunksInFlight = Math.max(1, chunks);
+    if (executor != null) {
+      executor.shutdown();
+      executor = null;
+    }
+    return this;
+  }
+
+  private synchronized ExecutorService executor() {
+    if (executor == null) {
+      executor = Executors.newFixedThreadPool(chunksInFlight, r -> {
+        Thread t = new Thread(r, "redis-helper-get");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    return executor;
   }
 
-  private void setRaw(String key, String value) {
+  @Override
+  public synchronized void close() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+    if (ownsPool) {
+      jedisPool.close();
+    }
+  }
+
+  void setRaw(String key, String value) {
     try (Jedis j = jedisPool.getResource()) {
       j.set(key, value);
     }
   }
 
-  private String getRaw(String key) {
+  String getRaw(String key) {
     try (Jedis j = jedisPool.getResource()) {
       return j.get(key);
     }
   }
 
-  public void set(Iterator<Map.Entry<String, String>> kvs) throws NullPointerException, GeneralSecurityException, IOException {
-    try (Pipeline p = jedisPool.getResource().pipelined()) {
-      while (kvs.hasNext()) {
-        Map.Entry<String, String> r = kvs.next();
-        p.set(r.getKey(), cryptoHelper.encrypt(r.getValue()));
+  JedisPool getJedisPool() {
+    return jedisPool;
+  }
+
+  CryptoHelper getCryptoHelper() {
+    return cryptoHelper;
+  }
+
+  /**
+   * Loads the keyset stored in Redis if it changed since this helper last loaded it, e.g. because
+   * {@link RedisKeyRotation} added a key, and returns whether it did.
+   */
+  public synchronized boolean reloadKeyset() throws GeneralSecurityException, IOException {
+    String stamp = getRaw(redisKeysetStampKey);
+    String k = getRaw(redisKeysetKey);
+    boolean changed = k != null && !k.equals(keyset);
+    if (changed) {
+      cryptoHelper.setEncodedKeysetHandle(k);
+      keyset = k;
+    }
+    keysetStamp = stamp;
+    return changed;
+  }
+
+  /**
+   * Stores the keyset of the crypto helper in Redis after it has been rotated, and bumps the keyset stamp in the
+   * same transaction so that writers in other processes notice the new primary key with their next batch.
+   */
+  synchronized void storeKeyset() throws GeneralSecurityException, IOException {
+    String k = cryptoHelper.getEncodedKeysetHandle();
+    try (Jedis j = jedisPool.getResource()) {
+      Transaction t = j.multi();
+      t.set(redisKeysetKey, k);
+      Response<Long> stamp = t.incr(redisKeysetStampKey);
+      t.exec();
+      keyset = k;
+      keysetStamp = Long.toString(stamp.get());
+    }
+  }
+
+  private DeterministicAead keyCipher() throws GeneralSecurityException, IOException {
+    DeterministicAead c = keyCipher;
+    if (c == null) {
+      synchronized (this) {
+        c = keyCipher;
+        if (c == null) {
+          String k = getRaw(redisDeterministicKeysetKey);
+          if (k == null) {
+            k = cryptoHelper.getEncodedDeterministicKeysetHandle();
+            try (Jedis j = jedisPool.getResource()) {
+              if (j.setnx(redisDeterministicKeysetKey, k) == 0) {
+                k = j.get(redisDeterministicKeysetKey);
+                cryptoHelper.setEncodedDeterministicKeysetHandle(k);
+              }
+            }
+          } else {
+            cryptoHelper.setEncodedDeterministicKeysetHandle(k);
+          }
+          c = cryptoHelper.getDeterministicAead();
+          keyCipher = c;
+        }
       }
-      p.sync();
     }
+    return c;
+  }
+
+  /**
+   * Returns the key as stored in Redis: the UTF-8 bytes of {@code key}, or with {@link #encryptKeys} its
+   * deterministic ciphertext in the same encoding as values.
+   */
+  private byte[] encodeKey(String key) throws GeneralSecurityException, IOException {
+    byte[] k = key.getBytes(StandardCharsets.UTF_8);
+    if (!encryptKeys) {
+      return k;
+    }
+    byte[] c = keyCipher().encryptDeterministically(k, keyAssociatedData);
+    return rawCiphertext ? c : Base64.getEncoder().encode(c);
   }
 
-  public void setClear(Iterator<Map.Entry<String, String>> kvs)
+  public ThroughputReport set(Iterator<Map.Entry<String, String>> kvs)
       throws NullPointerException, GeneralSecurityException, IOException {
-    try (Pipeline p = jedisPool.getResource().pipelined()) {
-      while (kvs.hasNext()) {
-        Map.Entry<String, String> r = kvs.next();
-        p.set(r.getKey(), r.getValue());
+    return write(kvs, true);
+  }
+
+  public ThroughputReport setClear(Iterator<Map.Entry<String, String>> kvs)
+      throws NullPointerException, GeneralSecurityException, IOException {
+    return write(kvs, false);
+  }
+
+  private ThroughputReport write(Iterator<Map.Entry<String, String>> kvs, boolean encrypt)
+      throws GeneralSecurityException, IOException {
+    ThroughputReport report = new ThroughputReport("redis set");
+    boolean ahead = encrypt && encryptAhead;
+    Future<Encoded> next = ahead ? executor().submit(() -> encode(kvs, encrypt)) : null;
+    try (Jedis j = jedisPool.getResource()) {
+      Pipeline p = j.pipelined();
+      while (true) {
+        Encoded batch = ahead ? RedisBulkloadHelper.await(next) : encode(kvs, encrypt);
+        if (batch.entries.isEmpty()) {
+          break;
+        }
+        if (ahead) {
+          next = executor().submit(() -> encode(kvs, encrypt));
+        }
+        send(p, batch, report);
+      }
+    } finally {
+      if (next != null) {
+        next.cancel(true);
+      }
+    }
+    return report.finish();
+  }
+
+  /**
+   * Encrypts the {@code Key} and {@code Member} columns of a CSV file straight into Redis, without an
+   * intermediate bulkload file. Records are spread over {@link #connections} workers by the hash of their key,
+   * so that repeated keys are written in input order. Each worker encrypts and pipelines its batches on its own
+   * connection, and reading blocks while a worker has {@link #queueDepth} batches waiting. The batch listener is
+   * called from the workers.
+   */
+  public ThroughputReport load(String csvFileName) throws GeneralSecurityException, IOException {
+    ThroughputReport report = new ThroughputReport("redis load " + csvFileName);
+    List<BlockingQueue<List<Map.Entry<String, String>>>> queues =
+        new ArrayList<BlockingQueue<List<Map.Entry<String, String>>>>();
+    List<List<Map.Entry<String, String>>> batches = new ArrayList<List<Map.Entry<String, String>>>();
+    List<Future<?>> workers = new ArrayList<Future<?>>();
+    AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    ExecutorService pool = Executors.newFixedThreadPool(connections, r -> {
+      Thread t = new Thread(r, "redis-helper-load");
+      t.setDaemon(true);
+      return t;
+    });
+    try {
+      for (int i = 0; i < connections; i++) {
+        BlockingQueue<List<Map.Entry<String, String>>> queue =
+            new ArrayBlockingQueue<List<Map.Entry<String, String>>>(queueDepth);
+        queues.add(queue);
+        batches.add(new ArrayList<Map.Entry<String, String>>(batchSize));
+        workers.add(pool.submit(() -> sendBatches(queue, report, failure)));
+      }
+      try (CSVParser records = CsvHelper.read(csvFileName)) {
+        for (CSVRecord record : records) {
+          if (failure.get() != null) {
+            break;
+          }
+          String key = record.get(CsvHelper.Headers.Key);
+          int i = Math.floorMod(key.hashCode(), connections);
+          batches.get(i).add(new AbstractMap.SimpleEntry<String, String>(key, record.get(CsvHelper.Headers.Member)));
+          if (batches.get(i).size() == batchSize) {
+            queues.get(i).put(batches.get(i));
+            batches.set(i, new ArrayList<Map.Entry<String, String>>(batchSize));
+          }
+        }
+        for (int i = 0; i < connections; i++) {
+          if (!batches.get(i).isEmpty() && failure.get() == null) {
+            queues.get(i).put(batches.get(i));
+          }
+          queues.get(i).put(Collections.<Map.Entry<String, String>>emptyList());
+        }
+        for (Future<?> worker : workers) {
+          RedisBulkloadHelper.await(worker);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted while loading " + csvFileName, e);
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    Throwable e = failure.get();
+    if (e instanceof GeneralSecurityException) {
+      throw (GeneralSecurityException) e;
+    }
+    if (e instanceof IOException) {
+      throw (IOException) e;
+    }
+    if (e instanceof Error) {
+      throw (Error) e;
+    }
+    if (e != null) {
+      throw (RuntimeException) e;
+    }
+    return report.finish();
+  }
+
+  /**
+   * Worker of {@link #load}: sends batches until it takes the empty end marker. After any failure, errors
+   * included, it keeps draining its queue so that the reader never blocks on it.
+   */
+  private Void sendBatches(BlockingQueue<List<Map.Entry<String, String>>> queue, ThroughputReport report,
+      AtomicReference<Throwable> failure) throws InterruptedException {
+    Jedis j = null;
+    try {
+      Pipeline p = null;
+      for (List<Map.Entry<String, String>> batch = queue.take(); !batch.isEmpty(); batch = queue.take()) {
+        if (failure.get() != null) {
+          continue;
+        }
+        try {
+          if (j == null) {
+            j = jedisPool.getResource();
+            p = j.pipelined();
+          }
+          Iterator<Map.Entry<String, String>> kvs = batch.iterator();
+          for (Encoded encoded = encode(kvs, true); !encoded.entries.isEmpty(); encoded = encode(kvs, true)) {
+            send(p, encoded, report);
+          }
+        } catch (Throwable e) {
+          failure.compareAndSet(null, e);
+        }
+      }
+    } finally {
+      if (j != null) {
+        j.close();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * SET commands of one batch as key, value, plain key and, if encrypted, plaintext, together with the keyset
+   * stamp that was loaded before the values were encrypted.
+   */
+  private static final class Encoded {
+    final List<byte[][]> entries = new ArrayList<byte[][]>();
+    final boolean encrypted;
+    String keysetStamp;
+
+    Encoded(boolean encrypted, String keysetStamp) {
+      this.encrypted = encrypted;
+      this.keysetStamp = keysetStamp;
+    }
+  }
+
+  private Encoded encode(Iterator<Map.Entry<String, String>> kvs, boolean encrypt)
+      throws GeneralSecurityException, IOException {
+    Encoded batch = new Encoded(encrypt, keysetStamp);
+    long bytes = 0;
+    while (batch.entries.size() < batchSize && bytes < batchBytes && kvs.hasNext()) {
+      Map.Entry<String, String> r = kvs.next();
+      byte[] key = encodeKey(r.getKey());
+      byte[] plaintext = r.getValue().getBytes(StandardCharsets.UTF_8);
+      byte[] value = encrypt ? encryptValue(plaintext) : plaintext;
+      batch.entries.add(new byte[][] { key, value, r.getKey().getBytes(StandardCharsets.UTF_8), plaintext });
+      bytes += key.length + value.length;
+    }
+    return batch;
+  }
+
+  private byte[] encryptValue(byte[] plaintext) throws GeneralSecurityException, IOException {
+    byte[] value = cryptoHelper.encryptToBytes(plaintext);
+    return rawCiphertext ? value : Base64.getEncoder().encode(value);
+  }
+
+  /**
+   * Sends one batch. Encrypted batches read the keyset stamp after their SETs. If a {@link RedisKeyRotation} has
+   * stored a new keyset since the values were encrypted, the rotation may already have scanned past these keys,
+   * so the keyset is reloaded and the batch is encrypted with the new primary key and sent again.
+   */
+  private void send(Pipeline p, Encoded batch, ThroughputReport report) throws GeneralSecurityException, IOException {
+    while (pipeline(p, batch, report)) {
+      reloadKeyset();
+      batch.keysetStamp = keysetStamp;
+      for (byte[][] kv : batch.entries) {
+        kv[1] = encryptValue(kv[3]);
+      }
+      report = null;
+    }
+  }
+
+  /**
+   * Pipelines the SETs of {@code batch} and returns whether the keyset stamp in Redis differs from the one its
+   * values were encrypted under.
+   */
+  private boolean pipeline(Pipeline p, Encoded batch, ThroughputReport report) {
+    long start = System.nanoTime();
+    long bytes = 0;
+    Instrumentation instrumentation = cryptoHelper.getInstrumentation();
+    Response<String> stamp = null;
+    try {
+      for (byte[][] kv : batch.entries) {
+        p.set(kv[0], kv[1]);
+        bytes += kv[0].length + kv[1].length;
+      }
+      if (batch.encrypted) {
+        stamp = p.get(redisKeysetStampKey);
       }
       p.sync();
+    } catch (RuntimeException e) {
+      instrumentation.failure(Instrumentation.Operation.REDIS_SET, e);
+      throw e;
+    }
+    int rows = batch.entries.size();
+    instrumentation.record(Instrumentation.Operation.REDIS_SET, rows, bytes, System.nanoTime() - start);
+    if (cache != null) {
+      for (byte[][] kv : batch.entries) {
+        cache.invalidate(new String(kv[2], StandardCharsets.UTF_8));
+      }
+    }
+    if (report != null) {
+      report.add(rows, bytes);
     }
+    if (batchListener != null) {
+      batchListener.accept(new BatchStats(rows, bytes, System.nanoTime() - start));
+    }
+    return stamp != null && !Objects.equals(stamp.get(), batch.keysetStamp);
   }
 
   public List<String> get(String... keys)
       throws UnsupportedEncodingException, NullPointerException, GeneralSecurityException, IOException {
-    Jedis j = jedisPool.getResource();
-    List<String> values = j.mget(keys);
-    List<String> l = new ArrayList<String>();
-    for (String v : values) {
-      l.add(cryptoHelper.decrypt(v));
-    }
-    return l;
+    return getAll(keys, true);
   }
 
   public List<String> getClear(String... keys)
       throws UnsupportedEncodingException, NullPointerException, GeneralSecurityException, IOException {
-    Jedis j = jedisPool.getResource();
-    List<String> values = j.mget(keys);
+    return getAll(keys, false);
+  }
+
+  /**
+   * Returns the decrypted values of {@code keys} in order while later chunks are still being fetched. Failures
+   * surface from {@code next()} as {@link UncheckedIOException} or, for decryption errors,
+   * {@link IllegalStateException}.
+   */
+  public Iterator<String> iterator(String... keys) {
+    final ChunkedGet chunks = new ChunkedGet(keys, true);
+    return new Iterator<String>() {
+      private Iterator<String> chunk = Collections.emptyIterator();
+
+      @Override
+      public boolean hasNext() {
+        while (!chunk.hasNext()) {
+          List<String> l = nextChunk();
+          if (l == null) {
+            return false;
+          }
+          chunk = l.iterator();
+        }
+        return true;
+      }
+
+      @Override
+      public String next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return chunk.next();
+      }
+
+      private List<String> nextChunk() {
+        try {
+          return chunks.next();
+        } catch (IOException e) {
+          chunks.cancel();
+          throw new UncheckedIOException(e);
+        } catch (GeneralSecurityException e) {
+          chunks.cancel();
+          throw new IllegalStateException("decryption failed", e);
+        }
+      }
+    };
+  }
+
+  public Stream<String> stream(String... keys) {
+    return StreamSupport.stream(Spliterators.spliterator(iterator(keys), keys.length,
+        Spliterator.ORDERED | Spliterator.SIZED), false);
+  }
+
+  private List<String> getAll(String[] keys, boolean decrypt) throws GeneralSecurityException, IOException {
+    if (keys.length <= getChunkSize) {
+      return fetch(keys, 0, keys.length, decrypt);
+    }
+    List<String> l = new ArrayList<String>(keys.length);
+    ChunkedGet chunks = new ChunkedGet(keys, decrypt);
+    try {
+      for (List<String> chunk = chunks.next(); chunk != null; chunk = chunks.next()) {
+        l.addAll(chunk);
+      }
+    } finally {
+      chunks.cancel();
+    }
+    return l;
+  }
+
+  private List<String> fetch(String[] keys, int from, int to, boolean decrypt)
+      throws GeneralSecurityException, IOException {
+    if (decrypt && cache != null) {
+      return fetchCached(keys, from, to);
+    }
+    byte[][] binaryKeys = new byte[to - from][];
+    for (int i = from; i < to; i++) {
+      binaryKeys[i - from] = encodeKey(keys[i]);
+    }
+    List<byte[]> values = mget(binaryKeys);
+    if (decrypt) {
+      values = decryptAll(values);
+    }
+    List<String> l = new ArrayList<String>(values.size());
+    for (byte[] v : values) {
+      l.add(v == null ? null : new String(v, StandardCharsets.UTF_8));
+    }
+    return l;
+  }
+
+  private List<byte[]> mget(byte[][] binaryKeys) {
+    Instrumentation instrumentation = cryptoHelper.getInstrumentation();
+    long start = instrumentation.isEnabled() ? System.nanoTime() : 0;
+    List<byte[]> values;
+    try (Jedis j = jedisPool.getResource()) {
+      values = j.mget(binaryKeys);
+    } catch (RuntimeException e) {
+      instrumentation.failure(Instrumentation.Operation.REDIS_GET, e);
+      throw e;
+    }
+    if (instrumentation.isEnabled()) {
+      long bytes = 0;
+      for (byte[] v : values) {
+        bytes += v == null ? 0 : v.length;
+      }
+      instrumentation.record(Instrumentation.Operation.REDIS_GET, binaryKeys.length, bytes, System.nanoTime() - start);
+    }
     return values;
   }
 
+  /**
+   * Decrypts the non-null values in one {@link CryptoHelper#decryptAll} call, which lets an envelope helper
+   * unwrap each data key only once per MGET. If decryption fails and the keyset in Redis has changed meanwhile,
+   * e.g. by a key rotation in another process, the keyset is reloaded and the values are decrypted once more.
+   */
+  private List<byte[]> decryptAll(List<byte[]> values) throws GeneralSecurityException, IOException {
+    String loaded = keyset;
+    try {
+      return decryptValues(values);
+    } catch (GeneralSecurityException e) {
+      reloadKeyset();
+      if (loaded.equals(keyset)) {
+        throw e;
+      }
+      return decryptValues(values);
+    }
+  }
+
+  private List<byte[]> decryptValues(List<byte[]> values) throws GeneralSecurityException, IOException {
+    List<byte[]> ciphertexts = new ArrayList<byte[]>(values.size());
+    for (byte[] v : values) {
+      if (v != null) {
+        ciphertexts.add(cryptoHelper.decodeCiphertext(v));
+      }
+    }
+    Iterator<byte[]> plaintexts = cryptoHelper.decryptAll(ciphertexts).iterator();
+    List<byte[]> l = new ArrayList<byte[]>(values.size());
+    for (byte[] v : values) {
+      l.add(v == null ? null : plaintexts.next());
+    }
+    return l;
+  }
+
+  private List<String> fetchCached(String[] keys, int from, int to) throws GeneralSecurityException, IOException {
+    long stamp = cache.stamp();
+    List<String> l = new ArrayList<String>(to - from);
+    List<Integer> missing = new ArrayList<Integer>();
+    for (int i = from; i < to; i++) {
+      String v = cache.get(keys[i]);
+      l.add(v);
+      if (v == null) {
+        missing.add(i);
+      }
+    }
+    if (missing.isEmpty()) {
+      return l;
+    }
+    byte[][] binaryKeys = new byte[missing.size()][];
+    for (int i = 0; i < binaryKeys.length; i++) {
+      binaryKeys[i] = encodeKey(keys[missing.get(i)]);
+    }
+    List<byte[]> values = mget(binaryKeys);
+    values = decryptAll(values);
+    for (int i = 0; i < binaryKeys.length; i++) {
+      byte[] plaintext = values.get(i);
+      if (plaintext != null) {
+        int index = missing.get(i);
+        l.set(index - from, new String(plaintext, StandardCharsets.UTF_8));
+        cache.put(keys[index], plaintext, stamp);
+      }
+    }
+    return l;
+  }
+
+  /**
+   * Submits MGET chunks to the worker pool so that up to {@code chunksInFlight} of them are fetched and
+   * decrypted while the caller consumes earlier ones.
+   */
+  private final class ChunkedGet {
+    private final String[] keys;
+    private final boolean decrypt;
+    private final Deque<Future<List<String>>> inFlight = new ArrayDeque<Future<List<String>>>();
+    private int submitted = 0;
+
+    ChunkedGet(String[] keys, boolean decrypt) {
+      this.keys = keys;
+      this.decrypt = decrypt;
+    }
+
+    List<String> next() throws GeneralSecurityException, IOException {
+      while (inFlight.size() < chunksInFlight && submitted < keys.length) {
+        final int from = submitted;
+        final int to = Math.min(keys.length, from + getChunkSize);
+        inFlight.add(executor().submit(() -> fetch(keys, from, to, decrypt)));
+        submitted = to;
+      }
+      Future<List<String>> chunk = inFlight.poll();
+      return chunk == null ? null : RedisBulkloadHelper.await(chunk);
+    }
+
+    void cancel() {
+      for (Future<List<String>> chunk : inFlight) {
+        chunk.cancel(true);
+      }
+      inFlight.clear();
+    }
+  }
+
   public static void testConnection(String host) {
     try (Jedis jedis = new Jedis(host, 6379)) {
       try (Pipeline pipeline = jedis.pipelined()) {
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms.redis;
+
+import com.google.samples.kms.ThroughputReport;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+
+/**
+ * Non-blocking facade over {@link RedisHelper}. Each call runs on the executor and completes its future with the
+ * result of the blocking call. By default every call gets its own virtual thread when the runtime supports them,
+ * and otherwise one of as many platform threads as the default {@code JedisPool} has connections, since more
+ * threads would only wait for a connection.
+ */
+public class RedisHelperAsync implements Closeable {
+  private final RedisHelper redisHelper;
+  private final ExecutorService executor;
+  private final boolean ownsExecutor;
+
+  public RedisHelperAsync(RedisHelper redisHelper) {
+    this(redisHelper, newDefaultExecutor(), true);
+  }
+
+  public RedisHelperAsync(RedisHelper redisHelper, ExecutorService executor) {
+    this(redisHelper, executor, false);
+  }
+
+  private RedisHelperAsync(RedisHelper redisHelper, ExecutorService executor, boolean ownsExecutor) {
+    this.redisHelper = redisHelper;
+    this.executor = executor;
+    this.ownsExecutor = ownsExecutor;
+  }
+
+  static ExecutorService newDefaultExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newFixedThreadPool(GenericObjectPoolConfig.DEFAULT_MAX_TOTAL, r -> {
+        Thread t = new Thread(r, "redis-helper-async");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+  }
+
+  public CompletableFuture<ThroughputReport> setAsync(Iterator<Map.Entry<String, String>> kvs) {
+    return submit(() -> redisHelper.set(kvs));
+  }
+
+  public CompletableFuture<ThroughputReport> setAsync(String key, String value) {
+    return setAsync(Map.of(key, value).entrySet().iterator());
+  }
+
+  public CompletableFuture<List<String>> getAsync(String... keys) {
+    return submit(() -> redisHelper.get(keys));
+  }
+
+  public CompletableFuture<String> getAsync(String key) {
+    return submit(() -> redisHelper.get(key).get(0));
+  }
+
+  private <T> CompletableFuture<T> submit(Callable<T> call) {
+    CompletableFuture<T> result = new CompletableFuture<T>();
+    executor.execute(() -> {
+      try {
+        result.complete(call.call());
+      } catch (Throwable e) {
+        result.completeExceptionally(e);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Shuts down the default executor. Executors passed in by the caller are left running.
+   */
+  @Override
+  public void close() {
+    if (ownsExecutor) {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms.redis;
+
+import com.google.samples.kms.CryptoHelper;
+import com.google.samples.kms.ThroughputReport;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.Transaction;
+
+/**
+ * Rotates the keyset that a {@link RedisHelper} shares through Redis while the database stays online. A run adds
+ * a new primary key to the stored keyset, walks the keyspace with SCAN and re-encrypts every value that is not
+ * yet under the new key on a pool of workers. Reads keep working throughout: the keyset holds both keys, and
+ * helpers that still hold the old keyset reload it when a value fails to decrypt. Storing the new keyset also
+ * bumps a keyset stamp, which {@link RedisHelper#set} and {@link RedisHelper#load} check with every batch: a
+ * writer that encrypted a batch under the old primary key reloads the keyset and writes the batch again. Once
+ * {@link #run} returns, every value is under the new key except those of batches still in flight in other
+ * writers, which they rewrite themselves.
+ *
+ * <p>Each batch is read with MGET and written back in one MULTI/EXEC under WATCH, so a value written by a client
+ * in the meantime is never overwritten with its old content; the batch is read again instead. The SCAN cursor of
+ * the last completed batch is kept in Redis, and a run started after a failure resumes from there without adding
+ * another key. Values that are not ciphertexts of the keyset, e.g. from {@link RedisHelper#setClear}, are left
+ * as they are and counted as skipped.
+ */
+public class RedisKeyRotation {
+  static final String redisRotationKey = "--tink-rotation--";
+  private static final int maxAttempts = 5;
+  private final RedisHelper redisHelper;
+  private final CryptoHelper cryptoHelper;
+  private int workers = 4;
+  private int scanCount = 1000;
+  private long maxKeysPerSecond = 0;
+  private final AtomicLong skipped = new AtomicLong();
+  private final AtomicLong conflicts = new AtomicLong();
+
+  public RedisKeyRotation(RedisHelper redisHelper) {
+    this.redisHelper = redisHelper;
+    this.cryptoHelper = redisHelper.getCryptoHelper();
+  }
+
+  /**
+   * Number of batches re-encrypted in parallel, each on its own pooled connection.
+   */
+  public RedisKeyRotation workers(int count) {
+    workers = Math.max(1, count);
+    return this;
+  }
+
+  /**
+   * Number of keys asked for per SCAN call, which is also the size of a batch.
+   */
+  public RedisKeyRotation scanCount(int keys) {
+    scanCount = Math.max(1, keys);
+    return this;
+  }
+
+  /**
+   * Scans at most this many keys per second so that the rotation leaves room for production traffic, 0 for no
+   * limit.
+   */
+  public RedisKeyRotation maxKeysPerSecond(long keys) {
+    maxKeysPerSecond = Math.max(0, keys);
+    return this;
+  }
+
+  /**
+   * Number of values that could not be decrypted with the keyset and were left unchanged.
+   */
+  public long getSkipped() {
+    return skipped.get();
+  }
+
+  /**
+   * Number of values that kept changing while they were re-encrypted and were left under their old key.
+   */
+  public long getConflicts() {
+    return conflicts.get();
+  }
+
+  /**
+   * Rotates the keyset, or resumes an unfinished rotation, and returns the throughput of the values it
+   * re-encrypted.
+   */
+  public ThroughputReport run() throws GeneralSecurityException, IOException {
+    ThroughputReport report = new ThroughputReport("redis key rotation");
+    redisHelper.reloadKeyset();
+    int keyId = cryptoHelper.getPrimaryKeyId();
+    String cursor = resumeCursor(keyId);
+    if (cursor == null) {
+      keyId = cryptoHelper.rotateKeyset();
+      cursor = ScanParams.SCAN_POINTER_START;
+      redisHelper.setRaw(redisRotationKey, keyId + " " + cursor);
+      redisHelper.storeKeyset();
+    }
+    Deque<Batch> pending = new ArrayDeque<Batch>();
+    ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+      Thread t = new Thread(r, "redis-key-rotation");
+      t.setDaemon(true);
+      return t;
+    });
+    try (Jedis j = redisHelper.getJedisPool().getResource()) {
+      ScanParams params = new ScanParams().count(scanCount);
+      long start = System.nanoTime();
+      long scanned = 0;
+      boolean complete = false;
+      while (!complete) {
+        ScanResult<byte[]> r = j.scan(cursor.getBytes(StandardCharsets.UTF_8), params);
+        complete = r.isCompleteIteration();
+        cursor = r.getCursor();
+        List<byte[]> keys = new ArrayList<byte[]>(r.getResult().size());
+        for (byte[] k : r.getResult()) {
+          if (!isReserved(k)) {
+            keys.add(k);
+          }
+        }
+        pace(start, scanned);
+        scanned += keys.size();
+        while (pending.size() >= workers * 2 || !pending.isEmpty() && pending.peek().future.isDone()) {
+          complete(j, keyId, pending.poll());
+        }
+        pending.add(new Batch(pool.submit(() -> rotate(keys, report)), cursor));
+      }
+      while (!pending.isEmpty()) {
+        complete(j, keyId, pending.poll());
+      }
+      j.del(redisRotationKey);
+    } finally {
+      for (Batch b : pending) {
+        b.future.cancel(true);
+      }
+      pool.shutdownNow();
+    }
+    return report.finish();
+  }
+
+  /**
+   * Returns the cursor to continue from if a rotation to {@code keyId} was interrupted.
+   */
+  private String resumeCursor(int keyId) {
+    String progress = redisHelper.getRaw(redisRotationKey);
+    if (progress == null) {
+      return null;
+    }
+    String[] p = progress.split(" ", 2);
+    return p.length == 2 && p[0].equals(Integer.toString(keyId)) ? p[1] : null;
+  }
+
+  /**
+   * Waits for the oldest batch and records its cursor, which is safe because batches complete in SCAN order.
+   */
+  private void complete(Jedis j, int keyId, Batch batch) throws GeneralSecurityException, IOException {
+    RedisBulkloadHelper.await(batch.future);
+    j.set(redisRotationKey, keyId + " " + batch.cursor);
+  }
+
+  private static boolean isReserved(byte[] key) {
+    String k = new String(key, StandardCharsets.UTF_8);
+    return k.equals(RedisHelper.redisKeysetKey) || k.equals(RedisHelper.redisDeterministicKeysetKey)
+        || k.equals(RedisHelper.redisKeysetStampKey) || k.equals(redisRotationKey);
+  }
+
+  private void pace(long startNanos, long keys) throws IOException {
+    if (maxKeysPerSecond == 0) {
+      return;
+    }
+    long wait = startNanos + keys * TimeUnit.SECONDS.toNanos(1) / maxKeysPerSecond - System.nanoTime();
+    if (wait > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted while rotating keys", e);
+      }
+    }
+  }
+
+  /**
+   * Re-encrypts the values of {@code keys} that are not under the primary key, keeping their raw or Base64
+   * format, and writes them back unless one of the keys changed since it was read. After such a conflict only
+   * the keys that still need a new ciphertext are read again, so values that writers meanwhile stored under the
+   * new key drop out of the batch.
+   */
+  private Void rotate(List<byte[]> keys, ThroughputReport report) throws GeneralSecurityException, IOException {
+    if (keys.isEmpty()) {
+      return null;
+    }
+    byte[][] k = keys.toArray(new byte[0][]);
+    try (Jedis j = redisHelper.getJedisPool().getResource()) {
+      for (int attempt = 1;; attempt++) {
+        j.watch(k);
+        List<byte[]> values = j.mget(k);
+        List<byte[][]> updates = new ArrayList<byte[][]>();
+        long bytes = 0;
+        long unreadable = 0;
+        for (int i = 0; i < k.length; i++) {
+          byte[] v = values.get(i);
+          if (v == null) {
+            continue;
+          }
+          byte[] c = decode(v);
+          if (c == null) {
+            unreadable++;
+            continue;
+          }
+          if (!cryptoHelper.isEncryptedWithPrimary(c)) {
+            updates.add(new byte[][] { k[i], v, c });
+          }
+        }
+        List<byte[]> plaintexts = decryptAll(updates);
+        List<byte[][]> writes = new ArrayList<byte[][]>(updates.size());
+        for (int i = 0; i < updates.size(); i++) {
+          byte[] p = plaintexts.get(i);
+          if (p == null) {
+            unreadable++;
+            continue;
+          }
+          byte[] c = cryptoHelper.encryptToBytes(p);
+          byte[] v = CryptoHelper.isRawCiphertext(updates.get(i)[1]) ? c : Base64.getEncoder().encode(c);
+          writes.add(new byte[][] { updates.get(i)[0], v });
+          bytes += updates.get(i)[0].length + v.length;
+        }
+        if (writes.isEmpty()) {
+          j.unwatch();
+          skipped.addAndGet(unreadable);
+          return null;
+        }
+        Transaction t = j.multi();
+        for (byte[][] w : writes) {
+          t.set(w[0], w[1]);
+        }
+        List<Object> replies = t.exec();
+        if (replies != null && !replies.isEmpty()) {
+          skipped.addAndGet(unreadable);
+          report.add(writes.size(), bytes);
+          return null;
+        }
+        skipped.addAndGet(unreadable);
+        if (attempt == maxAttempts) {
+          conflicts.addAndGet(writes.size());
+          return null;
+        }
+        k = new byte[writes.size()][];
+        for (int i = 0; i < k.length; i++) {
+          k[i] = writes.get(i)[0];
+        }
+      }
+    }
+  }
+
+  private byte[] decode(byte[] value) {
+    try {
+      return cryptoHelper.decodeCiphertext(value);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Decrypts the ciphertexts of {@code updates} in one call, or one by one if that fails so that values which do
+   * not belong to the keyset come back as null.
+   */
+  private List<byte[]> decryptAll(List<byte[][]> updates) throws GeneralSecurityException, IOException {
+    List<byte[]> ciphertexts = new ArrayList<byte[]>(updates.size());
+    for (byte[][] u : updates) {
+      ciphertexts.add(u[2]);
+    }
+    try {
+      return cryptoHelper.decryptAll(ciphertexts);
+    } catch (GeneralSecurityException e) {
+      List<byte[]> plaintexts = new ArrayList<byte[]>(ciphertexts.size());
+      for (byte[] c : ciphertexts) {
+        try {
+          plaintexts.add(cryptoHelper.decryptToBytes(c));
+        } catch (GeneralSecurityException notCiphertext) {
+          plaintexts.add(null);
+        }
+      }
+      return plaintexts;
+    }
+  }
+
+  private static final class Batch {
+    final Future<Void> future;
+    final String cursor;
+
+    Batch(Future<Void> future, String cursor) {
+      this.future = future;
+      this.cursor = cursor;
+    }
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms.redis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encodes Redis {@code SET} commands in the RESP protocol. Frames are written into one reusable byte array
+ * that is either flushed to a channel when full or, without a channel, grows and can be taken as a whole.
+ * Bulk string lengths are exact UTF-8 byte counts, so keys and values outside ASCII stay well-formed.
+ */
+public class RespWriter implements Closeable {
+  private static final byte[] setCommand = "*3\r\n$3\r\nSET\r\n".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[][] lengthPrefixes = new byte[1024][];
+  private static final int maxLengthPrefix = 13;
+
+  static {
+    for (int i = 0; i < lengthPrefixes.length; i++) {
+      lengthPrefixes[i] = String.format("$%d\r\n", i).getBytes(StandardCharsets.US_ASCII);
+    }
+  }
+
+  private final WritableByteChannel channel;
+  private byte[] buffer;
+  private int position;
+  private long written;
+
+  public RespWriter(WritableByteChannel channel, int bufferSize) {
+    this.channel = channel;
+    this.buffer = new byte[Math.max(bufferSize, 64)];
+  }
+
+  public RespWriter(int initialCapacity) {
+    this(null, initialCapacity);
+  }
+
+  public static int utf8Length(CharSequence s) {
+    int n = s.length();
+    int bytes = n;
+    for (int i = 0; i < n; i++) {
+      char c = s.charAt(i);
+      if (c >= 0x80) {
+        if (c < 0x800) {
+          bytes += 1;
+        } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+          bytes += 2;
+          i++;
+        } else if (!Character.isSurrogate(c)) {
+          bytes += 2;
+        }
+      }
+    }
+    return bytes;
+  }
+
+  public RespWriter writeSet(String key, String value) throws IOException {
+    int keyLength = utf8Length(key);
+    int valueLength = utf8Length(value);
+    ensure(setCommand.length + 2 * maxLengthPrefix + keyLength + valueLength + 4);
+    putSetCommand();
+    putLength(keyLength);
+    putUtf8(key);
+    putLength(valueLength);
+    putUtf8(value);
+    return this;
+  }
+
+  public RespWriter writeSet(byte[] key, byte[] value) throws IOException {
+    ensure(setCommand.length + 2 * maxLengthPrefix + key.length + value.length + 4);
+    putSetCommand();
+    putBulk(key, 0, key.length);
+    putBulk(value, 0, value.length);
+    return this;
+  }
+
+  public RespWriter write(byte[] resp, int offset, int length) throws IOException {
+    if (channel != null && length >= buffer.length) {
+      flush();
+      drain(ByteBuffer.wrap(resp, offset, length));
+    } else {
+      ensure(length);
+      System.arraycopy(resp, offset, buffer, position, length);
+      position += length;
+    }
+    return this;
+  }
+
+  /**
+   * Returns the number of bytes handed to this writer so far, including those still buffered.
+   */
+  public long size() {
+    return written + position;
+  }
+
+  public byte[] buffer() {
+    return buffer;
+  }
+
+  public int position() {
+    return position;
+  }
+
+  public byte[] toByteArray() {
+    return Arrays.copyOf(buffer, position);
+  }
+
+  public void reset() {
+    position = 0;
+    written = 0;
+  }
+
+  public void flush() throws IOException {
+    if (channel != null && position > 0) {
+      drain(ByteBuffer.wrap(buffer, 0, position));
+      position = 0;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    flush();
+    if (channel != null) {
+      channel.close();
+    }
+  }
+
+  private void drain(ByteBuffer b) throws IOException {
+    written += b.remaining();
+    while (b.hasRemaining()) {
+      channel.write(b);
+    }
+  }
+
+  private void ensure(int length) throws IOException {
+    if (buffer.length - position >= length) {
+      return;
+    }
+    flush();
+    if (buffer.length - position < length) {
+      buffer = Arrays.copyOf(buffer, Math.max(position + length, buffer.length * 2));
+    }
+  }
+
+  private void putSetCommand() {
+    System.arraycopy(setCommand, 0, buffer, position, setCommand.length);
+    position += setCommand.length;
+  }
+
+  private void putBulk(byte[] b, int offset, int length) {
+    putLength(length);
+    System.arraycopy(b, offset, buffer, position, length);
+    position += length;
+    putCrlf();
+  }
+
+  private void putLength(int length) {
+    if (length < lengthPrefixes.length) {
+      byte[] prefix = lengthPrefixes[length];
+      System.arraycopy(prefix, 0, buffer, position, prefix.length);
+      position += prefix.length;
+      return;
+    }
+    buffer[position++] = '$';
+    int digits = 1;
+    for (int v = length; v >= 10; v /= 10) {
+      digits++;
+    }
+    for (int i = position + digits - 1, v = length; i >= position; i--, v /= 10) {
+      buffer[i] = (byte) ('0' + v % 10);
+    }
+    position += digits;
+    putCrlf();
+  }
+
+  private void putUtf8(String s) {
+    byte[] b = buffer;
+    int p = position;
+    int n = s.length();
+    for (int i = 0; i < n; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        b[p++] = (byte) c;
+      } else if (c < 0x800) {
+        b[p++] = (byte) (0xc0 | c >> 6);
+        b[p++] = (byte) (0x80 | c & 0x3f);
+      } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+        int cp = Character.toCodePoint(c, s.charAt(++i));
+        b[p++] = (byte) (0xf0 | cp >> 18);
+        b[p++] = (byte) (0x80 | cp >> 12 & 0x3f);
+        b[p++] = (byte) (0x80 | cp >> 6 & 0x3f);
+        b[p++] = (byte) (0x80 | cp & 0x3f);
+      } else if (Character.isSurrogate(c)) {
+        b[p++] = '?';
+      } else {
+        b[p++] = (byte) (0xe0 | c >> 12);
+        b[p++] = (byte) (0x80 | c >> 6 & 0x3f);
+        b[p++] = (byte) (0x80 | c & 0x3f);
+      }
+    }
+    position = p;
+    putCrlf();
+  }
+
+  private void putCrlf() {
+    buffer[position++] = '\r';
+    buffer[position++] = '\n';
+  }
+}
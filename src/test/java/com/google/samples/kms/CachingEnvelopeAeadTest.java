@@ -0,0 +1,125 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.google.crypto.tink.Aead;
+import com.google.crypto.tink.aead.AeadKeyTemplates;
+import com.google.crypto.tink.aead.KmsEnvelopeAead;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CachingEnvelopeAeadTest {
+  private static final byte[] associatedData = "CachingEnvelopeAeadTest".getBytes(StandardCharsets.UTF_8);
+
+  private FakeKmsClient kms;
+  private Aead remote;
+
+  @Before
+  public void setUp() throws GeneralSecurityException {
+    kms = new FakeKmsClient();
+    remote = kms.getAead("fake-kms://kek");
+  }
+
+  private static byte[] record(int i) {
+    return String.format("record %d", i).getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testDataKeyIsReusedForMaxMessages() throws GeneralSecurityException {
+    CachingEnvelopeAead writer = new CachingEnvelopeAead(AeadKeyTemplates.AES256_GCM, remote).maxMessages(100);
+    List<byte[]> ciphertexts = new ArrayList<byte[]>();
+    for (int i = 0; i < 1000; i++) {
+      ciphertexts.add(writer.encrypt(record(i), associatedData));
+    }
+    assertEquals(10, kms.remoteCalls());
+    for (int i = 0; i < 1000; i++) {
+      assertArrayEquals(record(i), writer.decrypt(ciphertexts.get(i), associatedData));
+    }
+    assertEquals(10, kms.remoteCalls());
+
+    CachingEnvelopeAead reader = new CachingEnvelopeAead(AeadKeyTemplates.AES256_GCM, remote);
+    for (int i = 0; i < 1000; i++) {
+      assertArrayEquals(record(i), reader.decrypt(ciphertexts.get(i), associatedData));
+    }
+    assertEquals(20, kms.remoteCalls());
+  }
+
+  @Test
+  public void testDataKeyIsRotatedByBytesAndAge() throws GeneralSecurityException {
+    CachingEnvelopeAead bytes = new CachingEnvelopeAead(AeadKeyTemplates.AES256_GCM, remote).maxBytes(100);
+    for (int i = 0; i < 10; i++) {
+      bytes.encrypt(new byte[60], associatedData);
+    }
+    assertEquals(10, kms.remoteCalls());
+
+    CachingEnvelopeAead age = new CachingEnvelopeAead(AeadKeyTemplates.AES256_GCM, remote).maxAge(0,
+        TimeUnit.SECONDS);
+    age.encrypt(record(1), associatedData);
+    age.encrypt(record(2), associatedData);
+    assertEquals(12, kms.remoteCalls());
+  }
+
+  @Test
+  public void testCompatibleWithKmsEnvelopeAead() throws GeneralSecurityException {
+    CachingEnvelopeAead caching = new CachingEnvelopeAead(AeadKeyTemplates.AES256_GCM, remote);
+    Aead tink = new KmsEnvelopeAead(AeadKeyTemplates.AES256_GCM, remote);
+    assertArrayEquals(record(1), tink.decrypt(caching.encrypt(record(1), associatedData), associatedData));
+    assertArrayEquals(record(2), caching.decrypt(tink.encrypt(record(2), associatedData), associatedData));
+  }
+
+  @Test
+  public void testUnwrappedKeysAreEvicted() throws GeneralSecurityException {
+    CachingEnvelopeAead writer = new CachingEnvelopeAead(AeadKeyTemplates.AES256_GCM, remote).maxMessages(1);
+    byte[] first = writer.encrypt(record(1), associatedData);
+    byte[] second = writer.encrypt(record(2), associatedData);
+    CachingEnvelopeAead reader = new CachingEnvelopeAead(AeadKeyTemplates.AES256_GCM, remote).cacheSize(1);
+    long calls = kms.remoteCalls();
+    reader.decrypt(first, associatedData);
+    reader.decrypt(first, associatedData);
+    reader.decrypt(second, associatedData);
+    reader.decrypt(first, associatedData);
+    assertEquals(calls + 3, kms.remoteCalls());
+  }
+
+  @Test
+  public void testCryptoHelperEnvelopeReusesDataKey() throws GeneralSecurityException, IOException {
+    CryptoHelperEnvelope caching = new CryptoHelperEnvelope().reuseDataKey(100, Long.MAX_VALUE, 1,
+        TimeUnit.MINUTES);
+    caching.loadKeyset(false).withKmsClient(kms);
+    List<String> ciphertexts = new ArrayList<String>();
+    for (int i = 0; i < 10; i++) {
+      ciphertexts.add(caching.encrypt(String.format("record %d", i)));
+    }
+    CryptoHelper plain = new CryptoHelperEnvelope().loadKeyset(false).withKmsClient(kms);
+    plain.setEncodedKeysetHandle(caching.getEncodedKeysetHandle());
+    for (int i = 0; i < 10; i++) {
+      assertEquals(String.format("record %d", i), plain.decrypt(ciphertexts.get(i)));
+    }
+    assertEquals("plain", caching.decrypt(plain.encrypt("plain")));
+  }
+}
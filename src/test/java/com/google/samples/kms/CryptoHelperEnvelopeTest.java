@@ -0,0 +1,93 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CryptoHelperEnvelopeTest {
+  private static final long kmsLatencyMillis = 50;
+
+  @Test(timeout = 60000)
+  public void testDecryptAllUnwrapsEachDataKeyOnce() throws GeneralSecurityException, IOException {
+    CryptoHelperEnvelope writer = new CryptoHelperEnvelope().reuseDataKey(50, Long.MAX_VALUE, 1, TimeUnit.MINUTES);
+    writer.loadKeyset(false).withKmsClient(new FakeKmsClient());
+    List<byte[]> ciphertexts = new ArrayList<byte[]>();
+    for (int i = 0; i < 500; i++) {
+      ciphertexts.add(writer.encryptToBytes(String.format("record %d", i)));
+    }
+    CryptoHelper single = new CryptoHelperEnvelope().loadKeyset(false).withKmsClient(new FakeKmsClient());
+    single.setEncodedKeysetHandle(writer.getEncodedKeysetHandle());
+    ciphertexts.add(single.encryptToBytes("record 500"));
+
+    FakeKmsClient kms = new FakeKmsClient(kmsLatencyMillis, TimeUnit.MILLISECONDS);
+    CryptoHelperEnvelope reader = new CryptoHelperEnvelope().unwrapConcurrency(11);
+    reader.loadKeyset(false).withKmsClient(kms);
+    reader.setEncodedKeysetHandle(writer.getEncodedKeysetHandle());
+    long calls = kms.remoteCalls();
+    long time = System.nanoTime();
+    List<byte[]> plaintexts = reader.decryptAll(ciphertexts);
+    long elapsed = System.nanoTime() - time;
+
+    assertEquals(501, plaintexts.size());
+    for (int i = 0; i < plaintexts.size(); i++) {
+      assertEquals(String.format("record %d", i), new String(plaintexts.get(i), StandardCharsets.UTF_8));
+    }
+    assertEquals(11, kms.remoteCalls() - calls);
+    assertTrue(elapsed < TimeUnit.MILLISECONDS.toNanos(11 * kmsLatencyMillis));
+  }
+
+  @Test(expected = GeneralSecurityException.class)
+  public void testDecryptAllReportsCorruptCiphertexts() throws GeneralSecurityException, IOException {
+    CryptoHelperEnvelope ctx = new CryptoHelperEnvelope();
+    ctx.loadKeyset(false).withKmsClient(new FakeKmsClient());
+    List<byte[]> ciphertexts = new ArrayList<byte[]>();
+    ciphertexts.add(ctx.encryptToBytes("valid"));
+    byte[] corrupt = ctx.encryptToBytes("corrupt");
+    corrupt[corrupt.length - 1] ^= 1;
+    ciphertexts.add(corrupt);
+    ciphertexts.add(Base64.getDecoder().decode("AAAA"));
+    ctx.decryptAll(ciphertexts);
+  }
+
+  @Test(timeout = 60000)
+  public void testDecryptAllInflatesCompressedPayloads() throws GeneralSecurityException, IOException {
+    CryptoHelperEnvelope writer = new CryptoHelperEnvelope().reuseDataKey(50, Long.MAX_VALUE, 1, TimeUnit.MINUTES);
+    writer.loadKeyset(false).withKmsClient(new FakeKmsClient()).compressAbove(64);
+    List<byte[]> ciphertexts = new ArrayList<byte[]>();
+    for (int i = 0; i < 300; i++) {
+      ciphertexts.add(writer.encryptToBytes(String.format("record %d ", i).repeat(i % 20)));
+    }
+    CryptoHelperEnvelope reader = new CryptoHelperEnvelope();
+    reader.loadKeyset(false).withKmsClient(new FakeKmsClient());
+    reader.setEncodedKeysetHandle(writer.getEncodedKeysetHandle());
+    List<byte[]> plaintexts = reader.decryptAll(ciphertexts);
+    for (int i = 0; i < plaintexts.size(); i++) {
+      assertEquals(String.format("record %d ", i).repeat(i % 20), new String(plaintexts.get(i), StandardCharsets.UTF_8));
+    }
+  }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.crypto.tink.Aead;
+import com.google.crypto.tink.KeysetHandle;
+import com.google.crypto.tink.KeysetManager;
+import com.google.crypto.tink.KmsClient;
+import com.google.crypto.tink.aead.AeadKeyTemplates;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+public class CryptoHelperTest {
+  private static final int threads = 200;
+
+  static class CountingCryptoHelper extends CryptoHelper {
+    final AtomicInteger keysetsGenerated = new AtomicInteger();
+
+    CountingCryptoHelper(KmsClient kms) throws GeneralSecurityException {
+      super();
+      withKmsClient(kms).loadKeyset(false);
+    }
+
+    @Override
+    protected KeysetHandle newKeysetHandle() throws GeneralSecurityException {
+      keysetsGenerated.incrementAndGet();
+      return super.newKeysetHandle();
+    }
+  }
+
+  @Test
+  public void testConcurrentFirstUse() throws Exception {
+    FakeKmsClient kms = new FakeKmsClient();
+    final CountingCryptoHelper ctx = new CountingCryptoHelper(kms);
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Aead>> results = new ArrayList<Future<Aead>>();
+      for (int i = 0; i < threads; i++) {
+        final String text = String.format("record %d", i);
+        results.add(executor.submit(new Callable<Aead>() {
+          @Override
+          public Aead call() throws Exception {
+            start.await();
+            for (int j = 0; j < 100; j++) {
+              assertEquals(text, ctx.decrypt(ctx.encrypt(text)));
+            }
+            return ctx.getAead();
+          }
+        }));
+      }
+      start.countDown();
+      Aead first = results.get(0).get();
+      for (Future<Aead> result : results) {
+        assertSame(first, result.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(1, ctx.keysetsGenerated.get());
+    assertEquals(0, kms.getAeadCalls());
+  }
+
+  @Test
+  public void testKeyEncryptionKeyIsResolvedOnce() throws GeneralSecurityException, IOException {
+    FakeKmsClient kms = new FakeKmsClient();
+    CachingKmsClient shared = new CachingKmsClient(kms);
+    CryptoHelper writer = new CryptoHelper().loadKeyset(false).withKmsClient(shared);
+    CryptoHelper reader = new CryptoHelper().loadKeyset(false).withKmsClient(shared);
+    String ciphertext = writer.encrypt("David Kubelka");
+    for (int i = 0; i < 10; i++) {
+      reader.setEncodedKeysetHandle(writer.getEncodedKeysetHandle());
+      writer.write(new ByteArrayOutputStream());
+    }
+    assertEquals("David Kubelka", reader.decrypt(ciphertext));
+    assertEquals(1, kms.getAeadCalls());
+
+    KmsClient renewed = shared.withDefaultCredentials();
+    assertTrue(renewed instanceof CachingKmsClient);
+    renewed.getAead(CryptoHelper.defaultKeyUri);
+    assertEquals(2, kms.getAeadCalls());
+  }
+
+  @Test(timeout = 10000)
+  public void testLargeKeysetIsEncoded() throws GeneralSecurityException, IOException {
+    CryptoHelper ctx = new CryptoHelper() {
+      @Override
+      protected KeysetHandle newKeysetHandle() throws GeneralSecurityException {
+        KeysetManager manager = KeysetManager.withKeysetHandle(super.newKeysetHandle());
+        for (int i = 0; i < 50; i++) {
+          manager.add(AeadKeyTemplates.AES256_GCM);
+        }
+        return manager.getKeysetHandle();
+      }
+    }.loadKeyset(false).withKmsClient(new FakeKmsClient());
+    String ciphertext = ctx.encrypt("David Kubelka");
+    String keyset = ctx.getEncodedKeysetHandle();
+    assertTrue(keyset.length() > 4096);
+    CryptoHelper reader = new CryptoHelper().loadKeyset(false).withKmsClient(ctx.getKmsClient());
+    reader.setEncodedKeysetHandle(keyset);
+    assertEquals("David Kubelka", reader.decrypt(ciphertext));
+  }
+
+  @Test
+  public void testSetEncodedKeysetHandleAfterFirstUse() throws GeneralSecurityException, IOException {
+    KmsClient kms = new FakeKmsClient();
+    CryptoHelper writer = new CryptoHelper().loadKeyset(false).withKmsClient(kms);
+    CryptoHelper reader = new CryptoHelper().loadKeyset(false).withKmsClient(kms);
+    String ciphertext = writer.encrypt("David Kubelka");
+    reader.encrypt("initializes a different keyset");
+    reader.setEncodedKeysetHandle(writer.getEncodedKeysetHandle());
+    assertEquals("David Kubelka", reader.decrypt(ciphertext));
+  }
+
+  @Test
+  public void testByteBufferRoundtrip() throws GeneralSecurityException, IOException {
+    CryptoHelper ctx = new CryptoHelper().loadKeyset(false).withKmsClient(new FakeKmsClient());
+    byte[] text = "Grüße aus Zürich".getBytes(StandardCharsets.UTF_8);
+    ByteBuffer ciphertext = ByteBuffer.allocateDirect(1024);
+    int n = ctx.encrypt(ByteBuffer.wrap(text), ciphertext);
+    assertEquals(n, ciphertext.position());
+    assertEquals(ctx.ciphertextSize(text.length), n);
+
+    ByteBuffer source = ByteBuffer.wrap(text);
+    ByteBuffer small = ByteBuffer.allocate(n - 1);
+    try {
+      ctx.encrypt(source, small);
+      fail("expected BufferOverflowException");
+    } catch (BufferOverflowException expected) {
+      assertEquals(0, source.position());
+      assertEquals(0, small.position());
+    }
+
+    ciphertext.flip();
+    ByteBuffer tiny = ByteBuffer.allocate(text.length - 1);
+    try {
+      ctx.decrypt(ciphertext, tiny);
+      fail("expected BufferOverflowException");
+    } catch (BufferOverflowException expected) {
+      assertEquals(0, ciphertext.position());
+      assertEquals(0, tiny.position());
+    }
+    ByteBuffer plaintext = ByteBuffer.allocate(1024);
+    plaintext.position(7);
+    assertEquals(text.length, ctx.decrypt(ciphertext, plaintext));
+    assertEquals(ByteBuffer.wrap(text), ByteBuffer.wrap(plaintext.array(), 7, text.length));
+
+    ByteBuffer offset = ByteBuffer.allocate(1024);
+    ctx.encrypt(ByteBuffer.wrap(plaintext.array(), 7, text.length), offset);
+    offset.flip();
+    assertEquals("Grüße aus Zürich", new String(ctx.decryptToBytes(Arrays.copyOf(offset.array(), offset.limit())),
+        StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testStreamingRoundtrip() throws GeneralSecurityException, IOException {
+    CryptoHelper ctx = new CryptoHelper().loadKeyset(false).withKmsClient(new FakeKmsClient());
+    byte[] payload = new byte[3 << 20];
+    new Random(42).nextBytes(payload);
+    ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+    try (OutputStream out = ctx.encryptingStream(ciphertext)) {
+      for (int i = 0; i < payload.length; i += 100000) {
+        out.write(payload, i, Math.min(100000, payload.length - i));
+      }
+    }
+
+    CryptoHelper reader = new CryptoHelper().loadKeyset(false).withKmsClient(new FakeKmsClient());
+    reader.setEncodedStreamingKeysetHandle(ctx.getEncodedStreamingKeysetHandle());
+    try (InputStream in = reader.decryptingStream(new ByteArrayInputStream(ciphertext.toByteArray()))) {
+      assertArrayEquals(payload, in.readAllBytes());
+    }
+
+    Path file = Files.createTempFile("streaming-", ".bin");
+    try {
+      Files.write(file, ciphertext.toByteArray());
+      try (SeekableByteChannel channel = reader.decryptingChannel(Files.newByteChannel(file))) {
+        ByteBuffer b = ByteBuffer.allocate(1000);
+        channel.position(2 << 20);
+        while (b.hasRemaining()) {
+          channel.read(b);
+        }
+        assertEquals(ByteBuffer.wrap(payload, 2 << 20, 1000), b.flip());
+        assertEquals(payload.length, channel.size());
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testStreamingFiles() throws GeneralSecurityException, IOException {
+    CryptoHelper ctx = new CryptoHelper().loadKeyset(false).withKmsClient(new FakeKmsClient());
+    Path plaintext = Files.createTempFile("streaming-", ".txt");
+    Path ciphertext = Files.createTempFile("streaming-", ".bin");
+    Path decrypted = Files.createTempFile("streaming-", ".txt");
+    try {
+      Files.write(plaintext, "Grüße aus Zürich".getBytes(StandardCharsets.UTF_8));
+      assertEquals(Files.size(plaintext), ctx.encrypt(plaintext, ciphertext));
+      ctx.decrypt(ciphertext, decrypted);
+      assertArrayEquals(Files.readAllBytes(plaintext), Files.readAllBytes(decrypted));
+    } finally {
+      Files.delete(plaintext);
+      Files.delete(ciphertext);
+      Files.delete(decrypted);
+    }
+  }
+
+  @Test
+  public void testStringAndBytesAreInterchangeable() throws GeneralSecurityException, IOException {
+    CryptoHelper ctx = new CryptoHelper().loadKeyset(false).withKmsClient(new FakeKmsClient());
+    String text = "Grüße aus Zürich";
+    byte[] fromString = Base64.getDecoder().decode(ctx.encrypt(text));
+    assertEquals(text, new String(ctx.decryptToBytes(fromString), StandardCharsets.UTF_8));
+    byte[] fromBytes = ctx.encryptToBytes(text.getBytes(StandardCharsets.UTF_8));
+    assertEquals(text, ctx.decrypt(Base64.getEncoder().encodeToString(fromBytes)));
+  }
+
+  @Test
+  public void testDeterministicRoundtrip() throws GeneralSecurityException, IOException {
+    KmsClient kms = new FakeKmsClient();
+    CryptoHelper writer = new CryptoHelper().loadKeyset(false).withKmsClient(kms).deterministicCacheSize(2);
+    byte[] key = "customer-42".getBytes(StandardCharsets.UTF_8);
+    byte[] ad = "Key".getBytes(StandardCharsets.UTF_8);
+    byte[] ciphertext = writer.encryptDeterministically(key, ad);
+    assertArrayEquals(ciphertext, writer.encryptDeterministically(key, ad));
+    assertFalse(Arrays.equals(ciphertext, writer.encryptDeterministically(key, "Member".getBytes(
+        StandardCharsets.UTF_8))));
+    assertEquals(1, writer.getDeterministicAead().getHits());
+    assertEquals(2, writer.getDeterministicAead().size());
+
+    CryptoHelper reader = new CryptoHelper().loadKeyset(false).withKmsClient(kms).deterministicCacheSize(0);
+    reader.setEncodedDeterministicKeysetHandle(writer.getEncodedDeterministicKeysetHandle());
+    assertArrayEquals(ciphertext, reader.encryptDeterministically(key, ad));
+    assertArrayEquals(key, reader.decryptDeterministically(ciphertext, ad));
+    assertEquals(0, reader.getDeterministicAead().size());
+  }
+
+  @Test
+  public void testCompressionRoundtrip() throws GeneralSecurityException, IOException {
+    KmsClient kms = new FakeKmsClient();
+    CryptoHelper plain = new CryptoHelper().loadKeyset(false).withKmsClient(kms);
+    CryptoHelper compressing = new CryptoHelper().loadKeyset(false).withKmsClient(kms).compressAbove(256);
+    compressing.setEncodedKeysetHandle(plain.getEncodedKeysetHandle());
+    StringBuilder json = new StringBuilder("[");
+    for (int i = 0; i < 100; i++) {
+      json.append(String.format("{\"id\": %d, \"name\": \"customer %d\", \"status\": \"active\"},", i, i));
+    }
+    byte[] text = json.append("]").toString().getBytes(StandardCharsets.UTF_8);
+
+    byte[] compressed = compressing.encryptToBytes(text);
+    assertTrue(compressed.length * 4 < text.length);
+    assertTrue(CryptoHelper.isRawCiphertext(compressed));
+    assertArrayEquals(text, plain.decryptToBytes(compressed));
+    assertArrayEquals(text, compressing.decryptToBytes(plain.encryptToBytes(text)));
+    assertEquals(plain.encryptToBytes(text).length, compressing.encryptToBytes(Arrays.copyOf(text, 255)).length + text.length - 255);
+
+    byte[] random = new byte[4096];
+    new Random(7).nextBytes(random);
+    random[0] = 0x01;
+    assertEquals(plain.encryptToBytes(random).length, compressing.encryptToBytes(random).length);
+    random[0] = (byte) 0xC1;
+    assertEquals(plain.encryptToBytes(new byte[4096]).length, plain.encryptToBytes(random).length);
+    assertArrayEquals(random, compressing.decryptToBytes(plain.encryptToBytes(random)));
+    assertArrayEquals(random, plain.decryptToBytes(compressing.encryptToBytes(random)));
+
+    try {
+      plain.decryptToBytes(Arrays.copyOfRange(compressed, 1, compressed.length));
+      fail("the compression marker must not be strippable");
+    } catch (GeneralSecurityException expected) {
+    }
+  }
+
+  @Test
+  public void testCompressionOfTinyPlaintexts() throws GeneralSecurityException, IOException {
+    KmsClient kms = new FakeKmsClient();
+    for (int threshold = 0; threshold <= 1; threshold++) {
+      CryptoHelper compressing = new CryptoHelper().loadKeyset(false).withKmsClient(kms).compressAbove(threshold);
+      for (byte[] plaintext : new byte[][] { {}, { 'x' }, { (byte) 0xC1 }, { 'x', 'x' } }) {
+        assertArrayEquals(plaintext, compressing.decryptToBytes(compressing.encryptToBytes(plaintext)));
+      }
+      assertEquals("", compressing.decrypt(compressing.encrypt("")));
+    }
+  }
+
+  @Test
+  public void testCorruptCompressedPayloadIsRejected() {
+    byte[] payload = Compression.compress(new byte[1000], Deflater.BEST_SPEED);
+    for (byte[] corrupt : new byte[][] { {}, { (byte) 0xE8 }, Arrays.copyOf(payload, payload.length - 1),
+        Arrays.copyOf(payload, payload.length + 1), { (byte) 0xE8, 0x07, 0x03, 0x00 } }) {
+      try {
+        Compression.decompress(corrupt);
+        fail("accepted " + Arrays.toString(corrupt));
+      } catch (GeneralSecurityException expected) {
+      }
+    }
+  }
+
+  @Test
+  public void testKeysetFilesFromSettings() throws GeneralSecurityException, IOException {
+    KmsClient kms = new FakeKmsClient();
+    Path dir = Files.createTempDirectory("keysets-");
+    Path fromProperty = dir.resolve("from-property.json");
+    Path custom = dir.resolve("custom.json");
+    System.setProperty(Settings.propertyPrefix + "keysetFilename", fromProperty.toString());
+    try {
+      CryptoHelper writer = new CryptoHelper().keyUri("fake-kms://settings").loadKeyset(false).writeKeyset(true)
+          .withKmsClient(kms);
+      String ciphertext = writer.encrypt("Grüße aus Zürich");
+      assertTrue(Files.exists(fromProperty));
+
+      CryptoHelper reader = new CryptoHelper().keyUri("fake-kms://settings").loadKeyset(true).withKmsClient(kms);
+      assertEquals("Grüße aus Zürich", reader.decrypt(ciphertext));
+
+      new CryptoHelper().keysetFile(custom.toString()).loadKeyset(false).writeClearKeyset(true).withKmsClient(kms)
+          .encrypt("clear");
+      assertTrue(Files.exists(dir.resolve("custom-clear.json")));
+      assertFalse(Files.exists(custom));
+    } finally {
+      System.clearProperty(Settings.propertyPrefix + "keysetFilename");
+      Files.deleteIfExists(fromProperty);
+      Files.deleteIfExists(dir.resolve("custom-clear.json"));
+      Files.delete(dir);
+    }
+  }
+}
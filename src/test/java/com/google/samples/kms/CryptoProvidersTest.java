@@ -0,0 +1,50 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.security.Provider;
+import java.security.Security;
+
+import org.junit.Test;
+
+public class CryptoProvidersTest {
+
+  /**
+   * Claims AES-GCM but implements it with a class that does not exist, so the self-test must fail.
+   */
+  public static class BrokenProvider extends Provider {
+    private static final long serialVersionUID = 1L;
+
+    public BrokenProvider() {
+      super("BrokenGcm", "1.0", "AES-GCM that fails the self-test");
+      put("Cipher.AES/GCM/NoPadding", "com.example.MissingCipher");
+    }
+  }
+
+  @Test
+  public void testFallsBackToJdkProvider() {
+    String jdk = CryptoProviders.activeProvider();
+    assertEquals(jdk, CryptoProviders.prefer("jdk"));
+    assertEquals(jdk, CryptoProviders.prefer("com.example.MissingProvider"));
+    assertEquals(jdk, CryptoProviders.prefer(String.class.getName()));
+    assertEquals(jdk, CryptoProviders.prefer(BrokenProvider.class.getName()));
+    assertNull(Security.getProvider("BrokenGcm"));
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms;
+
+import com.google.crypto.tink.Aead;
+import com.google.crypto.tink.KeysetHandle;
+import com.google.crypto.tink.KmsClient;
+import com.google.crypto.tink.aead.AeadConfig;
+import com.google.crypto.tink.aead.AeadKeyTemplates;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for Cloud KMS. Every key URI maps to a local AES-GCM key, and an optional latency is
+ * injected into each remote call so that tests and benchmarks can observe the cost of KMS round trips. Like
+ * the real service, all clients in a process see the same keys, while calls are counted per client.
+ */
+public class FakeKmsClient implements KmsClient {
+  private static final ConcurrentMap<String, Aead> keys = new ConcurrentHashMap<String, Aead>();
+  private final AtomicLong getAeadCalls = new AtomicLong();
+  private final AtomicLong remoteCalls = new AtomicLong();
+  private final long latencyNanos;
+
+  public FakeKmsClient() throws GeneralSecurityException {
+    this(0, TimeUnit.MILLISECONDS);
+  }
+
+  public FakeKmsClient(long latency, TimeUnit unit) throws GeneralSecurityException {
+    AeadConfig.register();
+    latencyNanos = unit.toNanos(latency);
+  }
+
+  @Override
+  public boolean doesSupport(String keyUri) {
+    return keyUri != null;
+  }
+
+  @Override
+  public KmsClient withCredentials(String credentialPath) {
+    return this;
+  }
+
+  @Override
+  public KmsClient withDefaultCredentials() {
+    return this;
+  }
+
+  @Override
+  public Aead getAead(String keyUri) throws GeneralSecurityException {
+    getAeadCalls.incrementAndGet();
+    Aead key = keys.get(keyUri);
+    if (key == null) {
+      keys.putIfAbsent(keyUri, KeysetHandle.generateNew(AeadKeyTemplates.AES256_GCM).getPrimitive(Aead.class));
+      key = keys.get(keyUri);
+    }
+    final Aead local = key;
+    return new Aead() {
+      @Override
+      public byte[] encrypt(byte[] plaintext, byte[] associatedData) throws GeneralSecurityException {
+        remoteCall();
+        return local.encrypt(plaintext, associatedData);
+      }
+
+      @Override
+      public byte[] decrypt(byte[] ciphertext, byte[] associatedData) throws GeneralSecurityException {
+        remoteCall();
+        return local.decrypt(ciphertext, associatedData);
+      }
+    };
+  }
+
+  public long getAeadCalls() {
+    return getAeadCalls.get();
+  }
+
+  public long remoteCalls() {
+    return remoteCalls.get();
+  }
+
+  private void remoteCall() {
+    remoteCalls.incrementAndGet();
+    if (latencyNanos > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(latencyNanos);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
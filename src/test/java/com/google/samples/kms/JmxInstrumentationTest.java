@@ -0,0 +1,91 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.samples.kms.Instrumentation.Operation;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class JmxInstrumentationTest {
+
+  @Test
+  public void testCryptoHelperOperations() throws GeneralSecurityException, IOException, JMException {
+    JmxInstrumentation stats = new JmxInstrumentation("test").register();
+    try {
+      FakeKmsClient kms = new FakeKmsClient();
+      CryptoHelper ctx = new CryptoHelper().loadKeyset(false).withKmsClient(kms).instrumentation(stats);
+      byte[] plaintext = "0123456789".getBytes(StandardCharsets.UTF_8);
+      byte[] ciphertext = null;
+      for (int i = 0; i < 10; i++) {
+        ciphertext = ctx.encryptToBytes(plaintext);
+      }
+      assertEquals("0123456789", ctx.decrypt(ciphertext));
+      try {
+        ctx.decryptToBytes(Arrays.copyOf(ciphertext, ciphertext.length - 1));
+        fail("expected a decryption failure");
+      } catch (GeneralSecurityException expected) {
+        // counted as a failure
+      }
+      ctx.setEncodedKeysetHandle(ctx.getEncodedKeysetHandle());
+
+      assertEquals(10, stats.getStats(Operation.ENCRYPT).getCount());
+      assertEquals(100, stats.getStats(Operation.ENCRYPT).getBytes());
+      assertEquals(1, stats.getStats(Operation.DECRYPT).getCount());
+      assertEquals(10, stats.getStats(Operation.DECRYPT).getBytes());
+      assertEquals(1, stats.getStats(Operation.DECRYPT).getFailures());
+      assertEquals(2, stats.getStats(Operation.KEYSET_LOAD).getCount());
+      assertEquals(kms.remoteCalls(), stats.getStats(Operation.KMS_CALL).getCount());
+      assertTrue(stats.getStats(Operation.ENCRYPT).getP99Micros() >= stats.getStats(Operation.ENCRYPT).getP50Micros());
+      assertTrue(stats.getStats(Operation.ENCRYPT).getMaxMicros() > 0);
+
+      ObjectName name = new ObjectName("com.google.samples.kms:type=Instrumentation,name=\"test\",operation=encrypt");
+      assertEquals(10L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Count"));
+    } finally {
+      stats.unregister();
+    }
+  }
+
+  @Test
+  public void testHistogramPercentiles() {
+    JmxInstrumentation stats = new JmxInstrumentation("histogram");
+    for (int i = 0; i < 99; i++) {
+      stats.record(Operation.REDIS_GET, 1, 0, 1000);
+    }
+    stats.record(Operation.REDIS_GET, 1, 0, 1000000);
+    JmxInstrumentation.OperationStatsMXBean get = stats.getStats(Operation.REDIS_GET);
+    assertEquals(100, get.getCount());
+    assertEquals(1.024, get.getP50Micros(), 0.001);
+    assertEquals(1.024, get.getP99Micros(), 0.001);
+    assertEquals(1000.0, get.getMaxMicros(), 0.001);
+    assertEquals(99, get.getLatencyHistogram()[9]);
+    get.reset();
+    assertEquals(0, get.getCount());
+  }
+}
@@ -118,7 +118,7 @@ public class AppTest {
     for (int i = 0; i < redisBatchSize; i++) {
       data.add(new AbstractMap.SimpleEntry<String, String>(String.format("%d", i), UUID.randomUUID().toString()));
     }
-    RedisHelper r = new RedisHelper(ctx, host, 6379);
+    RedisHelper r = new RedisHelper(ctx, host, 6379).batchSize(redisBatchSize);
     long time = System.nanoTime();
     r.set(data.iterator());
     System.out.println(String.format("Set of %d encrypted values took on average %dµs on host %s", redisBatchSize,
@@ -146,7 +146,7 @@ public class AppTest {
     for (int i = 0; i < redisBatchSize; i++) {
       data.add(new AbstractMap.SimpleEntry<String, String>(String.format("%d", i), UUID.randomUUID().toString()));
     }
-    RedisHelper r = new RedisHelper(ctx, host, 6379);
+    RedisHelper r = new RedisHelper(ctx, host, 6379).batchSize(redisBatchSize);
     long time = System.nanoTime();
     r.setClear(data.iterator());
     System.out.println(String.format("Set of %d cleartext values took on average %dµs on host %s", redisBatchSize,
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms.ale;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.samples.kms.Checkpoint;
+import com.google.samples.kms.CryptoHelper;
+import com.google.samples.kms.FakeKmsClient;
+import com.google.samples.kms.ThroughputReport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.Test;
+
+public class CsvHelperTest {
+  private static final String csv = "Key,Member\r\n"
+      + "1,Hello World\r\n"
+      + "2,\"quoted, with comma\"\n"
+      + "\"3\",\"multi\r\nline \"\"quoted\"\" value\"\r\n"
+      + "\r\n"
+      + "4,Grüße aus Zürich\r\n"
+      + "5,\r\n"
+      + "6,no trailing newline";
+
+  private static final String wideCsv = "Id,Name,Email,Notes,Ssn\r\n"
+      + "1,Ada,ada@example.com,\"likes, commas\",123-45-6789\r\n"
+      + "2,\"Bob \"\"B\"\"\",bob@example.com,plain,\"987,65\r\n4321\"\r\n"
+      + "3,Cy,,\"\",\r\n";
+
+  private static List<List<String>> parse(Path file) throws IOException {
+    List<List<String>> records = new ArrayList<List<String>>();
+    try (CSVParser parser = CSVFormat.RFC4180.parse(Files.newBufferedReader(file, StandardCharsets.UTF_8))) {
+      for (CSVRecord r : parser) {
+        List<String> values = new ArrayList<String>();
+        r.forEach(values::add);
+        records.add(values);
+      }
+    }
+    return records;
+  }
+
+  private static List<String[]> decrypt(CryptoHelper ctx, Path encrypted) throws GeneralSecurityException,
+      IOException {
+    List<String[]> records = new ArrayList<String[]>();
+    Iterator<CSVRecord> it = CsvHelper.read(encrypted.toString()).iterator();
+    CSVRecord keyset = it.next();
+    assertEquals("--tink-keyset--", keyset.get(CsvHelper.Headers.Key));
+    CryptoHelper reader = new CryptoHelper().loadKeyset(false).withKmsClient(new FakeKmsClient());
+    reader.setEncodedKeysetHandle(keyset.get(CsvHelper.Headers.Member));
+    while (it.hasNext()) {
+      CSVRecord r = it.next();
+      records.add(new String[] { r.get(CsvHelper.Headers.Key), reader.decrypt(r.get(CsvHelper.Headers.Member)) });
+    }
+    return records;
+  }
+
+  @Test
+  public void testChunkedEncryptMatchesCsvParser() throws GeneralSecurityException, IOException {
+    CryptoHelper ctx = new CryptoHelper().loadKeyset(false).withKmsClient(new FakeKmsClient());
+    Path input = Files.createTempFile("csv-helper-", ".csv");
+    Path encrypted = Files.createTempFile("csv-helper-", ".encrypted.csv");
+    try {
+      Files.write(input, csv.getBytes(StandardCharsets.UTF_8));
+      List<String[]> expected = new ArrayList<String[]>();
+      for (CSVRecord r : CsvHelper.read(input.toString())) {
+        if (r.size() > 1) {
+          expected.add(new String[] { r.get(CsvHelper.Headers.Key), r.get(CsvHelper.Headers.Member) });
+        }
+      }
+      assertEquals(6, expected.size());
+      for (int chunkSize : new int[] { 1, 7, 64, 1 << 20 }) {
+        ThroughputReport report = new CsvHelper(ctx).chunkSize(chunkSize).workers(3).queueDepth(2)
+            .encrypt(input.toString(), encrypted.toString());
+        assertEquals(6, report.getRows());
+        List<String[]> actual = decrypt(ctx, encrypted);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+          assertArrayEquals(expected.get(i), actual.get(i));
+        }
+      }
+      assertEquals("Key,Member", Files.readAllLines(encrypted).get(0));
+    } finally {
+      Files.delete(input);
+      Files.delete(encrypted);
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testUnterminatedQuoteIsRejected() throws GeneralSecurityException, IOException {
+    CryptoHelper ctx = new CryptoHelper().loadKeyset(false).withKmsClient(new FakeKmsClient());
+    Path input = Files.createTempFile("csv-helper-", ".csv");
+    Path encrypted = Files.createTempFile("csv-helper-", ".encrypted.csv");
+    try {
+      Files.write(input, "Key,Member\r\n1,\"open\r\n".getBytes(StandardCharsets.UTF_8));
+      CsvHelper.encrypt(ctx, input.toString(), encrypted.toString());
+    } finally {
+      Files.delete(input);
+      Files.delete(encrypted);
+    }
+  }
+
+  @Test
+  public void testReadStreamingEncryptedCsv() throws GeneralSecurityException, IOException {
+    CryptoHelper ctx = new CryptoHelper().loadKeyset(false).withKmsClient(new FakeKmsClient());
+    Path csv = Files.createTempFile("csv-helper-", ".csv");
+    Path encrypted = Files.createTempFile("csv-helper-", ".csv.enc");
+    try {
+      Files.write(csv, "Key,Member\r\n1,Grüße\r\n2,\"quoted, value\"\r\n".getBytes(StandardCharsets.UTF_8));
+      ctx.encrypt(csv, encrypted);
+      List<String> members = new ArrayList<String>();
+      for (CSVRecord record : CsvHelper.read(ctx, encrypted.toString())) {
+        members.add(record.get(CsvHelper.Headers.Member));
+      }
+      assertEquals(List.of("Grüße", "quoted, value"), members);
+    } finally {
+      Files.delete(csv);
+      Files.delete(encrypted);
+    }
+  }
+
+  @Test
+  public void testSelectedColumnsRoundtrip() throws GeneralSecurityException, IOException {
+    CryptoHelper ctx = new CryptoHelper().loadKeyset(false).withKmsClient(new FakeKmsClient());
+    Path input = Files.createTempFile("csv-helper-", ".csv");
+    Path encrypted = Files.createTempFile("csv-helper-", ".encrypted.csv");
+    Path decrypted = Files.createTempFile("csv-helper-", ".decrypted.csv");
+    try {
+      Files.write(input, wideCsv.getBytes(StandardCharsets.UTF_8));
+      ThroughputReport report = new CsvHelper(ctx).columns("Email", "Ssn")
+          .associatedData("Ssn", "Ssn".getBytes(StandardCharsets.UTF_8)).chunkSize(16)
+          .encrypt(input.toString(), encrypted.toString());
+      assertEquals(3, report.getRows());
+      String ciphertext = new String(Files.readAllBytes(encrypted), StandardCharsets.UTF_8);
+      assertTrue(ciphertext.startsWith("Id,Name,Email,Notes,Ssn\r\n--tink-keyset--,"));
+      assertTrue(ciphertext.contains("\r\n1,Ada,"));
+      assertTrue(ciphertext.contains(",\"likes, commas\","));
+      assertTrue(ciphertext.contains("\r\n2,\"Bob \"\"B\"\"\","));
+      assertFalse(ciphertext.contains("ada@example.com"));
+      assertFalse(ciphertext.contains("123-45-6789"));
+
+      CryptoHelper reader = new CryptoHelper().loadKeyset(false).withKmsClient(new FakeKmsClient());
+      new CsvHelper(reader).columns("Email", "Ssn").associatedData("Ssn", "Ssn".getBytes(StandardCharsets.UTF_8))
+          .decrypt(encrypted.toString(), decrypted.toString());
+      assertEquals(parse(input), parse(decrypted));
+    } finally {
+      Files.delete(input);
+      Files.delete(encrypted);
+      Files.delete(decrypted);
+    }
+  }
+
+  @Test
+  public void testDecryptDefaultColumns() throws GeneralSecurityException, IOException {
+    CryptoHelper ctx = new CryptoHelper().loadKeyset(false).withKmsClient(new FakeKmsClient());
+    Path input = Files.createTempFile("csv-helper-", ".csv");
+    Path encrypted = Files.createTempFile("csv-helper-", ".encrypted.csv");
+    Path decrypted = Files.createTempFile("csv-helper-", ".decrypted.csv");
+    try {
+      Files.write(input, csv.getBytes(StandardCharsets.UTF_8));
+      CsvHelper.encrypt(ctx, input.toString(), encrypted.toString());
+      CsvHelper.decrypt(new CryptoHelper().loadKeyset(false).withKmsClient(new FakeKmsClient()),
+          encrypted.toString(), decrypted.toString());
+      List<List<String>> expected = parse(input);
+      expected.removeIf(r -> r.size() < 2);
+      assertEquals(expected, parse(decrypted));
+    } finally {
+      Files.delete(input);
+      Files.delete(encrypted);
+      Files.delete(decrypted);
+    }
+  }
+
+  @Test(expected = GeneralSecurityException.class)
+  public void testColumnAssociatedDataMismatch() throws GeneralSecurityException, IOException {
+    CryptoHelper ctx = new CryptoHelper().loadKeyset(false).withKmsClient(new FakeKmsClient());
+    Path input = Files.createTempFile("csv-helper-", ".csv");
+    Path encrypted = Files.createTempFile("csv-helper-", ".encrypted.csv");
+    Path decrypted = Files.createTempFile("csv-helper-", ".decrypted.csv");
+    try {
+      Files.write(input, wideCsv.getBytes(StandardCharsets.UTF_8));
+      new CsvHelper(ctx).columns("Email").associatedData("Email", "Email".getBytes(StandardCharsets.UTF_8))
+          .encrypt(input.toString(), encrypted.toString());
+      new CsvHelper(ctx).columns("Email").associatedData("Email", "Ssn".getBytes(StandardCharsets.UTF_8))
+          .decrypt(encrypted.toString(), decrypted.toString());
+    } finally {
+      Files.delete(input);
+      Files.delete(encrypted);
+      Files.delete(decrypted);
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testUnknownColumnIsRejected() throws GeneralSecurityException, IOException {
+    CryptoHelper ctx = new CryptoHelper().loadKeyset(false).withKmsClient(new FakeKmsClient());
+    Path input = Files.createTempFile("csv-helper-", ".csv");
+    Path encrypted = Files.createTempFile("csv-helper-", ".encrypted.csv");
+    try {
+      Files.write(input, wideCsv.getBytes(StandardCharsets.UTF_8));
+      new CsvHelper(ctx).columns("Phone").encrypt(input.toString(), encrypted.toString());
+    } finally {
+      Files.delete(input);
+      Files.delete(encrypted);
+    }
+  }
+
+  @Test
+  public void testDeterministicColumnsCanBeJoined() throws GeneralSecurityException, IOException {
+    CryptoHelper ctx = new CryptoHelper().loadKeyset(false).withKmsClient(new FakeKmsClient());
+    Path input = Files.createTempFile("csv-helper-", ".csv");
+    Path encrypted = Files.createTempFile("csv-helper-", ".encrypted.csv");
+    Path decrypted = Files.createTempFile("csv-helper-", ".decrypted.csv");
+    try {
+      Files.write(input, "Key,Member\r\n7,first\r\n8,other\r\n7,second\r\n".getBytes(StandardCharsets.UTF_8));
+      new CsvHelper(ctx).deterministicColumns("Key").encrypt(input.toString(), encrypted.toString());
+      List<List<String>> records = parse(encrypted);
+      assertEquals("--tink-deterministic-keyset--", records.get(2).get(0));
+      assertEquals(records.get(3).get(0), records.get(5).get(0));
+      assertFalse(records.get(3).get(0).equals(records.get(4).get(0)));
+      assertFalse(records.get(3).get(1).equals(records.get(5).get(1)));
+
+      CryptoHelper reader = new CryptoHelper().loadKeyset(false).withKmsClient(new FakeKmsClient());
+      new CsvHelper(reader).deterministicColumns("Key").decrypt(encrypted.toString(), decrypted.toString());
+      assertEquals(parse(input), parse(decrypted));
+    } finally {
+      Files.delete(input);
+      Files.delete(encrypted);
+      Files.delete(decrypted);
+    }
+  }
+
+  /**
+   * Fails every encryption after the first {@code budget} ones, like a job that dies halfway.
+   */
+  static class FailingCryptoHelper extends CryptoHelper {
+    final AtomicInteger budget;
+
+    FailingCryptoHelper(int budget) throws GeneralSecurityException {
+      this.budget = new AtomicInteger(budget);
+    }
+
+    @Override
+    public byte[] encryptToBytes(byte[] plaintext, byte[] associatedData)
+        throws GeneralSecurityException, IOException {
+      if (budget.decrementAndGet() < 0) {
+        throw new GeneralSecurityException("interrupted");
+      }
+      return super.encryptToBytes(plaintext, associatedData);
+    }
+  }
+
+  @Test
+  public void testResumeFromCheckpoint() throws GeneralSecurityException, IOException {
+    Path input = Files.createTempFile("csv-helper-", ".csv");
+    Path encrypted = Files.createTempFile("csv-helper-", ".encrypted.csv");
+    Path decrypted = Files.createTempFile("csv-helper-", ".decrypted.csv");
+    try {
+      StringBuilder b = new StringBuilder("Key,Member\r\n");
+      for (int i = 0; i < 1000; i++) {
+        b.append(i).append(",\"member, ").append(i).append("\"\r\n");
+      }
+      Files.write(input, b.toString().getBytes(StandardCharsets.UTF_8));
+      FailingCryptoHelper ctx = new FailingCryptoHelper(600);
+      ctx.loadKeyset(false).withKmsClient(new FakeKmsClient());
+      CsvHelper helper = new CsvHelper(ctx).workers(1).queueDepth(1).chunkSize(256)
+          .checkpointInterval(0, TimeUnit.SECONDS);
+      try {
+        helper.encrypt(input.toString(), encrypted.toString());
+        fail("expected the encryption to fail");
+      } catch (GeneralSecurityException e) {
+        assertTrue(Files.exists(Checkpoint.sidecar(encrypted)));
+      }
+      byte[] partial = Files.readAllBytes(encrypted);
+
+      ctx.budget.set(Integer.MAX_VALUE);
+      ThroughputReport report = helper.encrypt(input.toString(), encrypted.toString());
+      assertTrue(report.getRows() < 1000 - 500);
+      assertFalse(Files.exists(Checkpoint.sidecar(encrypted)));
+      byte[] complete = Files.readAllBytes(encrypted);
+      assertEquals(ByteBuffer.wrap(partial, 0, 1024), ByteBuffer.wrap(complete, 0, 1024));
+
+      CsvHelper.decrypt(new CryptoHelper().loadKeyset(false).withKmsClient(new FakeKmsClient()),
+          encrypted.toString(), decrypted.toString());
+      assertEquals(parse(input), parse(decrypted));
+    } finally {
+      Files.delete(input);
+      Files.delete(encrypted);
+      Files.delete(decrypted);
+    }
+  }
+}
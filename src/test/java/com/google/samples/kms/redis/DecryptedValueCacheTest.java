@@ -0,0 +1,77 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms.redis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class DecryptedValueCacheTest {
+  private final AtomicLong now = new AtomicLong();
+  private final DecryptedValueCache cache = new DecryptedValueCache(2, 10, TimeUnit.SECONDS, now::get);
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testLeastRecentlyUsedIsEvictedAndWiped() {
+    byte[] a = bytes("a");
+    cache.put("a", a, cache.stamp());
+    cache.put("b", bytes("b"), cache.stamp());
+    assertEquals("a", cache.get("a"));
+    cache.put("c", bytes("c"), cache.stamp());
+    assertNull(cache.get("b"));
+    assertEquals("a", cache.get("a"));
+    assertEquals("c", cache.get("c"));
+    assertEquals(1, cache.getEvictions());
+    assertEquals(3, cache.getHits());
+    assertEquals(1, cache.getMisses());
+
+    cache.invalidate("a");
+    assertNull(cache.get("a"));
+    assertArrayEquals(new byte[1], a);
+  }
+
+  @Test
+  public void testEntriesExpire() {
+    byte[] a = bytes("a");
+    cache.put("a", a, cache.stamp());
+    now.addAndGet(TimeUnit.SECONDS.toNanos(9));
+    assertEquals("a", cache.get("a"));
+    now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+    assertNull(cache.get("a"));
+    assertEquals(0, cache.size());
+    assertArrayEquals(new byte[1], a);
+  }
+
+  @Test
+  public void testPutAfterConcurrentWriteIsDropped() {
+    long stamp = cache.stamp();
+    cache.invalidate("a");
+    byte[] stale = bytes("stale");
+    cache.put("a", stale, stamp);
+    assertNull(cache.get("a"));
+    assertArrayEquals(new byte[5], stale);
+  }
+}
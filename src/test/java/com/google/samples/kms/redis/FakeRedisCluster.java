@@ -0,0 +1,219 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms.redis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.util.JedisClusterCRC16;
+
+/**
+ * In-process Redis Cluster of {@link FakeRedisServer} nodes that split the hash slots evenly. Nodes answer
+ * CLUSTER SLOTS, redirect keys they do not own with MOVED, and follow the ASK protocol while a slot migrates:
+ * the old owner serves the keys it still has and sends the others to the importing node, which only accepts
+ * them after ASKING.
+ */
+public class FakeRedisCluster implements Closeable {
+  private static final int slots = 16384;
+  private final List<Node> nodes = new ArrayList<Node>();
+  private final AtomicIntegerArray owners = new AtomicIntegerArray(slots);
+  private final Map<Integer, Integer> importing = new ConcurrentHashMap<Integer, Integer>();
+
+  public FakeRedisCluster(int size) throws IOException {
+    for (int i = 0; i < size; i++) {
+      nodes.add(new Node(i));
+    }
+    for (int slot = 0; slot < slots; slot++) {
+      owners.set(slot, slot * size / slots);
+    }
+  }
+
+  public Set<HostAndPort> getNodes() {
+    Set<HostAndPort> s = new LinkedHashSet<HostAndPort>();
+    for (Node n : nodes) {
+      s.add(new HostAndPort(n.getHost(), n.getPort()));
+    }
+    return s;
+  }
+
+  public FakeRedisServer getNode(int index) {
+    return nodes.get(index);
+  }
+
+  public int size() {
+    return nodes.size();
+  }
+
+  public int ownerOf(int slot) {
+    return owners.get(slot);
+  }
+
+  public static int slot(String key) {
+    return JedisClusterCRC16.getSlot(key);
+  }
+
+  /**
+   * Returns the value of {@code key} from whichever node holds it.
+   */
+  public byte[] get(String key) {
+    for (Node n : nodes) {
+      byte[] v = n.get(key);
+      if (v != null) {
+        return v;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Hands {@code slot} with its keys to node {@code target} at once, so that clients are redirected with MOVED.
+   */
+  public void moveSlot(int slot, int target) {
+    Node from = nodes.get(owners.get(slot));
+    Node to = nodes.get(target);
+    for (ByteBuffer k : new ArrayList<ByteBuffer>(from.data().keySet())) {
+      if (JedisClusterCRC16.getSlot(bytes(k)) == slot) {
+        to.data().put(k, from.data().remove(k));
+      }
+    }
+    owners.set(slot, target);
+  }
+
+  /**
+   * Starts to migrate {@code slot} to node {@code target}, which answers for the keys the owner no longer has.
+   */
+  public void startMigration(int slot, int target) {
+    importing.put(slot, target);
+  }
+
+  public void finishMigration(int slot) {
+    moveSlot(slot, importing.remove(slot));
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (Node n : nodes) {
+      n.close();
+    }
+  }
+
+  private static byte[] bytes(ByteBuffer key) {
+    byte[] b = new byte[key.remaining()];
+    key.duplicate().get(b);
+    return b;
+  }
+
+  private final class Node extends FakeRedisServer {
+    private final int index;
+    private final ThreadLocal<Boolean> asking = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    Node(int index) throws IOException {
+      this.index = index;
+    }
+
+    @Override
+    protected boolean execute(String name, List<byte[]> command, OutputStream out) throws IOException {
+      boolean asked = asking.get();
+      asking.set(Boolean.FALSE);
+      switch (name) {
+        case "ASKING":
+          asking.set(Boolean.TRUE);
+          simple(out, "OK");
+          return false;
+        case "CLUSTER":
+          clusterSlots(out);
+          return false;
+        case "GET":
+        case "SET":
+        case "SETNX":
+        case "MGET":
+        case "DEL":
+          List<byte[]> keys = name.equals("MGET") || name.equals("DEL") ? command.subList(1, command.size())
+              : command.subList(1, 2);
+          String error = route(keys, asked);
+          if (error != null) {
+            out.write(('-' + error + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            return false;
+          }
+          return super.execute(name, command, out);
+        default:
+          return super.execute(name, command, out);
+      }
+    }
+
+    /**
+     * Returns the error that redirects {@code keys}, or null if this node serves them.
+     */
+    private String route(List<byte[]> keys, boolean asked) {
+      int slot = JedisClusterCRC16.getSlot(keys.get(0));
+      int present = 0;
+      for (byte[] k : keys) {
+        if (JedisClusterCRC16.getSlot(k) != slot) {
+          return "CROSSSLOT Keys in request don't hash to the same slot";
+        }
+        present += data().containsKey(key(k)) ? 1 : 0;
+      }
+      Integer target = importing.get(slot);
+      if (owners.get(slot) == index) {
+        if (target == null || present == keys.size()) {
+          return null;
+        }
+        return present == 0 ? "ASK " + slot + " " + address(target) : "TRYAGAIN Multiple keys request during rehashing of slot";
+      }
+      if (target != null && target == index && asked) {
+        return null;
+      }
+      return "MOVED " + slot + " " + address(owners.get(slot));
+    }
+
+    private String address(int node) {
+      return nodes.get(node).getHost() + ":" + nodes.get(node).getPort();
+    }
+
+    private void clusterSlots(OutputStream out) throws IOException {
+      List<int[]> ranges = new ArrayList<int[]>();
+      for (int slot = 0; slot < slots; slot++) {
+        int owner = owners.get(slot);
+        int[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+        if (last != null && last[2] == owner && last[1] == slot - 1) {
+          last[1] = slot;
+        } else {
+          ranges.add(new int[] { slot, slot, owner });
+        }
+      }
+      out.write(String.format("*%d\r\n", ranges.size()).getBytes(StandardCharsets.US_ASCII));
+      for (int[] r : ranges) {
+        Node n = nodes.get(r[2]);
+        out.write(String.format("*3\r\n:%d\r\n:%d\r\n*3\r\n", r[0], r[1]).getBytes(StandardCharsets.US_ASCII));
+        bulk(out, n.getHost().getBytes(StandardCharsets.US_ASCII));
+        integer(out, n.getPort());
+        bulk(out, String.format("node-%d", n.index).getBytes(StandardCharsets.US_ASCII));
+      }
+    }
+  }
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms.redis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal in-process Redis server speaking RESP over a local socket, enough for Jedis to run GET, SET, MGET, SCAN,
+ * pipelines and WATCH/MULTI/EXEC transactions against it in tests. Each connection is served by its own daemon
+ * thread, and commands run one at a time like on a real server.
+ */
+public class FakeRedisServer implements Closeable {
+  private final ServerSocket serverSocket;
+  private final ConcurrentSkipListMap<ByteBuffer, byte[]> data = new ConcurrentSkipListMap<ByteBuffer, byte[]>();
+  private final Object lock = new Object();
+  private final ConcurrentMap<String, AtomicLong> commands = new ConcurrentHashMap<String, AtomicLong>();
+  private final List<Socket> clients = new ArrayList<Socket>();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private volatile long latencyNanos;
+  private volatile CountDownLatch gate = new CountDownLatch(0);
+
+  public FakeRedisServer() throws IOException {
+    serverSocket = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+    Thread acceptor = new Thread(this::accept, "fake-redis-accept-" + getPort());
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  public String getHost() {
+    return serverSocket.getInetAddress().getHostAddress();
+  }
+
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  public FakeRedisServer latency(long latency, TimeUnit unit) {
+    latencyNanos = unit.toNanos(latency);
+    return this;
+  }
+
+  /**
+   * Holds every command that arrives from now on until {@link #resume} is called.
+   */
+  public FakeRedisServer pause() {
+    gate = new CountDownLatch(1);
+    return this;
+  }
+
+  public FakeRedisServer resume() {
+    gate.countDown();
+    return this;
+  }
+
+  /**
+   * Number of commands received but not yet executed.
+   */
+  public int inFlight() {
+    return inFlight.get();
+  }
+
+  public Map<ByteBuffer, byte[]> data() {
+    return data;
+  }
+
+  public byte[] get(String key) {
+    return data.get(ByteBuffer.wrap(key.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  public long commandCount(String command) {
+    AtomicLong n = commands.get(command.toUpperCase(Locale.ROOT));
+    return n == null ? 0 : n.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+    synchronized (clients) {
+      for (Socket s : clients) {
+        s.close();
+      }
+    }
+  }
+
+  private void accept() {
+    while (!serverSocket.isClosed()) {
+      try {
+        Socket socket = serverSocket.accept();
+        synchronized (clients) {
+          clients.add(socket);
+        }
+        Thread t = new Thread(() -> serve(socket), "fake-redis-client-" + socket.getPort());
+        t.setDaemon(true);
+        t.start();
+      } catch (IOException e) {
+        return;
+      }
+    }
+  }
+
+  private void serve(Socket socket) {
+    try (Socket s = socket) {
+      InputStream in = new BufferedInputStream(s.getInputStream(), 1 << 16);
+      OutputStream out = new BufferedOutputStream(s.getOutputStream(), 1 << 16);
+      Session session = new Session();
+      while (true) {
+        List<byte[]> command = readCommand(in);
+        if (command == null) {
+          return;
+        }
+        String name = name(command);
+        commands.computeIfAbsent(name, k -> new AtomicLong()).incrementAndGet();
+        inFlight.incrementAndGet();
+        boolean quit;
+        try {
+          gate.await();
+          if (latencyNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(latencyNanos);
+          }
+          synchronized (lock) {
+            quit = session.execute(name, command, out);
+          }
+        } finally {
+          inFlight.decrementAndGet();
+        }
+        if (in.available() == 0 || quit) {
+          out.flush();
+        }
+        if (quit) {
+          return;
+        }
+      }
+    } catch (IOException | InterruptedException e) {
+      return;
+    }
+  }
+
+  /**
+   * Executes one command and returns whether the connection should be closed.
+   */
+  protected boolean execute(String name, List<byte[]> command, OutputStream out) throws IOException {
+    switch (name) {
+      case "PING":
+        simple(out, "PONG");
+        return false;
+      case "QUIT":
+        simple(out, "OK");
+        return true;
+      case "SET":
+        data.put(key(command.get(1)), command.get(2));
+        simple(out, "OK");
+        return false;
+      case "SETNX":
+        integer(out, data.putIfAbsent(key(command.get(1)), command.get(2)) == null ? 1 : 0);
+        return false;
+      case "GET":
+        bulk(out, data.get(key(command.get(1))));
+        return false;
+      case "MGET":
+        out.write(String.format("*%d\r\n", command.size() - 1).getBytes(StandardCharsets.US_ASCII));
+        for (int i = 1; i < command.size(); i++) {
+          bulk(out, data.get(key(command.get(i))));
+        }
+        return false;
+      case "INCR":
+        byte[] counter = data.get(key(command.get(1)));
+        long n = (counter == null ? 0 : Long.parseLong(new String(counter, StandardCharsets.US_ASCII))) + 1;
+        data.put(key(command.get(1)), Long.toString(n).getBytes(StandardCharsets.US_ASCII));
+        integer(out, n);
+        return false;
+      case "DEL":
+        int removed = 0;
+        for (int i = 1; i < command.size(); i++) {
+          removed += data.remove(key(command.get(i))) == null ? 0 : 1;
+        }
+        integer(out, removed);
+        return false;
+      case "SCAN":
+        scan(command, out);
+        return false;
+      case "DBSIZE":
+        integer(out, data.size());
+        return false;
+      case "FLUSHALL":
+      case "FLUSHDB":
+        data.clear();
+        simple(out, "OK");
+        return false;
+      default:
+        out.write(String.format("-ERR unknown command '%s'\r\n", name).getBytes(StandardCharsets.US_ASCII));
+        return false;
+    }
+  }
+
+  /**
+   * Pages through the keys in order. The cursor is the hex encoding of the last key returned, so keys added or
+   * removed during a scan do not make it skip or repeat others.
+   */
+  private void scan(List<byte[]> command, OutputStream out) throws IOException {
+    String cursor = new String(command.get(1), StandardCharsets.US_ASCII);
+    int count = 10;
+    for (int i = 2; i + 1 < command.size(); i += 2) {
+      if (new String(command.get(i), StandardCharsets.US_ASCII).equalsIgnoreCase("COUNT")) {
+        count = Integer.parseInt(new String(command.get(i + 1), StandardCharsets.US_ASCII));
+      }
+    }
+    Map<ByteBuffer, byte[]> rest = cursor.equals("0") ? data : data.tailMap(key(fromHex(cursor)), false);
+    List<ByteBuffer> keys = new ArrayList<ByteBuffer>(count);
+    for (ByteBuffer k : rest.keySet()) {
+      if (keys.size() == count) {
+        break;
+      }
+      keys.add(k);
+    }
+    String next = keys.size() < count || keys.get(count - 1).equals(data.lastKey()) ? "0"
+        : toHex(keys.get(count - 1));
+    out.write("*2\r\n".getBytes(StandardCharsets.US_ASCII));
+    bulk(out, next.getBytes(StandardCharsets.US_ASCII));
+    out.write(String.format("*%d\r\n", keys.size()).getBytes(StandardCharsets.US_ASCII));
+    for (ByteBuffer k : keys) {
+      bulk(out, toBytes(k));
+    }
+  }
+
+  private static String toHex(ByteBuffer key) {
+    StringBuilder b = new StringBuilder();
+    for (byte x : toBytes(key)) {
+      b.append(String.format("%02x", x));
+    }
+    return b.toString();
+  }
+
+  private static byte[] fromHex(String hex) {
+    byte[] b = new byte[hex.length() / 2];
+    for (int i = 0; i < b.length; i++) {
+      b[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+    }
+    return b;
+  }
+
+  private static byte[] toBytes(ByteBuffer key) {
+    byte[] b = new byte[key.remaining()];
+    key.duplicate().get(b);
+    return b;
+  }
+
+  private static String name(List<byte[]> command) {
+    return new String(command.get(0), StandardCharsets.US_ASCII).toUpperCase(Locale.ROOT);
+  }
+
+  /**
+   * Transaction state of one connection: the values of watched keys when they were watched, and the commands
+   * queued since MULTI. EXEC fails if a watched key has been written since, which is detected by identity as
+   * every write stores a new array.
+   */
+  private final class Session {
+    private final Map<ByteBuffer, byte[]> watched = new HashMap<ByteBuffer, byte[]>();
+    private List<List<byte[]>> queued;
+
+    boolean execute(String name, List<byte[]> command, OutputStream out) throws IOException {
+      switch (name) {
+        case "WATCH":
+          for (int i = 1; i < command.size(); i++) {
+            watched.put(key(command.get(i)), data.get(key(command.get(i))));
+          }
+          simple(out, "OK");
+          return false;
+        case "UNWATCH":
+          watched.clear();
+          simple(out, "OK");
+          return false;
+        case "MULTI":
+          queued = new ArrayList<List<byte[]>>();
+          simple(out, "OK");
+          return false;
+        case "DISCARD":
+          queued = null;
+          watched.clear();
+          simple(out, "OK");
+          return false;
+        case "EXEC":
+          List<List<byte[]>> commands = queued;
+          boolean changed = false;
+          for (Map.Entry<ByteBuffer, byte[]> w : watched.entrySet()) {
+            changed |= data.get(w.getKey()) != w.getValue();
+          }
+          queued = null;
+          watched.clear();
+          if (commands == null) {
+            out.write("-ERR EXEC without MULTI\r\n".getBytes(StandardCharsets.US_ASCII));
+          } else if (changed) {
+            out.write("*-1\r\n".getBytes(StandardCharsets.US_ASCII));
+          } else {
+            out.write(String.format("*%d\r\n", commands.size()).getBytes(StandardCharsets.US_ASCII));
+            for (List<byte[]> c : commands) {
+              FakeRedisServer.this.execute(name(c), c, out);
+            }
+          }
+          return false;
+        default:
+          if (queued != null) {
+            queued.add(command);
+            simple(out, "QUEUED");
+            return false;
+          }
+          return FakeRedisServer.this.execute(name, command, out);
+      }
+    }
+  }
+
+  protected static ByteBuffer key(byte[] key) {
+    return ByteBuffer.wrap(key);
+  }
+
+  protected static void simple(OutputStream out, String s) throws IOException {
+    out.write(('+' + s + "\r\n").getBytes(StandardCharsets.US_ASCII));
+  }
+
+  protected static void integer(OutputStream out, long n) throws IOException {
+    out.write((":" + n + "\r\n").getBytes(StandardCharsets.US_ASCII));
+  }
+
+  protected static void bulk(OutputStream out, byte[] b) throws IOException {
+    if (b == null) {
+      out.write("$-1\r\n".getBytes(StandardCharsets.US_ASCII));
+      return;
+    }
+    out.write(('$' + Integer.toString(b.length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+    out.write(b);
+    out.write('\r');
+    out.write('\n');
+  }
+
+  private static List<byte[]> readCommand(InputStream in) throws IOException {
+    int first = in.read();
+    if (first == -1) {
+      return null;
+    }
+    if (first != '*') {
+      throw new IOException("expected a RESP array");
+    }
+    int n = Integer.parseInt(readLine(in));
+    List<byte[]> command = new ArrayList<byte[]>(n);
+    for (int i = 0; i < n; i++) {
+      if (in.read() != '$') {
+        throw new IOException("expected a RESP bulk string");
+      }
+      byte[] b = new byte[Integer.parseInt(readLine(in))];
+      int read = 0;
+      while (read < b.length) {
+        int r = in.read(b, read, b.length - read);
+        if (r < 0) {
+          throw new EOFException();
+        }
+        read += r;
+      }
+      in.read();
+      in.read();
+      command.add(b);
+    }
+    return command;
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder b = new StringBuilder();
+    for (int c = in.read(); c != '\r'; c = in.read()) {
+      if (c < 0) {
+        throw new EOFException();
+      }
+      b.append((char) c);
+    }
+    in.read();
+    return b.toString();
+  }
+}
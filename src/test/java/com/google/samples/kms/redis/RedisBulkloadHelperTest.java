@@ -0,0 +1,259 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms.redis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.samples.kms.Checkpoint;
+import com.google.samples.kms.CryptoHelper;
+import com.google.samples.kms.FakeKmsClient;
+import com.google.samples.kms.ThroughputReport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RedisBulkloadHelperTest {
+  private static final int rows = 10007;
+
+  private File csv;
+  private File serial;
+  private File parallel;
+
+  /**
+   * Deterministic stand-in for the AEAD so that serial and parallel output can be compared byte by byte.
+   */
+  static class ReversingCryptoHelper extends CryptoHelper {
+    String poison = "poison";
+
+    ReversingCryptoHelper() throws GeneralSecurityException {
+      super();
+    }
+
+    @Override
+    public String encrypt(String text) throws GeneralSecurityException {
+      if (text.equals(poison)) {
+        throw new GeneralSecurityException("cannot encrypt " + text);
+      }
+      return new StringBuilder(text).reverse().toString();
+    }
+
+    @Override
+    public String getEncodedKeysetHandle() {
+      return "keyset";
+    }
+
+    @Override
+    public void setEncodedKeysetHandle(String keyset) {
+      assertEquals("keyset", keyset);
+    }
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    csv = File.createTempFile("bulkload-", ".csv");
+    serial = File.createTempFile("bulkload-serial-", ".rb");
+    parallel = File.createTempFile("bulkload-parallel-", ".rb");
+  }
+
+  @After
+  public void tearDown() {
+    csv.delete();
+    serial.delete();
+    parallel.delete();
+  }
+
+  private void writeCsv(String... extraMembers) throws IOException {
+    try (Writer w = Files.newBufferedWriter(csv.toPath(), StandardCharsets.UTF_8)) {
+      w.write("Key,Member\r\n");
+      for (int i = 0; i < rows; i++) {
+        w.write(String.format("%d,Mitglied ü %d\r\n", i, i * 31));
+      }
+      for (String member : extraMembers) {
+        w.write(String.format("extra,%s\r\n", member));
+      }
+    }
+  }
+
+  @Test
+  public void testParallelOutputMatchesSerial() throws IOException, GeneralSecurityException {
+    writeCsv();
+    CryptoHelper ctx = new ReversingCryptoHelper();
+    RedisBulkloadHelper.encrypt(ctx, csv.getPath(), serial.getPath());
+    ThroughputReport report = new RedisBulkloadHelper(ctx).workers(4).queueDepth(2).batchSize(64)
+        .encrypt(csv.getPath(), parallel.getPath());
+    System.out.println(report);
+    assertEquals(rows, report.getRows());
+    assertArrayEquals(Files.readAllBytes(serial.toPath()), Files.readAllBytes(parallel.toPath()));
+  }
+
+  @Test
+  public void testFormatUsesUtf8ByteLengths() {
+    assertEquals("*3\r\n$3\r\nSET\r\n$10\r\nschlüssel\r\n$4\r\nwert\r\n",
+        RedisBulkloadHelper.formatToRedisBulkString("schlüssel", "wert"));
+  }
+
+  @Test
+  public void testRespWriterMatchesFormat() throws IOException {
+    String[] samples = { "", "a", "schlüssel", "日本語", "emoji 😀", "lone \uD800 surrogate",
+        "x".repeat(1023), "y".repeat(1024), "z".repeat(100000) };
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    try (RespWriter resp = new RespWriter(Channels.newChannel(actual), 100)) {
+      for (String key : samples) {
+        for (String value : samples) {
+          expected.write(RedisBulkloadHelper.formatToRedisBulkString(key, value).getBytes(StandardCharsets.UTF_8));
+          resp.writeSet(key, value);
+        }
+      }
+      resp.flush();
+      assertEquals(expected.size(), resp.size());
+    }
+    assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+  }
+
+  /**
+   * Splits a bulkload file into the key and value of each SET frame.
+   */
+  static List<byte[][]> parseSetFrames(byte[] resp) {
+    List<byte[][]> frames = new ArrayList<byte[][]>();
+    int[] position = { 0 };
+    while (position[0] < resp.length) {
+      assertEquals("*3", readLine(resp, position));
+      assertEquals("SET", new String(readBulk(resp, position), StandardCharsets.UTF_8));
+      frames.add(new byte[][] { readBulk(resp, position), readBulk(resp, position) });
+    }
+    return frames;
+  }
+
+  private static byte[] readBulk(byte[] resp, int[] position) {
+    int length = Integer.parseInt(readLine(resp, position).substring(1));
+    byte[] b = Arrays.copyOfRange(resp, position[0], position[0] + length);
+    position[0] += length + 2;
+    return b;
+  }
+
+  private static String readLine(byte[] resp, int[] position) {
+    int start = position[0];
+    while (resp[position[0]] != '\r') {
+      position[0]++;
+    }
+    position[0] += 2;
+    return new String(resp, start, position[0] - 2 - start, StandardCharsets.US_ASCII);
+  }
+
+  @Test
+  public void testRawAndBase64BulkloadAreBothReadable() throws IOException, GeneralSecurityException {
+    writeCsv("last member");
+    CryptoHelper ctx = new CryptoHelper().loadKeyset(false).withKmsClient(new FakeKmsClient());
+    new RedisBulkloadHelper(ctx).workers(2).rawCiphertext(true).encrypt(csv.getPath(), parallel.getPath());
+    new RedisBulkloadHelper(ctx).workers(2).encrypt(csv.getPath(), serial.getPath());
+    List<byte[][]> raw = parseSetFrames(Files.readAllBytes(parallel.toPath()));
+    List<byte[][]> base64 = parseSetFrames(Files.readAllBytes(serial.toPath()));
+    assertEquals(rows + 2, raw.size());
+    assertEquals(rows + 2, base64.size());
+    for (int i = 1; i < raw.size(); i++) {
+      assertTrue(CryptoHelper.isRawCiphertext(raw.get(i)[1]));
+      assertFalse(CryptoHelper.isRawCiphertext(base64.get(i)[1]));
+      assertTrue(base64.get(i)[1].length > raw.get(i)[1].length);
+      assertArrayEquals(raw.get(i)[0], base64.get(i)[0]);
+      assertEquals(ctx.decrypt(ctx.decodeCiphertext(base64.get(i)[1])),
+          ctx.decrypt(ctx.decodeCiphertext(raw.get(i)[1])));
+    }
+    assertEquals("last member", ctx.decrypt(ctx.decodeCiphertext(raw.get(rows + 1)[1])));
+  }
+
+  @Test
+  public void testWorkerFailureIsRethrown() throws IOException, GeneralSecurityException {
+    writeCsv("poison");
+    try {
+      new RedisBulkloadHelper(new ReversingCryptoHelper()).workers(3).queueDepth(1).batchSize(10)
+          .encrypt(csv.getPath(), parallel.getPath());
+      fail("expected the worker's exception");
+    } catch (GeneralSecurityException e) {
+      assertEquals("cannot encrypt poison", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testResumeFromCheckpoint() throws IOException, GeneralSecurityException {
+    writeCsv("poison", "Grüße", "after");
+    ReversingCryptoHelper ctx = new ReversingCryptoHelper();
+    ctx.poison = null;
+    RedisBulkloadHelper.encrypt(ctx, csv.getPath(), serial.getPath());
+
+    ctx.poison = "poison";
+    File checkpoint = Checkpoint.sidecar(parallel.toPath()).toFile();
+    try {
+      new RedisBulkloadHelper(ctx).workers(2).queueDepth(2).batchSize(100).checkpointInterval(0, TimeUnit.SECONDS)
+          .encrypt(csv.getPath(), parallel.getPath());
+      fail("expected the worker's exception");
+    } catch (GeneralSecurityException e) {
+      assertTrue(checkpoint.exists());
+    }
+    Properties saved = new Properties();
+    try (InputStream in = Files.newInputStream(checkpoint.toPath())) {
+      saved.load(in);
+    }
+    long done = Long.parseLong(saved.getProperty("rows"));
+    assertTrue(done > 0);
+    byte[] input = Files.readAllBytes(csv.toPath());
+    int offset = Integer.parseInt(saved.getProperty("inputOffset"));
+    assertEquals('\n', input[offset - 1]);
+    assertEquals(String.format("%d,", done), new String(input, offset, String.valueOf(done).length() + 1,
+        StandardCharsets.UTF_8));
+
+    ctx.poison = null;
+    ThroughputReport report = new RedisBulkloadHelper(ctx).workers(2).batchSize(100)
+        .checkpointInterval(0, TimeUnit.SECONDS).encrypt(csv.getPath(), parallel.getPath());
+    assertEquals(rows + 3 - done, report.getRows());
+    assertFalse(checkpoint.exists());
+    assertArrayEquals(Files.readAllBytes(serial.toPath()), Files.readAllBytes(parallel.toPath()));
+  }
+
+  @Test
+  public void testStaleCheckpointIsIgnored() throws IOException, GeneralSecurityException {
+    writeCsv();
+    ReversingCryptoHelper ctx = new ReversingCryptoHelper();
+    RedisBulkloadHelper.encrypt(ctx, csv.getPath(), serial.getPath());
+    Checkpoint stale = Checkpoint.start(csv.toPath(), parallel.toPath(), "keyset", null);
+    stale.save(12, 1 << 30, 1);
+    ThroughputReport report = new RedisBulkloadHelper(ctx).checkpointInterval(1, TimeUnit.MINUTES)
+        .encrypt(csv.getPath(), parallel.getPath());
+    assertEquals(rows, report.getRows());
+    assertArrayEquals(Files.readAllBytes(serial.toPath()), Files.readAllBytes(parallel.toPath()));
+  }
+}
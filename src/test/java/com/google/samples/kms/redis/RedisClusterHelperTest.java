@@ -0,0 +1,158 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.samples.kms.CryptoHelper;
+import com.google.samples.kms.FakeKmsClient;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RedisClusterHelperTest {
+  private static final int records = 3001;
+
+  private FakeRedisCluster cluster;
+  private List<Map.Entry<String, String>> data;
+  private String[] keys;
+
+  @Before
+  public void setUp() throws IOException {
+    cluster = new FakeRedisCluster(3);
+    data = new ArrayList<Map.Entry<String, String>>();
+    for (int i = 0; i < records; i++) {
+      data.add(new AbstractMap.SimpleEntry<String, String>(String.format("key-%d", i), String.format("value %d", i)));
+    }
+    keys = new String[records];
+    for (int i = 0; i < records; i++) {
+      keys[i] = data.get(i).getKey();
+    }
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    cluster.close();
+  }
+
+  private RedisClusterHelper newRedisClusterHelper() throws GeneralSecurityException, IOException {
+    return new RedisClusterHelper(new CryptoHelper().withKmsClient(new FakeKmsClient()), cluster.getNodes());
+  }
+
+  private void assertValues(RedisClusterHelper r) throws GeneralSecurityException, IOException {
+    List<String> values = r.get(keys);
+    for (int i = 0; i < records; i++) {
+      assertEquals(data.get(i).getValue(), values.get(i));
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testSetAndGetAcrossNodes() throws GeneralSecurityException, IOException {
+    try (RedisClusterHelper writer = newRedisClusterHelper().batchSize(1000);
+        RedisClusterHelper reader = newRedisClusterHelper()) {
+      assertEquals(records, writer.set(data.iterator()).getRows());
+      assertValues(reader);
+      assertNull(reader.get("missing").get(0));
+      assertEquals(3, writer.getClusterNodes().size());
+      int keysets = 0;
+      for (int i = 0; i < cluster.size(); i++) {
+        FakeRedisServer node = cluster.getNode(i);
+        assertTrue(node.data().size() > records / 6);
+        assertTrue(node.commandCount("MGET") > 0);
+        keysets += node.get(RedisHelper.redisKeysetKey) == null ? 0 : 1;
+      }
+      assertEquals(1, keysets);
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testHashTagsShareOneMget() throws GeneralSecurityException, IOException {
+    List<Map.Entry<String, String>> tagged = new ArrayList<Map.Entry<String, String>>();
+    String[] taggedKeys = new String[100];
+    for (int i = 0; i < taggedKeys.length; i++) {
+      taggedKeys[i] = String.format("{user42}:field-%d", i);
+      tagged.add(new AbstractMap.SimpleEntry<String, String>(taggedKeys[i], "v" + i));
+    }
+    try (RedisClusterHelper r = newRedisClusterHelper().rawCiphertext(true)) {
+      r.set(tagged.iterator());
+      FakeRedisServer owner = cluster.getNode(cluster.ownerOf(FakeRedisCluster.slot("{user42}")));
+      long mgets = owner.commandCount("MGET");
+      List<String> values = r.get(taggedKeys);
+      assertEquals(mgets + 1, owner.commandCount("MGET"));
+      assertEquals("v99", values.get(99));
+      assertTrue(CryptoHelper.isRawCiphertext(cluster.get(taggedKeys[0])));
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testMovedSlot() throws GeneralSecurityException, IOException {
+    try (RedisClusterHelper r = newRedisClusterHelper()) {
+      r.set(data.iterator());
+      int slot = FakeRedisCluster.slot(keys[0]);
+      int from = cluster.ownerOf(slot);
+      cluster.moveSlot(slot, (from + 1) % cluster.size());
+      assertValues(r);
+      r.set(Collections.singletonMap(keys[0], "moved").entrySet().iterator());
+      assertEquals("moved", r.get(keys[0]).get(0));
+      assertNull(cluster.getNode(from).get(keys[0]));
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testAskDuringMigration() throws GeneralSecurityException, IOException {
+    String[] taggedKeys = new String[20];
+    List<Map.Entry<String, String>> tagged = new ArrayList<Map.Entry<String, String>>();
+    for (int i = 0; i < taggedKeys.length; i++) {
+      taggedKeys[i] = String.format("{order7}:item-%d", i);
+      tagged.add(new AbstractMap.SimpleEntry<String, String>(taggedKeys[i], "item " + i));
+    }
+    int slot = FakeRedisCluster.slot("{order7}");
+    int from = cluster.ownerOf(slot);
+    int to = (from + 1) % cluster.size();
+    try (RedisClusterHelper r = newRedisClusterHelper()) {
+      r.set(tagged.subList(0, 10).iterator());
+      cluster.startMigration(slot, to);
+      r.set(tagged.subList(10, 20).iterator());
+      assertNull(cluster.getNode(from).get(taggedKeys[15]));
+      assertNotEquals(null, cluster.getNode(to).get(taggedKeys[15]));
+      long asking = cluster.getNode(to).commandCount("ASKING");
+      assertTrue(asking >= 10);
+      List<String> values = r.get(taggedKeys);
+      assertEquals(asking + 10, cluster.getNode(to).commandCount("ASKING"));
+      for (int i = 0; i < taggedKeys.length; i++) {
+        assertEquals("item " + i, values.get(i));
+      }
+      cluster.finishMigration(slot);
+      values = r.get(taggedKeys);
+      for (int i = 0; i < taggedKeys.length; i++) {
+        assertEquals("item " + i, values.get(i));
+      }
+    }
+  }
+}
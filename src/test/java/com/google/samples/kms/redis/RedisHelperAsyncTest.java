@@ -0,0 +1,102 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.samples.kms.CryptoHelper;
+import com.google.samples.kms.FakeKmsClient;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the async API against a fake Redis server and checks that its calls overlap instead of queuing behind
+ * each other.
+ */
+public class RedisHelperAsyncTest {
+  private static final int records = 1000;
+  private static final int concurrentLookups = 4;
+
+  private FakeRedisServer server;
+  private RedisHelper redisHelper;
+
+  @Before
+  public void setUp() throws IOException, GeneralSecurityException {
+    server = new FakeRedisServer();
+    CryptoHelper ctx = new CryptoHelper().withKmsClient(new FakeKmsClient());
+    redisHelper = new RedisHelper(ctx, RedisHelperTest.newJedisPool(server));
+    List<Map.Entry<String, String>> data = new ArrayList<Map.Entry<String, String>>();
+    for (int i = 0; i < records; i++) {
+      data.add(new AbstractMap.SimpleEntry<String, String>(String.format("key-%d", i), String.format("value %d", i)));
+    }
+    redisHelper.set(data.iterator());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    redisHelper.close();
+    server.close();
+  }
+
+  @Test(timeout = 60000)
+  public void testAsyncLookupsAreInFlightTogether() throws InterruptedException, ExecutionException {
+    server.pause();
+    try (RedisHelperAsync async = new RedisHelperAsync(redisHelper)) {
+      List<CompletableFuture<String>> lookups = new ArrayList<CompletableFuture<String>>(concurrentLookups);
+      for (int i = 0; i < concurrentLookups; i++) {
+        lookups.add(async.getAsync(String.format("key-%d", i)));
+      }
+      while (server.inFlight() < concurrentLookups) {
+        Thread.sleep(1);
+      }
+      server.resume();
+      for (int i = 0; i < concurrentLookups; i++) {
+        assertEquals(String.format("value %d", i), lookups.get(i).get());
+      }
+    } finally {
+      server.resume();
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testSetAsyncAndFailures() throws InterruptedException, ExecutionException {
+    try (RedisHelperAsync async = new RedisHelperAsync(redisHelper)) {
+      async.setAsync("async-key", "async value").get();
+      assertEquals("async value", async.getAsync("async-key").get());
+      server.data().put(FakeRedisServer.key("corrupt".getBytes()), "not a ciphertext".getBytes());
+      try {
+        async.getAsync("corrupt").get();
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof IllegalArgumentException);
+        return;
+      }
+      throw new AssertionError("expected a decoding failure");
+    }
+  }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.samples.kms.CryptoHelper;
+import com.google.samples.kms.FakeKmsClient;
+import com.google.samples.kms.Instrumentation;
+import com.google.samples.kms.JmxInstrumentation;
+import com.google.samples.kms.ThroughputReport;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+public class RedisHelperTest {
+  private static final int records = 10007;
+
+  private FakeRedisServer server;
+  private CryptoHelper ctx;
+  private List<Map.Entry<String, String>> data;
+  private String[] keys;
+
+  @Before
+  public void setUp() throws IOException, GeneralSecurityException {
+    server = new FakeRedisServer();
+    ctx = new CryptoHelper().withKmsClient(new FakeKmsClient());
+    data = new ArrayList<Map.Entry<String, String>>();
+    for (int i = 0; i < records; i++) {
+      data.add(new AbstractMap.SimpleEntry<String, String>(String.format("key-%d", i), String.format("value %d", i)));
+    }
+    keys = new String[records];
+    for (int i = 0; i < records; i++) {
+      keys[i] = data.get(i).getKey();
+    }
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.close();
+  }
+
+  static JedisPool newJedisPool(FakeRedisServer server) {
+    return new JedisPool(new JedisPoolConfig(), server.getHost(), server.getPort(), 10000);
+  }
+
+  private RedisHelper newRedisHelper() throws GeneralSecurityException, IOException {
+    return new RedisHelper(ctx, newJedisPool(server));
+  }
+
+  @Test(timeout = 60000)
+  public void testChunkedGet() throws GeneralSecurityException, IOException {
+    try (RedisHelper r = newRedisHelper().getChunkSize(500).chunksInFlight(3)) {
+      r.set(data.iterator());
+      List<String> values = r.get(keys);
+      assertEquals(records, values.size());
+      for (int i = 0; i < records; i++) {
+        assertEquals(data.get(i).getValue(), values.get(i));
+      }
+      assertEquals((records + 499) / 500, server.commandCount("MGET"));
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testIteratorAndStream() throws GeneralSecurityException, IOException {
+    try (RedisHelper r = newRedisHelper().getChunkSize(64)) {
+      r.set(data.iterator());
+      Iterator<String> values = r.iterator(keys);
+      for (Map.Entry<String, String> expected : data) {
+        assertEquals(expected.getValue(), values.next());
+      }
+      assertEquals(false, values.hasNext());
+      List<String> streamed = r.stream(keys).collect(Collectors.toList());
+      assertEquals(data.get(records - 1).getValue(), streamed.get(records - 1));
+      assertNull(r.get("missing").get(0));
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testBatchedSet() throws GeneralSecurityException, IOException {
+    for (boolean ahead : new boolean[] { false, true }) {
+      List<BatchStats> batches = new ArrayList<BatchStats>();
+      try (RedisHelper r = newRedisHelper().batchSize(1000).encryptAhead(ahead).batchListener(batches::add)) {
+        ThroughputReport report = r.set(data.iterator());
+        assertEquals(records, report.getRows());
+        assertEquals((records + 999) / 1000, batches.size());
+        assertEquals(1000, batches.get(0).getCommands());
+        assertEquals(records % 1000, batches.get(batches.size() - 1).getCommands());
+        assertEquals(data.get(records - 1).getValue(), r.get(keys[records - 1]).get(0));
+      }
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testBatchBytesLimit() throws GeneralSecurityException, IOException {
+    List<BatchStats> batches = new ArrayList<BatchStats>();
+    try (RedisHelper r = newRedisHelper().batchBytes(1 << 10).batchListener(batches::add)) {
+      r.setClear(data.subList(0, 1000).iterator());
+      for (BatchStats batch : batches) {
+        assertTrue(batch.getBytes() < (1 << 10) + 32);
+      }
+      assertTrue(batches.size() > 10);
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testCachedGet() throws GeneralSecurityException, IOException {
+    DecryptedValueCache cache = new DecryptedValueCache(100, 1, TimeUnit.MINUTES);
+    try (RedisHelper r = newRedisHelper().cache(cache)) {
+      r.set(data.subList(0, 10).iterator());
+      assertEquals(Arrays.asList("value 1", "value 2", null), r.get("key-1", "key-2", "missing"));
+      assertEquals(Arrays.asList("value 2", "value 1", null), r.get("key-2", "key-1", "missing"));
+      assertEquals(Arrays.asList("value 1", "value 2"), r.get("key-1", "key-2"));
+      assertEquals(2, server.commandCount("MGET"));
+      assertEquals(4, cache.getHits());
+      assertEquals(4, cache.getMisses());
+
+      r.set(Collections.singletonMap("key-1", "changed").entrySet().iterator());
+      assertEquals("changed", r.get("key-1").get(0));
+      assertEquals(3, server.commandCount("MGET"));
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testGetReturnsConnections() throws GeneralSecurityException, IOException {
+    try (RedisHelper r = newRedisHelper()) {
+      r.setClear(data.subList(0, 10).iterator());
+      r.set(data.subList(10, 20).iterator());
+      for (int i = 0; i < 100; i++) {
+        assertEquals("value 3", r.getClear("key-3").get(0));
+        assertEquals("value 13", r.get("key-13").get(0));
+      }
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testEncryptedKeys() throws GeneralSecurityException, IOException {
+    try (RedisHelper r = newRedisHelper().encryptKeys(true).getChunkSize(500)) {
+      r.set(data.iterator());
+      assertNull(server.get("key-1"));
+      assertEquals(records + 2, server.data().size());
+      List<String> values = r.get(keys);
+      for (int i = 0; i < records; i++) {
+        assertEquals(data.get(i).getValue(), values.get(i));
+      }
+      assertNull(r.get("missing").get(0));
+    }
+    CryptoHelper other = new CryptoHelper().withKmsClient(new FakeKmsClient());
+    try (RedisHelper r = new RedisHelper(other, newJedisPool(server)).encryptKeys(true)) {
+      assertEquals("value 42", r.get("key-42").get(0));
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testCallersPoolStaysOpen() throws GeneralSecurityException, IOException {
+    try (JedisPool pool = newJedisPool(server)) {
+      try (RedisHelper r = new RedisHelper(ctx, pool)) {
+        r.set(data.iterator());
+      }
+      assertFalse(pool.isClosed());
+      try (RedisHelper r = new RedisHelper(ctx, pool)) {
+        assertEquals(data.get(0).getValue(), r.get(data.get(0).getKey()).get(0));
+      }
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testKeyCipherKeysetIsStoredOnce() throws GeneralSecurityException, IOException {
+    try (RedisHelper first = newRedisHelper().encryptKeys(true)) {
+      CryptoHelper late = new CryptoHelper() {
+        @Override
+        public String getEncodedDeterministicKeysetHandle() throws GeneralSecurityException, IOException {
+          first.set(data.subList(0, 1).iterator());
+          return super.getEncodedDeterministicKeysetHandle();
+        }
+      }.withKmsClient(new FakeKmsClient());
+      try (RedisHelper second = new RedisHelper(late, newJedisPool(server)).encryptKeys(true)) {
+        second.set(data.subList(1, 2).iterator());
+        assertEquals(data.get(0).getValue(), second.get(data.get(0).getKey()).get(0));
+        assertEquals(data.get(1).getValue(), first.get(data.get(1).getKey()).get(0));
+      }
+    }
+  }
+
+  private Path writeCsv(String... extra) throws IOException {
+    Path csv = Files.createTempFile("redis-load-", ".csv");
+    try (Writer w = Files.newBufferedWriter(csv, StandardCharsets.UTF_8)) {
+      w.write("Key,Member\r\n");
+      for (Map.Entry<String, String> kv : data) {
+        w.write(kv.getKey() + "," + kv.getValue() + "\r\n");
+      }
+      for (String line : extra) {
+        w.write(line + "\r\n");
+      }
+    }
+    return csv;
+  }
+
+  @Test(timeout = 60000)
+  public void testLoadCsv() throws GeneralSecurityException, IOException {
+    Path csv = writeCsv("key-7,\"changed, later\"");
+    server.latency(1, TimeUnit.MILLISECONDS);
+    List<BatchStats> batches = Collections.synchronizedList(new ArrayList<BatchStats>());
+    try (RedisHelper r = newRedisHelper().connections(3).queueDepth(1).batchSize(500).batchListener(batches::add)) {
+      ThroughputReport report = r.load(csv.toString());
+      assertEquals(records + 1, report.getRows());
+      assertTrue(report.getBytes() > 0);
+      assertTrue(batches.size() >= (records + 499) / 500);
+      List<String> values = r.get(keys);
+      for (int i = 0; i < records; i++) {
+        assertEquals(i == 7 ? "changed, later" : data.get(i).getValue(), values.get(i));
+      }
+    } finally {
+      Files.delete(csv);
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testLoadFailureIsRethrown() throws GeneralSecurityException, IOException {
+    Path csv = writeCsv("poisoned,poison");
+    ctx = new CryptoHelper() {
+      @Override
+      public byte[] encryptToBytes(byte[] plaintext) throws GeneralSecurityException, IOException {
+        if ("poison".equals(new String(plaintext, StandardCharsets.UTF_8))) {
+          throw new GeneralSecurityException("cannot encrypt poison");
+        }
+        return super.encryptToBytes(plaintext);
+      }
+    }.withKmsClient(new FakeKmsClient());
+    try (RedisHelper r = newRedisHelper().connections(4).queueDepth(1).batchSize(10)) {
+      r.load(csv.toString());
+      fail("expected the worker's exception");
+    } catch (GeneralSecurityException e) {
+      assertEquals("cannot encrypt poison", e.getMessage());
+    } finally {
+      Files.delete(csv);
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testLoadErrorIsRethrown() throws GeneralSecurityException, IOException {
+    Path csv = Files.createTempFile("redis-load-", ".csv");
+    try (Writer w = Files.newBufferedWriter(csv, StandardCharsets.UTF_8)) {
+      w.write("Key,Member\r\npoisoned,poison\r\n");
+      for (Map.Entry<String, String> kv : data) {
+        w.write(kv.getKey() + "," + kv.getValue() + "\r\n");
+      }
+    }
+    ctx = new CryptoHelper() {
+      @Override
+      public byte[] encryptToBytes(byte[] plaintext) throws GeneralSecurityException, IOException {
+        if ("poison".equals(new String(plaintext, StandardCharsets.UTF_8))) {
+          throw new AssertionError("cannot encrypt poison");
+        }
+        return super.encryptToBytes(plaintext);
+      }
+    }.withKmsClient(new FakeKmsClient());
+    try (RedisHelper r = newRedisHelper().connections(1).queueDepth(1).batchSize(1)) {
+      r.load(csv.toString());
+      fail("expected the worker's error");
+    } catch (AssertionError e) {
+      assertEquals("cannot encrypt poison", e.getMessage());
+    } finally {
+      Files.delete(csv);
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testInstrumentation() throws GeneralSecurityException, IOException {
+    JmxInstrumentation stats = new JmxInstrumentation("redis");
+    ctx.instrumentation(stats);
+    try (RedisHelper r = newRedisHelper().batchSize(1000).getChunkSize(500)) {
+      r.set(data.iterator());
+      r.get(keys);
+    }
+    assertEquals(records, stats.getStats(Instrumentation.Operation.REDIS_SET).getCount());
+    assertEquals(records, stats.getStats(Instrumentation.Operation.ENCRYPT).getCount());
+    assertEquals(records, stats.getStats(Instrumentation.Operation.REDIS_GET).getCount());
+    assertEquals(records, stats.getStats(Instrumentation.Operation.DECRYPT).getCount());
+    assertTrue(stats.getStats(Instrumentation.Operation.REDIS_GET).getBytes() > 0);
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2019 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.samples.kms.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.samples.kms.CryptoHelper;
+import com.google.samples.kms.FakeKmsClient;
+import com.google.samples.kms.ThroughputReport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RedisKeyRotationTest {
+  private static final int records = 2000;
+
+  private FakeRedisServer server;
+  private List<Map.Entry<String, String>> data;
+  private String[] keys;
+
+  /**
+   * Fails every encryption after the first {@code limit}.
+   */
+  static class FailingCryptoHelper extends CryptoHelper {
+    private final AtomicInteger remaining;
+
+    FailingCryptoHelper(int limit) throws GeneralSecurityException {
+      remaining = new AtomicInteger(limit);
+    }
+
+    @Override
+    public byte[] encryptToBytes(byte[] plaintext) throws GeneralSecurityException, IOException {
+      if (remaining.decrementAndGet() < 0) {
+        throw new GeneralSecurityException("poisoned");
+      }
+      return super.encryptToBytes(plaintext);
+    }
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    server = new FakeRedisServer();
+    data = new ArrayList<Map.Entry<String, String>>();
+    for (int i = 0; i < records; i++) {
+      data.add(new AbstractMap.SimpleEntry<String, String>(String.format("key-%d", i), String.format("value %d", i)));
+    }
+    keys = new String[records];
+    for (int i = 0; i < records; i++) {
+      keys[i] = data.get(i).getKey();
+    }
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.close();
+  }
+
+  private RedisHelper newRedisHelper(CryptoHelper ctx) throws GeneralSecurityException, IOException {
+    return new RedisHelper(ctx.withKmsClient(new FakeKmsClient()), RedisHelperTest.newJedisPool(server));
+  }
+
+  private CryptoHelper newCryptoHelper() throws GeneralSecurityException {
+    return new CryptoHelper().withKmsClient(new FakeKmsClient());
+  }
+
+  /**
+   * Returns the number of values that are encrypted with the primary key of {@code ctx}.
+   */
+  private int countRotated(CryptoHelper ctx) throws GeneralSecurityException, IOException {
+    int rotated = 0;
+    for (String k : keys) {
+      if (ctx.isEncryptedWithPrimary(ctx.decodeCiphertext(server.get(k)))) {
+        rotated++;
+      }
+    }
+    return rotated;
+  }
+
+  @Test(timeout = 60000)
+  public void testRotationKeepsValuesReadable() throws GeneralSecurityException, IOException {
+    try (RedisHelper writer = newRedisHelper(newCryptoHelper()); RedisHelper reader = newRedisHelper(newCryptoHelper());
+        RedisHelper rotator = newRedisHelper(newCryptoHelper())) {
+      writer.set(data.subList(0, records / 2).iterator());
+      writer.rawCiphertext(true).set(data.subList(records / 2, records).iterator());
+      writer.setClear(Map.of("clear", "not encrypted").entrySet().iterator());
+      byte[] base64 = server.get(keys[0]);
+      byte[] raw = server.get(keys[records - 1]);
+      int oldKeyId = rotator.getCryptoHelper().getPrimaryKeyId();
+
+      RedisKeyRotation rotation = new RedisKeyRotation(rotator).workers(3).scanCount(100).maxKeysPerSecond(20000);
+      ThroughputReport report = rotation.run();
+      assertEquals(records, report.getRows());
+      assertEquals(1, rotation.getSkipped());
+      assertEquals(0, rotation.getConflicts());
+      assertTrue(report.getElapsedNanos() >= TimeUnit.MILLISECONDS.toNanos(90));
+      assertNotEquals(oldKeyId, rotator.getCryptoHelper().getPrimaryKeyId());
+      assertEquals(records, countRotated(rotator.getCryptoHelper()));
+      assertNull(server.get(RedisKeyRotation.redisRotationKey));
+      assertEquals("not encrypted", new String(server.get("clear"), "UTF-8"));
+      assertTrue(!CryptoHelper.isRawCiphertext(server.get(keys[0])));
+      assertTrue(CryptoHelper.isRawCiphertext(server.get(keys[records - 1])));
+      assertNotEquals(new String(base64, "UTF-8"), new String(server.get(keys[0]), "UTF-8"));
+      assertNotEquals(ByteBuffer.wrap(raw), ByteBuffer.wrap(server.get(keys[records - 1])));
+
+      List<String> values = reader.get(keys);
+      for (int i = 0; i < records; i++) {
+        assertEquals(data.get(i).getValue(), values.get(i));
+      }
+      assertEquals(rotator.getCryptoHelper().getPrimaryKeyId(), reader.getCryptoHelper().getPrimaryKeyId());
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testResumeAfterFailure() throws GeneralSecurityException, IOException {
+    try (RedisHelper writer = newRedisHelper(newCryptoHelper())) {
+      writer.set(data.iterator());
+    }
+    int keyId;
+    try (RedisHelper failing = newRedisHelper(new FailingCryptoHelper(records / 2))) {
+      try {
+        new RedisKeyRotation(failing).workers(1).scanCount(100).run();
+        fail("expected the rotation to fail");
+      } catch (GeneralSecurityException expected) {
+        // the progress is kept in Redis
+      }
+      keyId = failing.getCryptoHelper().getPrimaryKeyId();
+    }
+    assertNotNull(server.get(RedisKeyRotation.redisRotationKey));
+    try (RedisHelper rotator = newRedisHelper(newCryptoHelper())) {
+      int rotated = countRotated(rotator.getCryptoHelper());
+      assertTrue(rotated >= records / 2 - 100 && rotated <= records / 2);
+      ThroughputReport report = new RedisKeyRotation(rotator).workers(2).scanCount(100).run();
+      assertEquals(keyId, rotator.getCryptoHelper().getPrimaryKeyId());
+      assertTrue(report.getRows() <= records - rotated + 100);
+      assertEquals(records, countRotated(rotator.getCryptoHelper()));
+      assertNull(server.get(RedisKeyRotation.redisRotationKey));
+      assertEquals(data.get(0).getValue(), rotator.get(keys[0]).get(0));
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testConcurrentWritesAreNotLost() throws Exception {
+    try (RedisHelper writer = newRedisHelper(newCryptoHelper()); RedisHelper rotator = newRedisHelper(newCryptoHelper())) {
+      writer.set(data.iterator());
+      AtomicReference<Exception> failure = new AtomicReference<Exception>();
+      AtomicInteger rounds = new AtomicInteger();
+      Thread t = new Thread(() -> {
+        try {
+          while (!Thread.currentThread().isInterrupted()) {
+            int round = rounds.incrementAndGet();
+            List<Map.Entry<String, String>> updates = new ArrayList<Map.Entry<String, String>>();
+            for (int i = 0; i < 100; i++) {
+              updates.add(new AbstractMap.SimpleEntry<String, String>(keys[i * 20], "round " + round));
+            }
+            writer.set(updates.iterator());
+          }
+        } catch (Exception e) {
+          failure.set(e);
+        }
+      });
+      t.start();
+      new RedisKeyRotation(rotator).workers(4).scanCount(50).run();
+      t.interrupt();
+      t.join();
+      assertNull(failure.get());
+      assertEquals(records, countRotated(rotator.getCryptoHelper()));
+      List<String> values = rotator.get(keys);
+      for (int i = 0; i < records; i++) {
+        assertEquals(i % 20 == 0 ? "round " + rounds.get() : data.get(i).getValue(), values.get(i));
+      }
+    }
+  }
+}